@@ -0,0 +1,86 @@
+package similarity;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding a user's existing HAS_AFFINITY_FOR relationship to a venue, by scanning all of
+ * the user's affinities as similarity.calculateVenueAffinity used to, compared to
+ * {@link AffinityIndex}, for a user with the given number of affinities.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AffinityIndexBenchmark {
+
+    @Param({"scan", "index"})
+    public String lookup;
+
+    @Param({"100", "1000", "10000"})
+    public int degree;
+
+    private BenchmarkGraph graph;
+    private Transaction tx;
+    private Node user;
+    private Node[] venues;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        graph = new BenchmarkGraph().populate(1, degree, 0, 0, 0, 0, 0, 42L);
+        try (Transaction tx = graph.db.beginTx()) {
+            Node user = graph.db.getNodeById(graph.userIds[0]);
+            for (long venueId : graph.venueIds) {
+                user.createRelationshipTo(graph.db.getNodeById(venueId), MyRelationshipTypes.HAS_AFFINITY_FOR);
+            }
+            tx.success();
+        }
+
+        tx = graph.db.beginTx();
+        user = graph.db.getNodeById(graph.userIds[0]);
+        venues = new Node[graph.venueIds.length];
+        for (int i = 0; i < venues.length; i++) {
+            venues[i] = graph.db.getNodeById(graph.venueIds[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        tx.close();
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public Relationship find() {
+        Node venue = venues[next++ % venues.length];
+        if ("index".equals(lookup)) {
+            return AffinityIndex.forDatabase(graph.db).find(user, venue);
+        }
+        for (Relationship affinity : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+            if (affinity.getEndNode().equals(venue)) {
+                return affinity;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,182 @@
+package similarity;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency distribution of each procedure in {@link Affinity}, run for one user (or
+ * venue label) per invocation against a seeded graph of the given scale. Every invocation except
+ * calculateAffinityBatch, which commits its own transactions, is rolled back so that each starts
+ * from the same graph. Add -prof gc to report the allocation rate. refreshUserInTurn calls
+ * addProxyTracks and the three calculateAll procedures one after another, for comparison with
+ * refreshUser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AffinityProceduresBenchmark {
+
+    @Param({"calculateVenueAffinity", "calculateArtistAffinity", "calculateEventAffinity", "calculateAllVenueAffinity", "calculateAllArtistAffinity",
+            "calculateAllEventAffinity", "calculateAffinityBatch", "addProxyTracks", "addPopularityNorm",
+            "streamVenueAffinity", "streamArtistAffinity", "streamEventAffinity", "refreshUser", "refreshUserInTurn"})
+    public String procedure;
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"2000"})
+    public int venues;
+
+    @Param({"2000"})
+    public int artists;
+
+    @Param({"5000"})
+    public int events;
+
+    @Param({"20"})
+    public int similarPerNode;
+
+    @Param({"20"})
+    public int tracksPerUser;
+
+    // the power law exponent of popularity and degree; 0 for a uniform graph
+    @Param({"1.0"})
+    public double skew;
+
+    // users per invocation of calculateAffinityBatch
+    @Param({"10"})
+    public int batchUsers;
+
+    // the engine option of the procedures that have one; eg. -p engine=cypher
+    @Param({"native"})
+    public String engine;
+
+    // the minPopularity option of calculateAllEventAffinity; NaN to score only candidate events
+    @Param({"-Infinity"})
+    public double minPopularity;
+
+    private BenchmarkGraph graph;
+    private Affinity affinity;
+    private final Map<String, Object> options = new HashMap<>();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        graph = new BenchmarkGraph().populate(users, venues, artists, events, similarPerNode, tracksPerUser, skew, 42L);
+        affinity = new Affinity();
+        affinity.db = graph.db;
+        affinity.log = graph.log;
+        try (Transaction tx = graph.db.beginTx()) {
+            affinity.addPopularityNorm("Venue", 100, 10000, new HashMap<>());
+            affinity.addPopularityNorm("Artist", 100, 10000, new HashMap<>());
+            tx.success();
+        }
+        if ("calculateAllEventAffinity".equals(procedure) || "calculateEventAffinity".equals(procedure)) {
+            // event affinities are calculated from venue and artist affinities
+            Map<String, Object> batch = new HashMap<>();
+            batch.put("events", false);
+            try (Transaction tx = graph.db.beginTx()) {
+                affinity.calculateAffinityBatch("User", batch).count();
+                tx.success();
+            }
+        }
+        options.put("engine", engine);
+        options.put("minPopularity", minPopularity);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public void run(Blackhole blackhole) {
+        int i = next++;
+        if ("calculateAffinityBatch".equals(procedure)) {
+            List<Node> batch = new ArrayList<>(batchUsers);
+            try (Transaction tx = graph.db.beginTx()) {
+                for (int j = 0; j < batchUsers; j++) {
+                    batch.add(graph.db.getNodeById(graph.userIds[(i * batchUsers + j) % graph.userIds.length]));
+                }
+                affinity.calculateAffinityBatch(batch, options).forEach(blackhole::consume);
+                tx.success();
+            }
+            return;
+        }
+
+        try (Transaction tx = graph.db.beginTx()) {
+            Node user = graph.db.getNodeById(graph.userIds[i % graph.userIds.length]);
+            switch (procedure) {
+                case "calculateVenueAffinity":
+                    affinity.calculateVenueAffinity(user, graph.db.getNodeById(graph.venueIds[i % graph.venueIds.length]), true, options);
+                    break;
+                case "calculateArtistAffinity":
+                    affinity.calculateArtistAffinity(user, graph.db.getNodeById(graph.artistIds[i % graph.artistIds.length]), true, options);
+                    break;
+                case "calculateEventAffinity":
+                    affinity.calculateEventAffinity(user, graph.db.getNodeById(graph.eventIds[i % graph.eventIds.length]), options);
+                    break;
+                case "calculateAllVenueAffinity":
+                    affinity.calculateAllVenueAffinity(user, options);
+                    break;
+                case "calculateAllArtistAffinity":
+                    affinity.calculateAllArtistAffinity(user, options);
+                    break;
+                case "calculateAllEventAffinity":
+                    affinity.calculateAllEventAffinity(user, options);
+                    break;
+                case "refreshUser":
+                    affinity.refreshUser(user, options);
+                    break;
+                case "refreshUserInTurn":
+                    affinity.addProxyTracks(user);
+                    affinity.calculateAllVenueAffinity(user, options);
+                    affinity.calculateAllArtistAffinity(user, options);
+                    affinity.calculateAllEventAffinity(user, options);
+                    break;
+                case "addProxyTracks":
+                    affinity.addProxyTracks(user);
+                    break;
+                case "addPopularityNorm":
+                    affinity.addPopularityNorm("Venue", 100, 10000, options);
+                    break;
+                case "streamVenueAffinity":
+                    affinity.streamVenueAffinity(user, options).forEach(blackhole::consume);
+                    break;
+                case "streamArtistAffinity":
+                    affinity.streamArtistAffinity(user, options).forEach(blackhole::consume);
+                    break;
+                case "streamEventAffinity":
+                    affinity.streamEventAffinity(user, options).forEach(blackhole::consume);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown procedure " + procedure);
+            }
+            tx.failure();
+        }
+    }
+}
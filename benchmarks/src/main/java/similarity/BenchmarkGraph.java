@@ -0,0 +1,92 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.neo4j.logging.NullLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * An embedded database with the similarity procedures and the APOC functions they depend on
+ * registered, populated with a seeded synthetic graph
+ */
+class BenchmarkGraph {
+
+    final GraphDatabaseService db;
+    final Log log = NullLog.getInstance();
+    private final Path directory;
+
+    long[] userIds;
+    long[] venueIds;
+    long[] artistIds;
+    long[] eventIds;
+
+    BenchmarkGraph() throws Exception {
+        directory = Files.createTempDirectory("similarity-benchmark");
+        db = new GraphDatabaseFactory().newEmbeddedDatabase(directory.toFile());
+
+        Procedures procedures = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class);
+        procedures.registerProcedure(Affinity.class);
+        procedures.registerProcedure(ProjectionProcedures.class);
+        procedures.registerProcedure(SimilarityProcedures.class);
+        procedures.registerFunction(Similarity.class);
+        procedures.registerFunction(apoc.scoring.Scoring.class);
+        procedures.registerFunction(apoc.coll.Coll.class);
+    }
+
+    /**
+     * Generate a graph with {@link GraphGenerator}, where each user tracks tracksPerUser venues,
+     * artists and events on average and proxy tracks a quarter as many, and each venue and artist is
+     * SIMILAR_TO similarPerNode others on average
+     */
+    BenchmarkGraph populate(int users, int venues, int artists, int events, int similarPerNode, int tracksPerUser,
+                            double skew, long seed) {
+        Map<String, Object> options = new HashMap<>();
+        options.put("seed", seed);
+        options.put("users", users);
+        options.put("venues", venues);
+        options.put("artists", artists);
+        options.put("events", events);
+        options.put("similarPerNode", similarPerNode);
+        options.put("tracksPerUser", tracksPerUser);
+        options.put("proxyTracksPerUser", tracksPerUser / 4.0);
+        options.put("skew", skew);
+        new GraphGenerator(db, log, options).run();
+
+        try (Transaction tx = db.beginTx()) {
+            userIds = ids(Label.label("User"));
+            venueIds = ids(Label.label("Venue"));
+            artistIds = ids(Label.label("Artist"));
+            eventIds = ids(Label.label("Event"));
+            tx.success();
+        }
+        return this;
+    }
+
+    private long[] ids(Label label) {
+        try (ResourceIterator<Node> nodes = db.findNodes(label)) {
+            return nodes.stream().mapToLong(Node::getId).toArray();
+        }
+    }
+
+    void shutdown() throws IOException {
+        db.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package similarity;
+
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.LoglikelihoodSimilarity;
+import org.apache.mahout.math.stats.LogLikelihood;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of LLR, NMID and LLSimilarity computed by Mahout, as the functions originally did,
+ * compared to {@link LogLikelihoodKernel}. The counts are drawn as co-occurrence counts of artists
+ * tracked by up to maxTotal users, so that most AB are small and most A and B are not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LogLikelihoodBenchmark {
+
+    private static final int COUNTS = 1024;
+
+    @Param({"1000000"})
+    public long maxTotal;
+
+    private final long[] ab = new long[COUNTS];
+    private final long[] a = new long[COUNTS];
+    private final long[] b = new long[COUNTS];
+    private final long[] total = new long[COUNTS];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < COUNTS; i++) {
+            total[i] = 1000 + (long) (random.nextDouble() * maxTotal);
+            a[i] = 1 + (long) (Math.pow(random.nextDouble(), 4) * total[i] / 10);
+            b[i] = 1 + (long) (Math.pow(random.nextDouble(), 4) * total[i] / 10);
+            ab[i] = (long) (Math.pow(random.nextDouble(), 4) * Math.min(a[i], b[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNTS)
+    public void llrMahout(Blackhole blackhole) {
+        for (int i = 0; i < COUNTS; i++) {
+            blackhole.consume(LogLikelihood.logLikelihoodRatio(ab[i], a[i] - ab[i], b[i] - ab[i], total[i] - a[i] - b[i] + ab[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNTS)
+    public void llrKernel(Blackhole blackhole) {
+        for (int i = 0; i < COUNTS; i++) {
+            blackhole.consume(LogLikelihoodKernel.llr(ab[i], a[i], b[i], total[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNTS)
+    public void nmidMahout(Blackhole blackhole) {
+        for (int i = 0; i < COUNTS; i++) {
+            long k11 = ab[i], k12 = a[i] - ab[i], k21 = b[i] - ab[i], k22 = total[i] - a[i] - b[i] + ab[i];
+            double mutualInformation = LogLikelihood.logLikelihoodRatio(k11, k12, k21, k22) / (2.0 * total[i]);
+            double normalisedJointEntropy = LogLikelihood.entropy(k11, k12, k21, k22) / total[i];
+            blackhole.consume(1.0 - (mutualInformation / normalisedJointEntropy));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNTS)
+    public void nmidKernel(Blackhole blackhole) {
+        for (int i = 0; i < COUNTS; i++) {
+            blackhole.consume(LogLikelihoodKernel.nmid(ab[i], a[i], b[i], total[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNTS)
+    public void llSimilarityMahout(Blackhole blackhole) {
+        for (int i = 0; i < COUNTS; i++) {
+            blackhole.consume(new LoglikelihoodSimilarity().similarity(ab[i], a[i], b[i], (int) total[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNTS)
+    public void llSimilarityKernel(Blackhole blackhole) {
+        for (int i = 0; i < COUNTS; i++) {
+            blackhole.consume(LogLikelihoodKernel.llSimilarity(ab[i], a[i], b[i], total[i]));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package similarity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build the SIMILAR_TO relationships of every artist with similarity.buildSimilarTo, scoring
+ * every co-tracked pair compared to only the MinHash LSH candidates. The relationships written by
+ * one invocation are updated by the next.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SimilarToBenchmark {
+
+    @Param({"exact", "lsh"})
+    public String candidates;
+
+    @Param({"20000"})
+    public int users;
+
+    @Param({"5000"})
+    public int artists;
+
+    @Param({"20"})
+    public int tracksPerUser;
+
+    // the minimum LLR of a pair to be written
+    @Param({"10.0"})
+    public double threshold;
+
+    @Param({"32"})
+    public int bands;
+
+    @Param({"2"})
+    public int rows;
+
+    private BenchmarkGraph graph;
+    private Map<String, Object> options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        graph = new BenchmarkGraph().populate(users, 0, artists, 0, 0, tracksPerUser, 1.0, 42L);
+        options = new HashMap<>();
+        options.put("candidates", candidates);
+        options.put("bands", bands);
+        options.put("rows", rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public SimilarToBuilder.Result buildSimilarTo() {
+        return new SimilarToBuilder(graph.db, graph.log, options).run("Artist", "TRACKS", threshold);
+    }
+}
@@ -0,0 +1,97 @@
+package similarity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the user-defined functions in {@link Similarity}, called directly rather than
+ * through Cypher so that only the function body is measured. The list functions take a list of
+ * listSize affinities, boxed as Cypher would pass them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SimilarityFunctionsBenchmark {
+
+    @Param({"10", "1000"})
+    public int listSize;
+
+    private final Similarity similarity = new Similarity();
+
+    private List<Number> affinities;
+    private long ab;
+    private long a;
+    private long b;
+    private long total;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        affinities = new ArrayList<>(listSize);
+        for (int i = 0; i < listSize; i++) {
+            affinities.add(random.nextDouble());
+        }
+        total = 1000000;
+        a = 5000;
+        b = 2000;
+        ab = 40;
+    }
+
+    @Benchmark
+    public double LLR() {
+        return similarity.LLR(ab, a, b, total);
+    }
+
+    @Benchmark
+    public double LLSimilarity() {
+        return similarity.LLSimilarity(ab, a, b, total);
+    }
+
+    @Benchmark
+    public double LLDistance() {
+        return similarity.LLDistance(ab, a, b, total);
+    }
+
+    @Benchmark
+    public double mutualInformation() {
+        return similarity.mutualInformation(ab, a, b, total);
+    }
+
+    @Benchmark
+    public double NMID() {
+        return similarity.NMID(ab, a, b, total);
+    }
+
+    @Benchmark
+    public double product() {
+        return similarity.product(affinities);
+    }
+
+    @Benchmark
+    public double complementProduct() {
+        return similarity.complementProduct(affinities);
+    }
+
+    @Benchmark
+    public List sublist() {
+        return similarity.sublist(affinities, listSize / 4, listSize / 2);
+    }
+}
@@ -0,0 +1,95 @@
+package similarity;
+
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user latency of similarity.calculateAllVenueAffinity with the native engine compared to the
+ * original Cypher statements, and of the native engine when traversing the in-memory projection
+ * rather than the store. Each invocation is rolled back so that every user is always
+ * recalculated from the same starting graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VenueAffinityBenchmark {
+
+    @Param({"native", "cypher"})
+    public String engine;
+
+    @Param({"false", "true"})
+    public boolean projection;
+
+    // zero keeps every affinity; eg. -p topK=50 to only write the best 50 (native engine only)
+    @Param({"0"})
+    public int topK;
+
+    @Param({"2000"})
+    public int venues;
+
+    @Param({"20"})
+    public int similarPerVenue;
+
+    @Param({"20"})
+    public int tracksPerUser;
+
+    // the power law exponent of popularity and degree; 0 for a uniform graph
+    @Param({"1.0"})
+    public double skew;
+
+    private BenchmarkGraph graph;
+    private Affinity affinity;
+    private Map<String, Object> options;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        graph = new BenchmarkGraph().populate(1000, venues, 0, 0, similarPerVenue, tracksPerUser, skew, 42L);
+        affinity = new Affinity();
+        affinity.db = graph.db;
+        options = new HashMap<>();
+        options.put("engine", engine);
+        if (topK > 0) {
+            options.put("topK", topK);
+        }
+        if (projection) {
+            try (Transaction tx = graph.db.beginTx()) {
+                Projection.load(graph.db);
+                tx.success();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public void calculateAllVenueAffinity() {
+        long userId = graph.userIds[next++ % graph.userIds.length];
+        try (Transaction tx = graph.db.beginTx()) {
+            affinity.calculateAllVenueAffinity(graph.db.getNodeById(userId), options);
+            tx.failure();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package similarity;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.traversal.Uniqueness;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-pair cost of following the paths from a user to a venue for similarity.calculateVenueAffinity,
+ * through the traversal framework with {@link TrackExpander} and {@link ReachedVenueEvaluator} as
+ * it used to, compared to {@link TargetPaths}. Run with -prof gc to compare the bytes allocated per
+ * call (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VenuePathsBenchmark {
+
+    @Param({"traversal", "targetPaths"})
+    public String engine;
+
+    @Param({"false", "true"})
+    public boolean useProxyTracks;
+
+    @Param({"2000"})
+    public int venues;
+
+    @Param({"2000"})
+    public int events;
+
+    @Param({"20"})
+    public int similarPerVenue;
+
+    @Param({"20"})
+    public int tracksPerUser;
+
+    private BenchmarkGraph graph;
+    private Transaction tx;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        graph = new BenchmarkGraph().populate(1000, venues, 0, events, similarPerVenue, tracksPerUser, 1.0, 42L);
+        tx = graph.db.beginTx();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        tx.close();
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public Contribution venueContribution() {
+        int i = next++;
+        Node user = graph.db.getNodeById(graph.userIds[i % graph.userIds.length]);
+        // popular venues first, as they have the most paths
+        Node venue = graph.db.getNodeById(graph.venueIds[(i / graph.userIds.length) % 50]);
+
+        Contribution contribution = new Contribution();
+        if ("targetPaths".equals(engine)) {
+            TargetPaths.add(graph.db, user, venue, TargetPaths.Hops.VENUE, useProxyTracks, contribution);
+            return contribution;
+        }
+
+        for (Path path : graph.db.traversalDescription()
+                .depthFirst()
+                .expand(new TrackExpander(useProxyTracks))
+                .evaluator(new ReachedVenueEvaluator(venue, useProxyTracks))
+                .uniqueness(Uniqueness.RELATIONSHIP_PATH)
+                .traverse(user)) {
+            boolean isProxyPath = ! useProxyTracks && path.length() > 2;
+            for (Relationship rel : path.relationships()) {
+                if (useProxyTracks && rel.isType(MyRelationshipTypes.PROXY_TRACKS)) {
+                    isProxyPath = true;
+                }
+                Object nmid = rel.isType(MyRelationshipTypes.SIMILAR_TO) ? rel.getProperty("NMID", null) : null;
+                if (nmid instanceof Number) {
+                    contribution.add(isProxyPath, ((Number) nmid).doubleValue());
+                }
+            }
+        }
+        return contribution;
+    }
+}
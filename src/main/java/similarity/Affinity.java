@@ -1,13 +1,12 @@
 package similarity;
 
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.TraversalDescription;
-import org.neo4j.graphdb.traversal.Uniqueness;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * Created by markwood on 23/06/2017.
@@ -24,41 +23,82 @@ public class Affinity {
     @Context
     public Log log;
 
+    // names under which each procedure is reported by similarity.stats()
+    static final String CALCULATE_ALL_VENUE_AFFINITY = "similarity.calculateAllVenueAffinity";
+    static final String CALCULATE_ALL_ARTIST_AFFINITY = "similarity.calculateAllArtistAffinity";
+    static final String CALCULATE_ALL_EVENT_AFFINITY = "similarity.calculateAllEventAffinity";
+    static final String STREAM_VENUE_AFFINITY = "similarity.streamVenueAffinity";
+    static final String STREAM_ARTIST_AFFINITY = "similarity.streamArtistAffinity";
+    static final String STREAM_EVENT_AFFINITY = "similarity.streamEventAffinity";
+    static final String CALCULATE_AFFINITY_BATCH = "similarity.calculateAffinityBatch";
+    static final String REBUILD_AFFINITIES = "similarity.rebuildAffinities";
+    static final String ADD_PROXY_TRACKS = "similarity.addProxyTracks";
+    static final String ADD_PROXY_TRACKS_BATCH = "similarity.addProxyTracksBatch";
+    static final String ADD_POPULARITY_NORM = "similarity.addPopularityNorm";
+    static final String CALCULATE_VENUE_AFFINITY = "similarity.calculateVenueAffinity";
+    static final String CALCULATE_ARTIST_AFFINITY = "similarity.calculateArtistAffinity";
+    static final String CALCULATE_EVENT_AFFINITY = "similarity.calculateEventAffinity";
+    static final String REFRESH_USER = "similarity.refreshUser";
+    static final String ENQUEUE_REFRESH = "similarity.enqueueRefresh";
+
     /**
      * Calculate the affinity of a user for all active venues, and then adds these relationships
      * to the graph
      *
      * @param user the user Node in question
+     * @param options engine: "native" (default) to calculate all contributions in a single pass over
+     *                the user's neighbourhood, or "cypher" to run the original Cypher statements;
+     *                maxRadius: only add distance contributions for venues within this many meters;
+     *                topK: only keep the user's best topK venue affinities, deleting any others
+     *                (native engine only); epsilon: leave properties that are within this of their
+     *                new value unwritten (default 1e-9; native engine only); maxNMID and topN: only
+     *                follow the SIMILAR_TO relationships of each venue with an NMID of at most
+     *                maxNMID, and at most its topN most similar (native engine only)
      */
     @Procedure(value = "similarity.calculateAllVenueAffinity", mode = Mode.WRITE)
     @Description("Create an affinity edge between the given user and all active venues")
-    public void calculateAllVenueAffinity( @Name("user") Node user)
+    public void calculateAllVenueAffinity( @Name("user") Node user,
+                                           @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
     {
         if (user == null) {
             return;
         }
 
+        Metrics.count(CALCULATE_ALL_VENUE_AFFINITY, "users", 1);
+        Metrics.time(CALCULATE_ALL_VENUE_AFFINITY, () -> {
+            if (isCypherEngine(options)) {
+                calculateAllVenueAffinityCypher(user, Options.doubleValue(options, "maxRadius", 0));
+            } else {
+                new AffinityEngine(db, options).calculateAllVenueAffinity(user);
+            }
+        });
+    }
+
+    private void calculateAllVenueAffinityCypher(Node user, double maxRadius)
+    {
         Map<String, Object> params = new HashMap<>();
         params.put( "id", user.getProperty("id") );
+        params.put( "maxRadius", maxRadius > 0 ? maxRadius : null );
 
         // calculate Cartesian distance contribution
-        db.execute("MATCH (u:User {id: {id}})\n" +
+        execute(CALCULATE_ALL_VENUE_AFFINITY, "distance", "MATCH (u:User {id: {id}})\n" +
                 "WHERE exists(u.latitude) AND exists(u.longitude)\n" +
                 "MATCH (v:Venue:Active)\n" +
                 "WHERE exists(v.latitude) AND exists(v.longitude)\n" +
+                "AND ({maxRadius} IS NULL OR distance(point(u), point(v)) <= {maxRadius})\n" +
                 "MERGE (u)-[aff:HAS_AFFINITY_FOR]->(v)\n" +
                 "ON CREATE SET aff.distanceM    = distance(point(u), point(v)), \n" +
                 "              aff.distanceNorm = 0.85 + (0.15 * (apoc.scoring.pareto(0, 50000, 200000, toInteger(aff.distanceM)) / 200000.0))", params);
 
         // calculate TRACKS contribution
-        db.execute("MATCH (u:User {id: {id}})-[t:TRACKS]->(:Venue)-[s:SIMILAR_TO]-(b:Venue:Active)\n" +
+        execute(CALCULATE_ALL_VENUE_AFFINITY, "tracks", "MATCH (u:User {id: {id}})-[t:TRACKS]->(:Venue)-[s:SIMILAR_TO]-(b:Venue:Active)\n" +
                 "WHERE not(exists((u)-[:TRACKS]->(b)))\n" +
                 "WITH u, b, min(s.NMID) AS min, avg(s.NMID) AS avg, similarity.product(collect(s.NMID)) AS prod, count(s.NMID) AS count\n" +
                 "MERGE (u)-[aff:HAS_AFFINITY_FOR]->(b)\n" +
                 "SET aff.min = min, aff.avg = avg, aff.prod = prod, aff.count = count", params);
 
         // calculate PROXY_TRACKS contribution
-        db.execute("MATCH (u:User {id: {id}})-[t:PROXY_TRACKS]->(:Venue)-[s:SIMILAR_TO]-(b:Venue:Active)\n" +
+        execute(CALCULATE_ALL_VENUE_AFFINITY, "proxyTracks", "MATCH (u:User {id: {id}})-[t:PROXY_TRACKS]->(:Venue)-[s:SIMILAR_TO]-(b:Venue:Active)\n" +
                 "WHERE not(exists((u)-[:TRACKS]->(b)))\n" +
                 "WITH u, b, min(s.NMID) AS min, avg(s.NMID) AS avg, similarity.product(collect(s.NMID)) AS prod, count(s.NMID) AS count\n" +
                 "MERGE (u)-[aff:HAS_AFFINITY_FOR]->(b)\n" +
@@ -67,7 +107,7 @@ public class Affinity {
         // other contributions here (eg. PURCHASED, etc.)
 
         // calculate combined affinity score
-        db.execute("MATCH (u:User {id: {id}})-[aff:HAS_AFFINITY_FOR]->(v:Venue:Active)\n" +
+        execute(CALCULATE_ALL_VENUE_AFFINITY, "affinity", "MATCH (u:User {id: {id}})-[aff:HAS_AFFINITY_FOR]->(v:Venue:Active)\n" +
                 "WITH aff, CASE WHEN aff.distanceNorm IS NOT NULL THEN aff.distanceNorm ELSE 1.0 END AS distance, \n" +
                     "CASE WHEN aff.avg IS NOT NULL THEN aff.avg WHEN aff.proxyAvg IS NOT NULL THEN aff.proxyAvg^0.1 ELSE 1.0 END AS similarity\n" +
                 "WITH aff, apoc.coll.min([distance, similarity]) AS venueAffinity\n" +
@@ -80,27 +120,44 @@ public class Affinity {
      * to the graph
      *
      * @param user the user Node in question
+     * @param options engine: "native" (default) to calculate all contributions in a single pass over
+     *                the user's neighbourhood, or "cypher" to run the original Cypher statements;
+     *                topK: only keep the user's best topK artist affinities, deleting any others
+     *                (native engine only); epsilon, maxNMID and topN: as for calculateAllVenueAffinity
      */
     @Procedure(value = "similarity.calculateAllArtistAffinity", mode = Mode.WRITE)
     @Description("Create an affinity edge between the given user and all active artists")
-    public void calculateAllArtistAffinity( @Name("user") Node user)
+    public void calculateAllArtistAffinity( @Name("user") Node user,
+                                            @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
     {
         if (user == null) {
             return;
         }
 
+        Metrics.count(CALCULATE_ALL_ARTIST_AFFINITY, "users", 1);
+        Metrics.time(CALCULATE_ALL_ARTIST_AFFINITY, () -> {
+            if (isCypherEngine(options)) {
+                calculateAllArtistAffinityCypher(user);
+            } else {
+                new AffinityEngine(db, options).calculateAllArtistAffinity(user);
+            }
+        });
+    }
+
+    private void calculateAllArtistAffinityCypher(Node user)
+    {
         Map<String, Object> params = new HashMap<>();
         params.put( "id", user.getProperty("id") );
 
         // calculate TRACKS contribution
-        db.execute("MATCH (u:User {id: {id}})-[:TRACKS]->(:Artist)-[s:SIMILAR_TO]-(b:Artist:Active)\n" +
+        execute(CALCULATE_ALL_ARTIST_AFFINITY, "tracks", "MATCH (u:User {id: {id}})-[:TRACKS]->(:Artist)-[s:SIMILAR_TO]-(b:Artist:Active)\n" +
                 "WHERE not(exists((u)-[:TRACKS]->(b)))\n" +
                 "WITH u, b, min(s.NMID) AS min, avg(s.NMID) AS avg, similarity.product(collect(s.NMID)) AS prod, count(s.NMID) AS count\n" +
                 "MERGE (u)-[aff:HAS_AFFINITY_FOR]->(b)\n" +
                 "SET aff.min = min, aff.avg = avg, aff.prod = prod, aff.count = count", params);
 
         // calculate PROXY_TRACKS contribution
-        db.execute("MATCH (u:User {id: {id}})-[:PROXY_TRACKS]->(:Artist)-[s:SIMILAR_TO]-(b:Artist:Active)\n" +
+        execute(CALCULATE_ALL_ARTIST_AFFINITY, "proxyTracks", "MATCH (u:User {id: {id}})-[:PROXY_TRACKS]->(:Artist)-[s:SIMILAR_TO]-(b:Artist:Active)\n" +
                 "WHERE not(exists((u)-[:TRACKS]->(b)))\n" +
                 "WITH u, b, min(s.NMID) AS min, avg(s.NMID) AS avg, similarity.product(collect(s.NMID)) AS prod, count(s.NMID) AS count\n" +
                 "MERGE (u)-[aff:HAS_AFFINITY_FOR]->(b)\n" +
@@ -109,30 +166,51 @@ public class Affinity {
         // other contributions here (eg. PURCHASED, etc.)
 
         // calculate combined affinity score
-        db.execute("MATCH (u:User {id: {id}})-[aff:HAS_AFFINITY_FOR]->(a:Artist:Active)\n" +
+        execute(CALCULATE_ALL_ARTIST_AFFINITY, "affinity", "MATCH (u:User {id: {id}})-[aff:HAS_AFFINITY_FOR]->(a:Artist:Active)\n" +
                 "WITH aff, CASE WHEN aff.prod IS NOT NULL THEN aff.prod^2 WHEN aff.proxyProd IS NOT NULL THEN aff.proxyProd^0.1 ELSE 1.0 END AS artistAffinity\n" +
                 "WHERE artistAffinity <> 1.0\n" +
                 "SET aff.affinity = artistAffinity", params);
     }
 
     /**
-     * Calculate the affinity of a user for all active artists, and then adds these relationships
-     * to the graph
+     * Calculate the affinity of a user for all future events from the user's venue and artist
+     * affinities, and then adds these relationships to the graph
      *
      * @param user the user Node in question
+     * @param options engine: "native" (default) to score the events found from the user's venue and
+     *                artist affinities, or "cypher" to run the original Cypher statement;
+     *                minPopularity: only score the events of venues and artists the user has no
+     *                affinity with, from their popularity, if their popularityNorm is at least this
+     *                (default any, as the Cypher statement does; native engine only); fromDate and
+     *                toDate: only score events whose dateProperty (default "date") is a number
+     *                within this range (native engine only);
+     *                epsilon: as for calculateAllVenueAffinity
      */
     @Procedure(value = "similarity.calculateAllEventAffinity", mode = Mode.WRITE)
     @Description("Create an affinity edge between the given user and all future events")
-    public void calculateAllEventAffinity( @Name("user") Node user)
+    public void calculateAllEventAffinity( @Name("user") Node user,
+                                           @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
     {
         if (user == null) {
             return;
         }
 
+        Metrics.count(CALCULATE_ALL_EVENT_AFFINITY, "users", 1);
+        Metrics.time(CALCULATE_ALL_EVENT_AFFINITY, () -> {
+            if (isCypherEngine(options)) {
+                calculateAllEventAffinityCypher(user);
+            } else {
+                new AffinityEngine(db, options).calculateAllEventAffinity(user);
+            }
+        });
+    }
+
+    private void calculateAllEventAffinityCypher(Node user)
+    {
         Map<String, Object> params = new HashMap<>();
         params.put( "id", user.getProperty("id") );
 
-        db.execute("MATCH (u:User {id: {id}}), (a)-[:PLAYS {roster: 0}]->(e:Future)<-[:HOSTS]-(v)\n" +
+        execute(CALCULATE_ALL_EVENT_AFFINITY, null, "MATCH (u:User {id: {id}}), (a)-[:PLAYS {roster: 0}]->(e:Future)<-[:HOSTS]-(v)\n" +
                 "WHERE not(exists((u)-[:TRACKS]->(e))) AND not(exists((u)-[:TRACKS]->(a))) AND not(exists((u)-[:TRACKS]->(v)))\n" +
                 "OPTIONAL MATCH (u)-[affV:HAS_AFFINITY_FOR]->(v)\n" +
                 "OPTIONAL MATCH (u)-[affA:HAS_AFFINITY_FOR]->(a)\n" +
@@ -144,6 +222,196 @@ public class Affinity {
                 "SET aff.artistAffinity = artistAffinity, aff.venueAffinity = venueAffinity, aff.affinity = affinity", params);
     }
 
+    /**
+     * Refresh all of a user's affinities at once: add PROXY_TRACKS, then calculate the user's venue,
+     * artist and event affinities, with the same results as calling addProxyTracks,
+     * calculateAllVenueAffinity, calculateAllArtistAffinity and calculateAllEventAffinity in turn,
+     * but expanding the user's neighbourhood only once
+     *
+     * @param user the user Node in question
+     * @param options proxyTracks: add PROXY_TRACKS first (default true); engine: "native" (default)
+     *                to refresh in a single pass, or "cypher" to run the original Cypher statements
+     *                of each procedure in turn; and the options of the calculateAll procedures
+     */
+    @Procedure(value = "similarity.refreshUser", mode = Mode.WRITE)
+    @Description("similarity.refreshUser(user, {proxyTracks: true, topK: 0}) - add proxy tracks and calculate all " +
+            "affinities of the given user in a single pass")
+    public void refreshUser( @Name("user") Node user,
+                             @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        refreshUser(user, Options.booleanValue(options, "proxyTracks", true), options);
+    }
+
+    void refreshUser(Node user, boolean proxyTracks, Map<String, Object> options)
+    {
+        if (user == null) {
+            return;
+        }
+
+        Metrics.count(REFRESH_USER, "users", 1);
+        Metrics.time(REFRESH_USER, () -> {
+            if (isCypherEngine(options)) {
+                if (proxyTracks) {
+                    addProxyTracks(user);
+                }
+                calculateAllVenueAffinityCypher(user, Options.doubleValue(options, "maxRadius", 0));
+                calculateAllArtistAffinityCypher(user);
+                calculateAllEventAffinityCypher(user);
+            } else {
+                new AffinityEngine(db, options).refreshUser(user, proxyTracks);
+            }
+        });
+    }
+
+    /**
+     * Queue a user to be refreshed in the background, as refreshUser would with its default
+     * options, once the calling transaction commits. A user who is already queued is refreshed
+     * only once. If the queue is full, wait up to similarity.refresh_queue.offer_timeout for room,
+     * unless the calling transaction has queued users itself, in which case give up at once.
+     *
+     * @param user the user Node in question
+     * @return whether the user was queued, and the number of users now queued
+     */
+    @Procedure(value = "similarity.enqueueRefresh", mode = Mode.READ)
+    @Description("similarity.enqueueRefresh(user) - refresh all affinities of the given user in the background, " +
+            "once the calling transaction commits")
+    public Stream<RefreshQueue.Queued> enqueueRefresh( @Name("user") Node user)
+    {
+        RefreshQueue queue = RefreshQueue.forDatabase(db);
+        if (queue == null) {
+            throw new IllegalStateException("The similarity refresh queue is not running");
+        }
+        if (user == null) {
+            return Stream.empty();
+        }
+
+        RefreshQueue.Queued result = Metrics.time(ENQUEUE_REFRESH, () -> queue.enqueue(db, user));
+        Metrics.count(ENQUEUE_REFRESH, result.queued ? "users" : "rejected", 1);
+        return Stream.of(result);
+    }
+
+    @Procedure(value = "similarity.queueStatus", mode = Mode.READ)
+    @Description("similarity.queueStatus() - report the users queued by similarity.enqueueRefresh and their progress")
+    public Stream<RefreshQueue.Status> queueStatus()
+    {
+        RefreshQueue queue = RefreshQueue.forDatabase(db);
+        if (queue == null) {
+            throw new IllegalStateException("The similarity refresh queue is not running");
+        }
+        return Stream.of(queue.status());
+    }
+
+    /**
+     * Calculate the affinity of a user for all active venues without writing anything, so that
+     * recommendations can be made on request from a read-only transaction
+     *
+     * @param user the user Node in question
+     * @param options maxRadius: only include distance contributions for venues within this many
+     *                meters; topK: only return the user's best topK venues, best first
+     */
+    @Procedure(value = "similarity.streamVenueAffinity", mode = Mode.READ)
+    @Description("similarity.streamVenueAffinity(user, {maxRadius: 0, topK: 0}) - return the affinity of the given user for all active venues without writing it")
+    public Stream<AffinityResult> streamVenueAffinity( @Name("user") Node user,
+                                                       @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        if (user == null) {
+            return Stream.empty();
+        }
+
+        Metrics.count(STREAM_VENUE_AFFINITY, "users", 1);
+        return Metrics.timeStream(STREAM_VENUE_AFFINITY, () -> new AffinityEngine(db, options).streamVenueAffinity(user));
+    }
+
+    /**
+     * Calculate the affinity of a user for all active artists without writing anything
+     *
+     * @param user the user Node in question
+     * @param options topK: only return the user's best topK artists, best first
+     */
+    @Procedure(value = "similarity.streamArtistAffinity", mode = Mode.READ)
+    @Description("similarity.streamArtistAffinity(user, {topK: 0}) - return the affinity of the given user for all active artists without writing it")
+    public Stream<AffinityResult> streamArtistAffinity( @Name("user") Node user,
+                                                        @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        if (user == null) {
+            return Stream.empty();
+        }
+
+        Metrics.count(STREAM_ARTIST_AFFINITY, "users", 1);
+        return Metrics.timeStream(STREAM_ARTIST_AFFINITY, () -> new AffinityEngine(db, options).streamArtistAffinity(user));
+    }
+
+    /**
+     * Calculate the affinity of a user for all future events without writing anything. The venue
+     * and artist affinities are calculated on the fly rather than read from existing
+     * HAS_AFFINITY_FOR relationships, falling back to popularityNorm as
+     * {@link #calculateAllEventAffinity} does.
+     *
+     * @param user the user Node in question
+     * @param options maxRadius: as for streamVenueAffinity; topK: only return the user's best topK
+     *                events, best first; minPopularity, dateProperty, fromDate and toDate: as for
+     *                calculateAllEventAffinity
+     */
+    @Procedure(value = "similarity.streamEventAffinity", mode = Mode.READ)
+    @Description("similarity.streamEventAffinity(user, {maxRadius: 0, topK: 0}) - return the affinity of the given user for all future events without writing it")
+    public Stream<AffinityResult> streamEventAffinity( @Name("user") Node user,
+                                                       @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        if (user == null) {
+            return Stream.empty();
+        }
+
+        Metrics.count(STREAM_EVENT_AFFINITY, "users", 1);
+        return Metrics.timeStream(STREAM_EVENT_AFFINITY, () -> new AffinityEngine(db, options).streamEventAffinity(user));
+    }
+
+    /**
+     * Calculate the venue, artist and event affinities of many users at once, splitting the users into
+     * chunks that are processed in parallel and committed separately
+     *
+     * @param users a list of user Nodes, or the name of a label whose nodes should all be processed
+     * @param options batchSize (users per commit, default 1000), concurrency (worker threads, default
+     *                the number of cores), proxyTracks (add PROXY_TRACKS first, default false),
+     *                venues / artists / events (which affinities to calculate, default true), and
+     *                retries (of a batch that fails with a transient error such as a deadlock,
+     *                default 3); the options are also passed on to the individual affinity calculations
+     */
+    @Procedure(value = "similarity.calculateAffinityBatch", mode = Mode.WRITE)
+    @Description("similarity.calculateAffinityBatch(users | label, {batchSize: 1000, concurrency: 4}) - calculate " +
+            "all affinities for many users in parallel, batched transactions")
+    public Stream<AffinityBatch.Result> calculateAffinityBatch(@Name("users") Object users,
+                                                               @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        return Metrics.time(CALCULATE_AFFINITY_BATCH, () -> {
+            AffinityBatch.Result result = new AffinityBatch(db, log, options).run(ChunkRunner.userIds(db, users));
+            Metrics.count(CALCULATE_AFFINITY_BATCH, "users", result.users);
+            Metrics.count(CALCULATE_AFFINITY_BATCH, "failedUsers", result.failedUsers);
+            return Stream.of(result);
+        });
+    }
+
+    /**
+     * Recalculate the affinities of every user, in partitions of consecutive node ids that are
+     * processed in parallel, recording a checkpoint as the partitions complete so that a rebuild
+     * interrupted by a restart or a failure resumes where it left off when it is run again
+     *
+     * @param options partitionSize (node ids per partition, default 100000), name (of the
+     *                checkpoint, default "default"), restart (ignore the checkpoint and rebuild all
+     *                users, default false), and the options of calculateAffinityBatch
+     */
+    @Procedure(value = "similarity.rebuildAffinities", mode = Mode.WRITE)
+    @Description("similarity.rebuildAffinities({partitionSize: 100000, batchSize: 1000, concurrency: 4}) - calculate " +
+            "all affinities of every user, resuming from the checkpoint of an interrupted rebuild")
+    public Stream<AffinityRebuild.Result> rebuildAffinities(@Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        return Metrics.time(REBUILD_AFFINITIES, () -> {
+            AffinityRebuild.Result result = new AffinityRebuild(db, log, options).run();
+            Metrics.count(REBUILD_AFFINITIES, "users", result.users);
+            Metrics.count(REBUILD_AFFINITIES, "failedPartitions", result.failedPartitions);
+            return Stream.of(result);
+        });
+    }
+
     /**
      * Add PROXY_TRACKS relationships for a given user; that is, a PROXY_TRACK relationship to any Artist that PLAYS
      * or Venue that HOSTS an Event which the user TRACKS
@@ -158,14 +426,41 @@ public class Affinity {
             return;
         }
 
+        Metrics.count(ADD_PROXY_TRACKS, "users", 1);
         Map<String, Object> params = new HashMap<>();
         params.put( "id", user.getProperty("id") );
 
-        db.execute("MATCH (u:User {id: {id}})-[:TRACKS]->(e:Event)<-[:HOSTS]-(v:Venue)\n" +
+        Metrics.time(ADD_PROXY_TRACKS, () -> execute(ADD_PROXY_TRACKS, null, "MATCH (u:User {id: {id}})-[:TRACKS]->(e:Event)<-[:HOSTS]-(v:Venue)\n" +
                 "OPTIONAL MATCH (e)<-[:PLAYS {roster: 0}]-(a:Artist)\n" +
                 "WHERE not(exists((u)-[:TRACKS]->(v))) AND not(exists((u)-[:TRACKS]->(a)))\n" +
                 "WITH u, collect(a) + collect(v) AS entities\n" +
-                "FOREACH (e IN entities | MERGE (u)-[:PROXY_TRACKS {proxy: true}]->(e))", params);
+                "FOREACH (e IN entities | MERGE (u)-[:PROXY_TRACKS {proxy: true}]->(e))", params));
+    }
+
+    /**
+     * Add the missing PROXY_TRACKS relationships of many users at once, as addProxyTracks would, and
+     * delete those that addProxyTracks would no longer add, in parallel, batched transactions
+     *
+     * @param users a list of user Nodes, or the name of a label whose nodes should all be processed
+     * @param options batchSize (users per commit, default 1000), concurrency (worker threads, default
+     *                the number of cores), removeStale (delete stale PROXY_TRACKS {proxy: true}
+     *                relationships, default true), and retries (of a batch that fails with a
+     *                transient error such as a deadlock, default 3)
+     */
+    @Procedure(value = "similarity.addProxyTracksBatch", mode = Mode.WRITE)
+    @Description("similarity.addProxyTracksBatch(users | label, {batchSize: 1000, concurrency: 4, removeStale: true}) - " +
+            "add missing and remove stale proxy tracks for many users in parallel, batched transactions")
+    public Stream<ProxyTracksBatch.Result> addProxyTracksBatch(@Name("users") Object users,
+                                                               @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        return Metrics.time(ADD_PROXY_TRACKS_BATCH, () -> {
+            ProxyTracksBatch.Result result = new ProxyTracksBatch(db, log, options).run(ChunkRunner.userIds(db, users));
+            Metrics.count(ADD_PROXY_TRACKS_BATCH, "users", result.users);
+            Metrics.count(ADD_PROXY_TRACKS_BATCH, "created", result.created);
+            Metrics.count(ADD_PROXY_TRACKS_BATCH, "deleted", result.deleted);
+            Metrics.count(ADD_PROXY_TRACKS_BATCH, "failedUsers", result.failedUsers);
+            return Stream.of(result);
+        });
     }
 
     /**
@@ -175,20 +470,32 @@ public class Affinity {
      * @param label the Node label to update
      * @param eightyPercentValue the threshold at wish the number of trackers should reach 80% of pareto maximum
      * @param maximumValue the maximum pareto value
+     * @param options engine: "native" (default) to calculate the pareto score in-process and only
+     *                write nodes whose value has changed, or "cypher" to run the original Cypher
+     *                statement, which needs APOC; batchSize: commit the nodes in separate
+     *                transactions of this many rather than in the caller's transaction, and
+     *                concurrency: the number of threads committing them (default the number of
+     *                cores; native engine only)
      */
     @Procedure(value = "similarity.addPopularityNorm", mode = Mode.WRITE)
     @Description("Create an affinity edge between the given user and all active venues")
     public void addPopularityNorm(@Name("label") String label,
                                   @Name("eightyPercentValue") long eightyPercentValue,
-                                  @Name("maximumValue") long maximumValue) {
+                                  @Name("maximumValue") long maximumValue,
+                                  @Name(value = "options", defaultValue = "{}") Map<String, Object> options) {
+
+        if ( ! "cypher".equals(Options.stringValue(options, "engine", "native"))) {
+            Metrics.time(ADD_POPULARITY_NORM, () -> new PopularityNorm(db, log, eightyPercentValue, maximumValue, options).run(label));
+            return;
+        }
 
         Map<String, Object> params = new HashMap<>();
         params.put( "eightyPercentValue", eightyPercentValue );
         params.put( "maximumValue", maximumValue );
         params.put( "maximumValueDouble", (double) maximumValue );
 
-        db.execute("MATCH (n:" + label + ")\n" +
-                "SET n.popularityNorm = 0.99999 + (0.00001 * (1 - apoc.scoring.pareto(0, {eightyPercentValue}, {maximumValue}, CASE WHEN n.trackers IS NULL THEN 0 ELSE n.trackers END) / {maximumValueDouble}))", params);
+        Metrics.time(ADD_POPULARITY_NORM, () -> execute(ADD_POPULARITY_NORM, null, "MATCH (n:" + label + ")\n" +
+                "SET n.popularityNorm = 0.99999 + (0.00001 * (1 - apoc.scoring.pareto(0, {eightyPercentValue}, {maximumValue}, CASE WHEN n.trackers IS NULL THEN 0 ELSE n.trackers END) / {maximumValueDouble}))", params));
     }
 
 
@@ -199,27 +506,28 @@ public class Affinity {
      * @param user the user Node in question
      * @param venue the venue Node for which we need to calculate affinity
      * @param useProxyTracks whether to use PROXY_TRACKS relationships (or calculate on the fly)
+     * @param options maxRadius, maxNMID, topN and epsilon: as for calculateAllVenueAffinity
      */
     @Procedure(value = "similarity.calculateVenueAffinity", mode = Mode.WRITE)
     @Description("Create an affinity edge between the given user and venue")
     public void calculateVenueAffinity( @Name("user") Node user,
                                         @Name("venue") Node venue,
-                                        @Name("useProxyTracks") boolean useProxyTracks)
+                                        @Name("useProxyTracks") boolean useProxyTracks,
+                                        @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
     {
-        // see if there's already a relationship there
-        Iterable<Relationship> rels = user.getRelationships(MyRelationshipTypes.HAS_AFFINITY_FOR, Direction.OUTGOING);
-        Relationship affinity = null;
+        Metrics.time(CALCULATE_VENUE_AFFINITY, () -> calculateVenueAffinityCore(user, venue, useProxyTracks, options));
+    }
 
-        for (Relationship a : rels) {
-            if (a.getEndNode().equals(venue)) {
-                affinity = a;
-                break;
-            }
-        }
+    private void calculateVenueAffinityCore(Node user, Node venue, boolean useProxyTracks, Map<String, Object> options)
+    {
+        // gather the contributions before writing anything, as writes to the user exclude the projection
+        Contribution contribution = new AffinityEngine(db, options).contribution(user, venue, MyLabels.Venue, useProxyTracks);
+
+        // see if there's already a relationship there
+        Relationship affinity = AffinityIndex.forDatabase(db).find(user, venue);
 
         // this is a new relationship
         if (affinity == null && user.hasProperty("latitude") && user.hasProperty("longitude") && venue.hasProperty("latitude") && venue.hasProperty("longitude")) {
-            affinity = user.createRelationshipTo(venue, MyRelationshipTypes.HAS_AFFINITY_FOR);
             double distanceM = distance(
                     (double) user.getProperty("latitude"),
                     (double) venue.getProperty("latitude"),
@@ -228,78 +536,113 @@ public class Affinity {
                     0.0,
                     0.0
                 );
-            affinity.setProperty("distanceM", distanceM);
-        }
-
-        ReachedVenueEvaluator rve = new ReachedVenueEvaluator(venue, useProxyTracks);
-        TrackExpander te = new TrackExpander(useProxyTracks);
-
-        TraversalDescription similarToTracks = db.traversalDescription()
-                .depthFirst()
-                .expand(te)
-                .evaluator(rve)
-                .uniqueness(Uniqueness.RELATIONSHIP_PATH);
-
-        double similarity;
-        long   count = 0;
-        double total = 0;
-        double prod = 1.0;
-        double min = 1.0;
-        long   proxyCount = 0;
-        double proxyTotal = 0;
-        double proxyProd = 1.0;
-        double proxyMin = 1.0;
-        boolean isProxyPath;
-        for (Path path : similarToTracks.traverse(user)) {
-            if ( ! useProxyTracks) {
-                isProxyPath = (path.length() > 2);
-            } else {
-                isProxyPath = false;
-            }
-            for (Relationship rel : path.relationships()) {
-                if (useProxyTracks && rel.isType(MyRelationshipTypes.PROXY_TRACKS)) {
-                    isProxyPath = true;
-                }
-                if (rel.isType(MyRelationshipTypes.SIMILAR_TO)) {
-                    similarity = (double) rel.getProperty("NMID");
-                    if ( ! isProxyPath) {
-                        count++;
-                        total += similarity;
-                        prod *= similarity;
-                        if (similarity < min) {
-                            min = similarity;
-                        }
-                    } else {
-                        proxyCount++;
-                        proxyTotal += similarity;
-                        proxyProd *= similarity;
-                        if (similarity < proxyMin) {
-                            proxyMin = similarity;
-                        }
-                    }
-                }
+            double maxRadius = Options.doubleValue(options, "maxRadius", 0);
+            if (maxRadius <= 0 || distanceM <= maxRadius) {
+                affinity = user.createRelationshipTo(venue, MyRelationshipTypes.HAS_AFFINITY_FOR);
+                Metrics.count(CALCULATE_VENUE_AFFINITY, "relationshipsCreated", 1);
+                affinity.setProperty("distanceM", distanceM);
             }
         }
 
-        if (count > 0) {
+        if ( ! contribution.isEmpty()) {
             if (affinity == null) {
                 affinity = user.createRelationshipTo(venue, MyRelationshipTypes.HAS_AFFINITY_FOR);
+                Metrics.count(CALCULATE_VENUE_AFFINITY, "relationshipsCreated", 1);
             }
-            affinity.setProperty("min", min);
-            affinity.setProperty("avg", total / count);
-            affinity.setProperty("prod", prod);
-            affinity.setProperty("count", count);
+            Metrics.count(CALCULATE_VENUE_AFFINITY, "paths", contribution.count + contribution.proxyCount);
+            PropertyWriter writer = new PropertyWriter(Options.doubleValue(options, "epsilon", PropertyWriter.DEFAULT_EPSILON));
+            contribution.write(affinity, writer);
+            writer.record(CALCULATE_VENUE_AFFINITY);
         }
+    }
 
-        if (proxyCount > 0) {
-            if (affinity == null) {
-                affinity = user.createRelationshipTo(venue, MyRelationshipTypes.HAS_AFFINITY_FOR);
+    /**
+     * Recalculate the affinity of a user for a single artist, following the same paths as
+     * calculateVenueAffinity with the headliners of tracked events in place of their hosts. Unlike
+     * calculateVenueAffinity, the combined affinity is set too and contributions that no longer
+     * have any paths are removed, so that the relationship ends up as calculateAllArtistAffinity
+     * would leave it; artists that the user TRACKS are left out, as they are there.
+     *
+     * @param user the user Node in question
+     * @param artist the artist Node for which we need to calculate affinity
+     * @param useProxyTracks whether to use PROXY_TRACKS relationships (or calculate on the fly)
+     * @param options maxNMID, topN and epsilon: as for calculateAllArtistAffinity
+     */
+    @Procedure(value = "similarity.calculateArtistAffinity", mode = Mode.WRITE)
+    @Description("Create or update the affinity edge between the given user and artist")
+    public void calculateArtistAffinity( @Name("user") Node user,
+                                         @Name("artist") Node artist,
+                                         @Name("useProxyTracks") boolean useProxyTracks,
+                                         @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        if (user == null || artist == null) {
+            return;
+        }
+
+        Metrics.time(CALCULATE_ARTIST_AFFINITY, () -> {
+            AffinityEngine engine = new AffinityEngine(db, options);
+            long paths = AffinityEngine.tracks(user, artist) ? 0 : engine.updateAffinity(user, artist, MyLabels.Artist, useProxyTracks);
+            engine.record(CALCULATE_ARTIST_AFFINITY, paths);
+        });
+    }
+
+    /**
+     * Recalculate the affinity of a user for a single event from the user's stored affinities with
+     * its hosts and headliners, as calculateAllEventAffinity would; so calculate those first
+     *
+     * @param user the user Node in question
+     * @param event the event Node for which we need to calculate affinity
+     * @param options minPopularity, dateProperty, fromDate, toDate and epsilon: as for
+     *                calculateAllEventAffinity; the event is only scored if that would score it
+     *                with the same options
+     */
+    @Procedure(value = "similarity.calculateEventAffinity", mode = Mode.WRITE)
+    @Description("Create or update the affinity edge between the given user and event")
+    public void calculateEventAffinity( @Name("user") Node user,
+                                        @Name("event") Node event,
+                                        @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        if (user == null || event == null) {
+            return;
+        }
+
+        Metrics.time(CALCULATE_EVENT_AFFINITY, () -> {
+            AffinityEngine engine = new AffinityEngine(db, options);
+            engine.updateEventAffinity(user, event);
+            engine.record(CALCULATE_EVENT_AFFINITY, 0);
+        });
+    }
+
+    /**
+     * Run a Cypher statement to completion, timing it as a stage of a procedure if stage is given,
+     * and adding the relationships it created and properties it set to the procedure's counters
+     */
+    private void execute(String procedure, String stage, String query, Map<String, Object> params)
+    {
+        long start = Metrics.start();
+        QueryStatistics statistics;
+        try (Result result = db.execute(query, params)) {
+            while (result.hasNext()) {
+                result.next();
             }
-            affinity.setProperty("proxyMin", proxyMin);
-            affinity.setProperty("proxyAvg", proxyTotal / proxyCount);
-            affinity.setProperty("proxyProd", proxyProd);
-            affinity.setProperty("proxyCount", proxyCount);
+            statistics = result.getQueryStatistics();
+        }
+        if (stage != null) {
+            Metrics.record(procedure + "/" + stage, start);
+        }
+        Metrics.count(procedure, "relationshipsCreated", statistics.getRelationshipsCreated());
+        Metrics.count(procedure, "propertiesSet", statistics.getPropertiesSet());
+    }
+
+    private static boolean isCypherEngine(Map<String, Object> options)
+    {
+        if ( ! "cypher".equals(Options.stringValue(options, "engine", "native"))) {
+            return false;
+        }
+        if (Options.intValue(options, "topK", 0) > 0) {
+            throw new IllegalArgumentException("The topK option is only supported by the native engine");
         }
+        return true;
     }
 
     /**
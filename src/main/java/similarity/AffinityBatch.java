@@ -0,0 +1,123 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.Map;
+
+/**
+ * Recomputes the affinities of many users at once. The users are split into chunks of
+ * {@code batchSize}, and each chunk is processed on a pool of worker threads in its own
+ * transaction, so that a failed chunk only rolls back the users within it. Chunks write to the
+ * same venues and artists, so a chunk that fails with a transient error, such as a deadlock
+ * between workers, is retried up to {@code retries} times; see {@link ChunkRunner}.
+ */
+public class AffinityBatch {
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private final Map<String, Object> options;
+
+    private final boolean proxyTracks;
+    private final boolean venues;
+    private final boolean artists;
+    private final boolean events;
+
+    public AffinityBatch(GraphDatabaseService db, Log log, Map<String, Object> options) {
+        this.db = Databases.unrestricted(db);
+        this.log = log;
+        this.options = options;
+        this.proxyTracks = Options.booleanValue(options, "proxyTracks", false);
+        this.venues = Options.booleanValue(options, "venues", true);
+        this.artists = Options.booleanValue(options, "artists", true);
+        this.events = Options.booleanValue(options, "events", true);
+    }
+
+    /**
+     * Recompute the affinities of the given users
+     *
+     * @param userIds the node ids of the users in question
+     * @return throughput statistics for the run
+     */
+    public Result run(long[] userIds) {
+        long start = System.currentTimeMillis();
+        ChunkRunner runner = new ChunkRunner(log, "Affinity batch", options);
+        runner.run(userIds, this::process);
+
+        Result result = new Result();
+        result.users = runner.users.get();
+        result.failedUsers = runner.failedUsers.get();
+        result.batches = runner.batches.get();
+        result.failedBatches = runner.failedBatches.get();
+        result.retriedBatches = runner.retriedBatches.get();
+        result.concurrency = runner.concurrency;
+        result.timeMs = System.currentTimeMillis() - start;
+        result.usersPerSecond = runner.usersPerSecond(result.timeMs);
+
+        log.info("Recomputed affinities for " + result.users + " users in " + result.timeMs + "ms (" +
+                result.failedUsers + " failed)");
+
+        return result;
+    }
+
+    /**
+     * Recompute the affinities of a chunk of users in one transaction
+     *
+     * @param chunk the node ids of the users in question
+     * @return the number of users processed, not counting those that have been deleted
+     */
+    int process(long[] chunk) {
+        int processed = 0;
+        Affinity affinity = new Affinity();
+        affinity.db = db;
+        affinity.log = log;
+
+        try (Transaction tx = db.beginTx()) {
+            for (long id : chunk) {
+                Node user;
+                try {
+                    user = db.getNodeById(id);
+                } catch (NotFoundException e) {
+                    // deleted since the users were listed
+                    continue;
+                }
+                processed++;
+                if (venues && artists && events) {
+                    affinity.refreshUser(user, proxyTracks, options);
+                    continue;
+                }
+                if (proxyTracks) {
+                    affinity.addProxyTracks(user);
+                }
+                if (venues) {
+                    affinity.calculateAllVenueAffinity(user, options);
+                }
+                if (artists) {
+                    affinity.calculateAllArtistAffinity(user, options);
+                }
+                if (events) {
+                    affinity.calculateAllEventAffinity(user, options);
+                }
+            }
+            tx.success();
+        }
+        return processed;
+    }
+
+    /**
+     * Throughput statistics returned by similarity.calculateAffinityBatch
+     */
+    public static class Result {
+        public long users;
+        public long failedUsers;
+        public long batches;
+        public long failedBatches;
+        public long retriedBatches;
+        public long concurrency;
+        public long timeMs;
+        public double usersPerSecond;
+    }
+}
@@ -0,0 +1,1184 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveIntSet;
+import org.neo4j.collection.primitive.PrimitiveLongCollection;
+import org.neo4j.collection.primitive.PrimitiveLongIntMap;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Core API implementation of the affinity calculations. Rather than running a Cypher
+ * statement per contribution, each of which re-matches the user and re-reads its affinities, the
+ * engine expands the user's TRACKS and PROXY_TRACKS neighbourhood once into accumulators keyed by
+ * target node id, and then writes each HAS_AFFINITY_FOR relationship once. When the in-memory
+ * {@link Projection} is loaded and current for the user, the neighbourhood is expanded from it
+ * rather than from the store.
+ */
+class AffinityEngine {
+
+    private final GraphDatabaseService db;
+
+    // only create distance contributions for venues within this many meters; zero for no limit
+    private final double maxRadius;
+
+    // as passed to the procedure, for the engines that score the venues and artists of events
+    private final Map<String, Object> options;
+
+    // only keep this many affinities per user and target label; zero for no limit
+    private final int topK;
+
+    // only follow the topN most similar SIMILAR_TO relationships of each venue or artist, and only
+    // those with an NMID of at most maxNMID; zero and infinity for no limit
+    private final int topN;
+    private final double maxNMID;
+
+    // also score the events of venues and artists the user has no affinity with whose popularityNorm
+    // is at least this, from their popularity; by default any popularityNorm will do, as in the Cypher
+    // statement, and NaN scores only the events of the user's affinities
+    private final double minPopularity;
+
+    // the venues and artists whose popularityNorm reaches minPopularity, found on first use
+    private long[] popularTargets;
+
+    // only score events whose dateProperty falls within [fromDate, toDate]; NaN for no limit
+    private final String dateProperty;
+    private final double fromDate;
+    private final double toDate;
+
+    // the affinity property of each venue and artist affinity written, kept while refreshing a user
+    // so that event affinities can be combined without reading them back; null otherwise
+    private TargetScores written;
+
+    // sets only the properties that have changed by more than the epsilon option
+    private final PropertyWriter writer;
+
+    // relationships written since the last call to record
+    private long created;
+    private long updated;
+    private long deleted;
+
+    AffinityEngine(GraphDatabaseService db, Map<String, Object> options) {
+        this.db = db;
+        this.options = options;
+        this.maxRadius = Options.doubleValue(options, "maxRadius", 0);
+        this.topK = Math.max(0, Options.intValue(options, "topK", 0));
+        this.topN = Math.max(0, Options.intValue(options, "topN", 0));
+        this.maxNMID = Options.doubleValue(options, "maxNMID", Double.POSITIVE_INFINITY);
+        this.minPopularity = Options.doubleValue(options, "minPopularity", Double.NEGATIVE_INFINITY);
+        this.dateProperty = Options.stringValue(options, "dateProperty", "date");
+        this.fromDate = Options.doubleValue(options, "fromDate", Double.NaN);
+        this.toDate = Options.doubleValue(options, "toDate", Double.NaN);
+        this.writer = new PropertyWriter(Options.doubleValue(options, "epsilon", PropertyWriter.DEFAULT_EPSILON));
+    }
+
+    /**
+     * Calculate the affinity of a user for all active venues; produces the same relationships and
+     * properties as the Cypher implementation in {@link Affinity#calculateAllVenueAffinity}
+     *
+     * @param user the user Node in question
+     */
+    void calculateAllVenueAffinity(Node user) {
+        writeVenueAffinity(Affinity.CALCULATE_ALL_VENUE_AFFINITY, user, accumulate(user, MyLabels.Venue), existingAffinities(user));
+    }
+
+    private void writeVenueAffinity(String procedure, Node user, PrimitiveLongObjectMap<Contribution> contributions,
+                                    PrimitiveLongObjectMap<Relationship> affinities) {
+        VenueGrid.Hits venues = nearbyVenues(user);
+
+        if (topK > 0) {
+            keepTopK(user, MyLabels.Venue, contributions, affinities, venues);
+            record(procedure, contributions);
+            return;
+        }
+
+        // calculate Cartesian distance contribution for nearby venues we have no affinity with yet
+        for (int i = 0; i < venues.size; i++) {
+            long venueId = venues.ids[i];
+            if (affinities.containsKey(venueId)) {
+                continue;
+            }
+            Node venue;
+            try {
+                venue = db.getNodeById(venueId);
+            } catch (NotFoundException e) {
+                // deleted by a transaction that the grid has not caught up with yet
+                continue;
+            }
+
+            Relationship affinity = user.createRelationshipTo(venue, MyRelationshipTypes.HAS_AFFINITY_FOR);
+            created++;
+            writer.set(affinity, "distanceM", venues.distances[i]);
+            writer.set(affinity, "distanceNorm", Scores.distanceNorm(venues.distances[i]));
+            affinities.put(venueId, affinity);
+        }
+
+        // write TRACKS and PROXY_TRACKS contributions
+        write(user, contributions, affinities);
+
+        // calculate combined affinity score
+        combine(MyLabels.Venue, contributions, affinities);
+        record(procedure, contributions);
+    }
+
+    /**
+     * Calculate the affinity of a user for all active artists; produces the same relationships and
+     * properties as the Cypher implementation in {@link Affinity#calculateAllArtistAffinity}
+     *
+     * @param user the user Node in question
+     */
+    void calculateAllArtistAffinity(Node user) {
+        writeArtistAffinity(Affinity.CALCULATE_ALL_ARTIST_AFFINITY, user, accumulate(user, MyLabels.Artist), existingAffinities(user));
+    }
+
+    private void writeArtistAffinity(String procedure, Node user, PrimitiveLongObjectMap<Contribution> contributions,
+                                     PrimitiveLongObjectMap<Relationship> affinities) {
+        if (topK > 0) {
+            keepTopK(user, MyLabels.Artist, contributions, affinities, new VenueGrid.Hits());
+            record(procedure, contributions);
+            return;
+        }
+
+        // write TRACKS and PROXY_TRACKS contributions
+        write(user, contributions, affinities);
+
+        // calculate combined affinity score
+        combine(MyLabels.Artist, contributions, affinities);
+        record(procedure, contributions);
+    }
+
+    /**
+     * Calculate the affinity of a user for future events from the user's venue and artist
+     * affinities, as the Cypher implementation in {@link Affinity#calculateAllEventAffinity} does:
+     * the affinity for an event hosted by venue v and headlined by artist a is
+     * {@code 1-((1-artistAffinity)*(1-venueAffinity))}, where each falls back to the popularityNorm
+     * of the venue or artist that the user has no affinity with. Rather than matching every event
+     * and checking it against the user, the candidates are found by walking from the venues and
+     * artists that the user has affinities with, and from those with a popularityNorm of at least
+     * minPopularity, which by default is any. Where an event has several hosts or headliners the
+     * best combination is used, and a combination without an affinity or popularity on either side
+     * is skipped.
+     *
+     * @param user the user Node in question
+     */
+    void calculateAllEventAffinity(Node user) {
+        PrimitiveLongSet tracked = Primitive.longSet();
+        for (Relationship track : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.TRACKS)) {
+            tracked.add(track.getEndNode().getId());
+        }
+        writeEventAffinity(Affinity.CALCULATE_ALL_EVENT_AFFINITY, user, tracked, existingAffinities(user));
+    }
+
+    private void writeEventAffinity(String procedure, Node user, PrimitiveLongSet tracked, PrimitiveLongObjectMap<Relationship> affinities) {
+        long[] candidates = candidateEvents(tracked, affinities);
+        LongFunction<Relationship> affinity = affinities::get;
+        for (long eventId : candidates) {
+            if (tracked.contains(eventId)) {
+                continue;
+            }
+            writeEventAffinity(user, db.getNodeById(eventId), tracked, affinity);
+        }
+
+        Metrics.Metric metric = Metrics.get(procedure);
+        metric.count("candidates", candidates.length);
+        metric.count("relationshipsCreated", created);
+        metric.count("relationshipsUpdated", updated);
+        writer.record(procedure);
+        created = updated = 0;
+    }
+
+    /**
+     * Write the affinity of a user for one event that the user does not track, from the best
+     * combination of its hosts and headliners that the user does not track either
+     *
+     * @param affinities the user's affinity with a target, by node id, or null if there is none
+     */
+    private void writeEventAffinity(Node user, Node event, PrimitiveLongSet tracked, LongFunction<Relationship> affinities) {
+        if ( ! event.hasLabel(MyLabels.Future) || ! isWithinDates(event)) {
+            return;
+        }
+
+        double venueAffinity = Double.NaN;
+        double artistAffinity = Double.NaN;
+        double best = Double.NaN;
+        for (Relationship plays : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.PLAYS)) {
+            Node artist = plays.getStartNode();
+            if ( ! isHeadliner(plays) || tracked.contains(artist.getId())) {
+                continue;
+            }
+            for (Relationship hosts : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.HOSTS)) {
+                Node venue = hosts.getStartNode();
+                if (tracked.contains(venue.getId())) {
+                    continue;
+                }
+                double v = affinityOrPopularity(affinities, venue);
+                double a = affinityOrPopularity(affinities, artist);
+                double affinity = 1 - ((1 - a) * (1 - v));
+                if ( ! Double.isNaN(affinity) && (Double.isNaN(best) || affinity < best)) {
+                    venueAffinity = v;
+                    artistAffinity = a;
+                    best = affinity;
+                }
+            }
+        }
+        if (Double.isNaN(best)) {
+            return;
+        }
+
+        Relationship affinity = affinities.apply(event.getId());
+        boolean isNew = affinity == null;
+        if (isNew) {
+            affinity = user.createRelationshipTo(event, MyRelationshipTypes.HAS_AFFINITY_FOR);
+            created++;
+        }
+        long before = writer.written();
+        writer.set(affinity, "artistAffinity", artistAffinity);
+        writer.set(affinity, "venueAffinity", venueAffinity);
+        writer.set(affinity, "affinity", best);
+        if ( ! isNew && writer.written() > before) {
+            updated++;
+        }
+    }
+
+    /**
+     * The events hosted by the venues and headlined by the artists that the user does not track and
+     * either has an affinity with or that are at least minPopularity popular
+     *
+     * @param affinities the node ids of the venues and artists that the user has affinities with
+     */
+    private long[] candidateEvents(PrimitiveLongSet tracked, PrimitiveLongCollection... affinities) {
+        PrimitiveLongSet targets = Primitive.longSet();
+        PrimitiveLongSet events = Primitive.longSet();
+        LongArray candidates = new LongArray();
+        for (PrimitiveLongCollection targetIds : affinities) {
+            targetIds.visitKeys(targetId -> {
+                if ( ! tracked.contains(targetId) && targets.add(targetId)) {
+                    addEvents(db.getNodeById(targetId), events, candidates);
+                }
+                return false;
+            });
+        }
+        if ( ! Double.isNaN(minPopularity)) {
+            for (long targetId : popularTargets()) {
+                if ( ! tracked.contains(targetId) && targets.add(targetId)) {
+                    addEvents(db.getNodeById(targetId), events, candidates);
+                }
+            }
+        }
+        return candidates.toArray();
+    }
+
+    // the events a venue hosts or an artist headlines that are not in events yet
+    private static void addEvents(Node target, PrimitiveLongSet events, LongArray candidates) {
+        for (Relationship rel : target.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HOSTS, MyRelationshipTypes.PLAYS)) {
+            if (rel.isType(MyRelationshipTypes.PLAYS) && ! isHeadliner(rel)) {
+                continue;
+            }
+            long eventId = rel.getEndNode().getId();
+            if (events.add(eventId)) {
+                candidates.add(eventId);
+            }
+        }
+    }
+
+    private long[] popularTargets() {
+        if (popularTargets == null) {
+            LongArray targets = new LongArray();
+            for (Label label : new Label[] {MyLabels.Venue, MyLabels.Artist}) {
+                try (ResourceIterator<Node> nodes = db.findNodes(label)) {
+                    while (nodes.hasNext()) {
+                        Node node = nodes.next();
+                        if (isPopular(node)) {
+                            targets.add(node.getId());
+                        }
+                    }
+                }
+            }
+            popularTargets = targets.toArray();
+        }
+        return popularTargets;
+    }
+
+    // a venue or artist whose popularityNorm reaches minPopularity, which none does if it is NaN
+    private boolean isPopular(Node target) {
+        if ( ! target.hasLabel(MyLabels.Venue) && ! target.hasLabel(MyLabels.Artist)) {
+            return false;
+        }
+        Object popularity = target.getProperty("popularityNorm", null);
+        return popularity instanceof Number && ((Number) popularity).doubleValue() >= minPopularity;
+    }
+
+    private boolean isWithinDates(Node event) {
+        if (Double.isNaN(fromDate) && Double.isNaN(toDate)) {
+            return true;
+        }
+        Object date = event.getProperty(dateProperty, null);
+        if ( ! (date instanceof Number)) {
+            return false;
+        }
+        double value = ((Number) date).doubleValue();
+        return ! (value < fromDate) && ! (value > toDate);
+    }
+
+    /**
+     * The affinity property of the user's affinity with a venue or artist, as the Cypher
+     * implementation reads it, or the popularityNorm of the venue or artist if there is none
+     */
+    private double affinityOrPopularity(LongFunction<Relationship> affinities, Node target) {
+        if (written != null && written.contains(target.getId())) {
+            return written.get(target.getId());
+        }
+        Relationship affinity = affinities.apply(target.getId());
+        Object value = affinity == null ? null : affinity.getProperty("affinity", null);
+        if (value == null) {
+            value = target.getProperty("popularityNorm", null);
+        }
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * Refresh all of a user's affinities, with the same results as similarity.addProxyTracks followed
+     * by {@link #calculateAllVenueAffinity}, {@link #calculateAllArtistAffinity} and
+     * {@link #calculateAllEventAffinity}, but in a single pass: the user's TRACKS, PROXY_TRACKS and
+     * HAS_AFFINITY_FOR relationships are read once, the SIMILAR_TO relationships of each tracked
+     * venue or artist are expanded once for both venue and artist contributions, and the event
+     * affinities are combined from the venue and artist affinities as they are written rather than
+     * read back from the relationships.
+     *
+     * @param user the user Node in question
+     * @param proxyTracks whether to add PROXY_TRACKS relationships first
+     */
+    void refreshUser(Node user, boolean proxyTracks) {
+        PrimitiveLongSet tracked = Primitive.longSet();
+        PrimitiveLongSet proxied = Primitive.longSet();
+        LongArray trackedEvents = new LongArray();
+        PrimitiveLongObjectMap<Relationship> affinities = Primitive.longObjectMap();
+
+        // every path starts from one of these, as in accumulateFromStore
+        LongArray sources = new LongArray();
+        LongArray proxySources = new LongArray();
+
+        for (Relationship rel : user.getRelationships(Direction.OUTGOING,
+                MyRelationshipTypes.TRACKS, MyRelationshipTypes.PROXY_TRACKS, MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+            Node target = rel.getEndNode();
+            if (rel.isType(MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+                affinities.put(target.getId(), rel);
+            } else if (rel.isType(MyRelationshipTypes.TRACKS)) {
+                tracked.add(target.getId());
+                sources.add(target.getId());
+                if (target.hasLabel(MyLabels.Event)) {
+                    trackedEvents.add(target.getId());
+                }
+            } else {
+                if (Boolean.TRUE.equals(rel.getProperty("proxy", null))) {
+                    proxied.add(target.getId());
+                }
+                proxySources.add(target.getId());
+            }
+        }
+
+        if (proxyTracks) {
+            addProxyTracks(user, tracked, trackedEvents, proxied, proxySources);
+        }
+
+        PrimitiveLongObjectMap<Contribution> venues;
+        PrimitiveLongObjectMap<Contribution> artists;
+        Projection projection = Projection.forUser(db, user);
+        if (projection != null) {
+            venues = accumulate(projection, projection.indexOf(user.getId()), MyLabels.Venue);
+            artists = accumulate(projection, projection.indexOf(user.getId()), MyLabels.Artist);
+        } else {
+            Expansion venueExpansion = new Expansion(MyLabels.Venue, tracked);
+            Expansion artistExpansion = new Expansion(MyLabels.Artist, tracked);
+            expand(sources, false, venueExpansion, artistExpansion);
+            expand(proxySources, true, venueExpansion, artistExpansion);
+            venues = venueExpansion.contributions;
+            artists = artistExpansion.contributions;
+        }
+
+        written = new TargetScores();
+        try {
+            writeVenueAffinity(Affinity.REFRESH_USER, user, venues, affinities);
+            writeArtistAffinity(Affinity.REFRESH_USER, user, artists, affinities);
+            writeEventAffinity(Affinity.REFRESH_USER, user, tracked, affinities);
+        } finally {
+            written = null;
+        }
+    }
+
+    /**
+     * Add the PROXY_TRACKS relationships that similarity.addProxyTracks would: to every venue that
+     * hosts an event the user tracks, and to the headliners of the event unless the user tracks
+     * either the venue or the headliner
+     *
+     * @param proxied the targets of the user's existing PROXY_TRACKS {proxy: true} relationships,
+     *                which new targets are added to
+     * @param proxySources the targets of all of the user's PROXY_TRACKS relationships, which new
+     *                     targets are added to
+     */
+    private void addProxyTracks(Node user, PrimitiveLongSet tracked, LongArray trackedEvents,
+                                PrimitiveLongSet proxied, LongArray proxySources) {
+        LongArray targets = new LongArray();
+        for (int i = 0; i < trackedEvents.size(); i++) {
+            Node event = db.getNodeById(trackedEvents.get(i));
+            for (Relationship hosts : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.HOSTS)) {
+                Node venue = hosts.getStartNode();
+                if ( ! venue.hasLabel(MyLabels.Venue)) {
+                    continue;
+                }
+                targets.add(venue.getId());
+                if (tracked.contains(venue.getId())) {
+                    continue;
+                }
+                for (Relationship plays : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.PLAYS)) {
+                    Node artist = plays.getStartNode();
+                    if (isHeadliner(plays) && artist.hasLabel(MyLabels.Artist) && ! tracked.contains(artist.getId())) {
+                        targets.add(artist.getId());
+                    }
+                }
+            }
+        }
+
+        long added = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            long targetId = targets.get(i);
+            if (proxied.add(targetId)) {
+                Relationship proxy = user.createRelationshipTo(db.getNodeById(targetId), MyRelationshipTypes.PROXY_TRACKS);
+                proxy.setProperty("proxy", true);
+                proxySources.add(targetId);
+                added++;
+            }
+        }
+        Metrics.count(Affinity.REFRESH_USER, "proxyTracksCreated", added);
+    }
+
+    /**
+     * Follow the SIMILAR_TO relationships of each source once, for the expansions of every label
+     * that the source has
+     */
+    private void expand(LongArray sources, boolean isProxyPath, Expansion venues, Expansion artists) {
+        for (int i = 0; i < sources.size(); i++) {
+            Node source = db.getNodeById(sources.get(i));
+            boolean isVenue = source.hasLabel(MyLabels.Venue);
+            boolean isArtist = source.hasLabel(MyLabels.Artist);
+            if ( ! isVenue && ! isArtist) {
+                continue;
+            }
+            if (isPruned()) {
+                NeighbourCache.Neighbours neighbours = NeighbourCache.forDatabase(db).neighbours(source);
+                for (int n = 0, end = neighbours.limit(maxNMID, topN); n < end; n++) {
+                    if (isVenue) {
+                        venues.add(db, neighbours.targets[n], neighbours.nmids[n], isProxyPath);
+                    }
+                    if (isArtist) {
+                        artists.add(db, neighbours.targets[n], neighbours.nmids[n], isProxyPath);
+                    }
+                }
+                continue;
+            }
+            for (Relationship similar : source.getRelationships(MyRelationshipTypes.SIMILAR_TO)) {
+                if (isVenue) {
+                    venues.add(source, similar, isProxyPath);
+                }
+                if (isArtist) {
+                    artists.add(source, similar, isProxyPath);
+                }
+            }
+        }
+    }
+
+    // whether only the strongest SIMILAR_TO relationships are followed
+    private boolean isPruned() {
+        return topN > 0 || maxNMID < Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Calculate the affinity of a user for all active venues without writing anything; each target
+     * that would be given an affinity is returned with the properties that
+     * {@link #calculateAllVenueAffinity} would write for a user with no existing affinities
+     *
+     * @param user the user Node in question
+     * @return the affinities, best first if topK is set and otherwise in no particular order
+     */
+    Stream<AffinityResult> streamVenueAffinity(Node user) {
+        return stream(user, MyLabels.Venue, nearbyVenues(user));
+    }
+
+    /**
+     * Calculate the affinity of a user for all active artists without writing anything
+     *
+     * @param user the user Node in question
+     * @return the affinities, best first if topK is set and otherwise in no particular order
+     */
+    Stream<AffinityResult> streamArtistAffinity(Node user) {
+        return stream(user, MyLabels.Artist, new VenueGrid.Hits());
+    }
+
+    /**
+     * Calculate the affinity of a user for all future events without writing anything, combining
+     * the venue and artist affinities that {@link #streamVenueAffinity} and
+     * {@link #streamArtistAffinity} would return, or the popularityNorm of the venue or artist when
+     * there is none. Where an event has several hosts or headliners the best combination is used.
+     * The events are the candidates, within the dates, that {@link #calculateAllEventAffinity} would
+     * score given those venue and artist affinities.
+     *
+     * @param user the user Node in question
+     * @return the affinities, best first if topK is set and otherwise in no particular order
+     */
+    Stream<AffinityResult> streamEventAffinity(Node user) {
+        PrimitiveLongSet tracked = Primitive.longSet();
+        for (Relationship track : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.TRACKS)) {
+            tracked.add(track.getEndNode().getId());
+        }
+        TargetScores venues = scores(user, MyLabels.Venue, nearbyVenues(user));
+        TargetScores artists = scores(user, MyLabels.Artist, new VenueGrid.Hits());
+
+        Stream<AffinityResult> results = Arrays.stream(candidateEvents(tracked, venues.index, artists.index))
+                .mapToObj(db::getNodeById)
+                .filter(event -> event.hasLabel(MyLabels.Future) && isWithinDates(event))
+                .map(event -> eventAffinity(event, tracked, venues, artists))
+                .filter(Objects::nonNull);
+
+        if (topK <= 0) {
+            return results;
+        }
+        AffinityHeap heap = new AffinityHeap(topK);
+        PrimitiveLongObjectMap<AffinityResult> best = Primitive.longObjectMap();
+        try (Stream<AffinityResult> all = results) {
+            all.forEach(result -> {
+                if (heap.offer(result.node.getId(), result.affinity)) {
+                    best.put(result.node.getId(), result);
+                }
+            });
+        }
+        heap.sort();
+        return IntStream.range(0, heap.size()).mapToObj(i -> best.get(heap.id(i)));
+    }
+
+    private AffinityResult eventAffinity(Node event, PrimitiveLongSet tracked, TargetScores venues, TargetScores artists) {
+        if (tracked.contains(event.getId())) {
+            return null;
+        }
+
+        AffinityResult result = null;
+        for (Relationship plays : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.PLAYS)) {
+            Node artist = plays.getStartNode();
+            if ( ! isHeadliner(plays) || tracked.contains(artist.getId())) {
+                continue;
+            }
+            for (Relationship hosts : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.HOSTS)) {
+                Node venue = hosts.getStartNode();
+                if (tracked.contains(venue.getId())) {
+                    continue;
+                }
+                double venueAffinity = venues.affinityOrPopularity(venue);
+                double artistAffinity = artists.affinityOrPopularity(artist);
+                double affinity = 1 - ((1 - artistAffinity) * (1 - venueAffinity));
+                if ( ! Double.isNaN(affinity) && (result == null || affinity < result.affinity)) {
+                    if (result == null) {
+                        result = new AffinityResult();
+                        result.node = event;
+                    }
+                    result.artistAffinity = artistAffinity;
+                    result.venueAffinity = venueAffinity;
+                    result.affinity = affinity;
+                }
+            }
+        }
+        return result;
+    }
+
+    // (a)-[:PLAYS {roster: 0}]->(e)
+    static boolean isHeadliner(Relationship plays) {
+        Object roster = plays.getProperty("roster", null);
+        return roster instanceof Number && ((Number) roster).doubleValue() == 0;
+    }
+
+    private Stream<AffinityResult> stream(Node user, MyLabels label, VenueGrid.Hits venues) {
+        PrimitiveLongObjectMap<Contribution> contributions = accumulate(user, label);
+
+        PrimitiveLongIntMap nearby = Primitive.longIntMap();
+        LongArray targets = new LongArray();
+        for (int i = 0; i < venues.size; i++) {
+            nearby.put(venues.ids[i], i);
+            targets.add(venues.ids[i]);
+        }
+        contributions.visitKeys(targetId -> {
+            if ( ! nearby.containsKey(targetId)) {
+                targets.add(targetId);
+            }
+            return false;
+        });
+
+        LongFunction<AffinityResult> result = targetId -> {
+            AffinityResult row = new AffinityResult();
+            row.node = db.getNodeById(targetId);
+            double distanceNorm = Double.NaN;
+            if (nearby.containsKey(targetId)) {
+                row.distanceM = venues.distances[nearby.get(targetId)];
+                row.distanceNorm = distanceNorm = Scores.distanceNorm(row.distanceM);
+            }
+            Contribution contribution = contributions.get(targetId);
+            if (contribution != null) {
+                contribution.fill(row);
+            }
+            row.affinity = score(label, null, contribution, distanceNorm);
+            return row;
+        };
+
+        if (topK <= 0) {
+            return IntStream.range(0, targets.size())
+                    .mapToObj(i -> result.apply(targets.get(i)))
+                    .filter(row -> row.affinity != 1.0);
+        }
+
+        AffinityHeap heap = new AffinityHeap(topK);
+        for (int i = 0; i < targets.size(); i++) {
+            long targetId = targets.get(i);
+            int hit = nearby.containsKey(targetId) ? nearby.get(targetId) : -1;
+            offer(heap, targetId, score(label, null, contributions.get(targetId),
+                    hit >= 0 ? Scores.distanceNorm(venues.distances[hit]) : Double.NaN));
+        }
+        heap.sort();
+        return IntStream.range(0, heap.size()).mapToObj(i -> result.apply(heap.id(i)));
+    }
+
+    /**
+     * The affinities that {@link #stream} would return with the same options, but without topK,
+     * keyed by target node id
+     */
+    private TargetScores scores(Node user, MyLabels label, VenueGrid.Hits venues) {
+        Map<String, Object> unlimited = options == null ? new HashMap<>() : new HashMap<>(options);
+        unlimited.remove("topK");
+        TargetScores scores = new TargetScores();
+        try (Stream<AffinityResult> results = new AffinityEngine(db, unlimited).stream(user, label, venues)) {
+            results.forEach(result -> scores.put(result.node.getId(), result.affinity));
+        }
+        return scores;
+    }
+
+    /**
+     * A map of target node id to affinity, without boxing
+     */
+    private static class TargetScores {
+        private final PrimitiveLongIntMap index = Primitive.longIntMap();
+        private double[] affinities = new double[16];
+
+        void put(long targetId, double affinity) {
+            if (index.containsKey(targetId)) {
+                affinities[index.get(targetId)] = affinity;
+                return;
+            }
+            int i = index.size();
+            if (i == affinities.length) {
+                affinities = Arrays.copyOf(affinities, i * 2);
+            }
+            affinities[i] = affinity;
+            index.put(targetId, i);
+        }
+
+        boolean contains(long targetId) {
+            return index.containsKey(targetId);
+        }
+
+        double get(long targetId) {
+            return affinities[index.get(targetId)];
+        }
+
+        // as the Cypher statement, which falls back to popularityNorm for targets without an affinity
+        double affinityOrPopularity(Node target) {
+            if (index.containsKey(target.getId())) {
+                return affinities[index.get(target.getId())];
+            }
+            Object popularity = target.getProperty("popularityNorm", null);
+            return popularity instanceof Number ? ((Number) popularity).doubleValue() : Double.NaN;
+        }
+    }
+
+    private VenueGrid.Hits nearbyVenues(Node user) {
+        if (user.getProperty("latitude", null) instanceof Number && user.getProperty("longitude", null) instanceof Number) {
+            return VenueGrid.forDatabase(db).within(
+                    ((Number) user.getProperty("latitude")).doubleValue(),
+                    ((Number) user.getProperty("longitude")).doubleValue(),
+                    maxRadius);
+        }
+        return new VenueGrid.Hits();
+    }
+
+    private void combine(MyLabels label, PrimitiveLongObjectMap<Contribution> contributions, PrimitiveLongObjectMap<Relationship> affinities) {
+        affinities.visitEntries((targetId, affinity) -> {
+            Contribution contribution = contributions.get(targetId);
+            if (contribution == null && ! isActive(affinity.getEndNode(), label)) {
+                return false;
+            }
+            double targetAffinity = score(label, affinity, contribution, Double.NaN);
+            if (targetAffinity != 1.0) {
+                writer.set(affinity, "affinity", targetAffinity);
+                if (written != null) {
+                    written.put(targetId, targetAffinity);
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Rank every candidate target by its combined affinity in a bounded heap, then write only the
+     * best topK and delete the user's affinities for any other targets with the label
+     *
+     * @param venues distance contributions for venues the user has no affinity with yet
+     */
+    private void keepTopK(Node user, MyLabels label, PrimitiveLongObjectMap<Contribution> contributions,
+                          PrimitiveLongObjectMap<Relationship> affinities, VenueGrid.Hits venues) {
+        AffinityHeap heap = new AffinityHeap(topK);
+
+        // existing affinities, updated with any new contributions
+        affinities.visitEntries((targetId, affinity) -> {
+            Contribution contribution = contributions.get(targetId);
+            if (contribution != null || isActive(affinity.getEndNode(), label)) {
+                offer(heap, targetId, score(label, affinity, contribution, Double.NaN));
+            }
+            return false;
+        });
+
+        // new distance contributions, with any similarity contributions to the same venue
+        PrimitiveLongIntMap nearby = Primitive.longIntMap();
+        for (int i = 0; i < venues.size; i++) {
+            long venueId = venues.ids[i];
+            if ( ! affinities.containsKey(venueId)) {
+                nearby.put(venueId, i);
+                offer(heap, venueId, score(label, null, contributions.get(venueId), Scores.distanceNorm(venues.distances[i])));
+            }
+        }
+
+        // new similarity contributions
+        contributions.visitEntries((targetId, contribution) -> {
+            if ( ! affinities.containsKey(targetId) && ! nearby.containsKey(targetId)) {
+                offer(heap, targetId, score(label, null, contribution, Double.NaN));
+            }
+            return false;
+        });
+
+        // delete the affinities that are no longer among the best
+        PrimitiveLongSet best = heap.idSet();
+        LongArray removed = new LongArray();
+        affinities.visitEntries((targetId, affinity) -> {
+            if ( ! best.contains(targetId) && affinity.getEndNode().hasLabel(label)) {
+                affinity.delete();
+                removed.add(targetId);
+                deleted++;
+            }
+            return false;
+        });
+        for (int i = 0; i < removed.size(); i++) {
+            affinities.remove(removed.get(i));
+        }
+
+        for (int i = 0; i < heap.size(); i++) {
+            long targetId = heap.id(i);
+            Relationship affinity = affinities.get(targetId);
+            boolean isNew = affinity == null;
+            if (isNew) {
+                Node target;
+                try {
+                    target = db.getNodeById(targetId);
+                } catch (NotFoundException e) {
+                    // deleted by a transaction that the grid has not caught up with yet
+                    continue;
+                }
+                affinity = user.createRelationshipTo(target, MyRelationshipTypes.HAS_AFFINITY_FOR);
+                affinities.put(targetId, affinity);
+                created++;
+            }
+            long before = writer.written();
+            if (nearby.containsKey(targetId)) {
+                double distanceM = venues.distances[nearby.get(targetId)];
+                writer.set(affinity, "distanceM", distanceM);
+                writer.set(affinity, "distanceNorm", Scores.distanceNorm(distanceM));
+            }
+            Contribution contribution = contributions.get(targetId);
+            if (contribution != null) {
+                contribution.write(affinity, writer);
+            }
+            writer.set(affinity, "affinity", heap.affinity(i));
+            if ( ! isNew && writer.written() > before) {
+                updated++;
+            }
+            if (written != null) {
+                written.put(targetId, heap.affinity(i));
+            }
+        }
+    }
+
+    // targets without any affinity are never ranked, just as they are not given an affinity property
+    private static void offer(AffinityHeap heap, long targetId, double affinity) {
+        if (affinity != 1.0 && ! Double.isNaN(affinity)) {
+            heap.offer(targetId, affinity);
+        }
+    }
+
+    /**
+     * The combined affinity of a user for a target, from the new contributions where there are any
+     * and otherwise from the properties already on the affinity relationship
+     *
+     * @param affinity the existing affinity relationship, or null
+     * @param contribution the new SIMILAR_TO contributions, or null
+     * @param distanceNorm a new distance contribution, or NaN to use the existing one
+     */
+    private static double score(MyLabels label, Relationship affinity, Contribution contribution, double distanceNorm) {
+        if (label == MyLabels.Artist) {
+            double prod = contribution != null && contribution.count > 0 ? contribution.prod : doubleProperty(affinity, "prod");
+            double proxyProd = contribution != null && contribution.proxyCount > 0 ? contribution.proxyProd : doubleProperty(affinity, "proxyProd");
+            return Scores.artistAffinity(prod, proxyProd);
+        }
+        double avg = contribution != null && contribution.count > 0 ? contribution.avg() : doubleProperty(affinity, "avg");
+        double proxyAvg = contribution != null && contribution.proxyCount > 0 ? contribution.proxyAvg() : doubleProperty(affinity, "proxyAvg");
+        return Scores.venueAffinity(Double.isNaN(distanceNorm) ? doubleProperty(affinity, "distanceNorm") : distanceNorm, avg, proxyAvg);
+    }
+
+    /**
+     * Gather the NMID of the SIMILAR_TO relationships on the paths from a user to a single venue or
+     * artist, as followed by {@link TargetPaths}, from the projection where it has the paths or
+     * from the store; only the SIMILAR_TO relationships within the maxNMID and topN options are followed
+     *
+     * @param user the User node in question
+     * @param target the venue or artist Node for which we need to calculate affinity
+     * @param label Venue or Artist
+     * @param useProxyTracks whether to use PROXY_TRACKS relationships (or calculate on the fly)
+     */
+    Contribution contribution(Node user, Node target, MyLabels label, boolean useProxyTracks) {
+        Contribution contribution = new Contribution();
+
+        // the projection has no PLAYS, so artist proxies can only be found on the fly from the store
+        Projection projection = useProxyTracks || label == MyLabels.Venue ? Projection.forUser(db, user) : null;
+        if (projection != null) {
+            projection.addPaths(projection.indexOf(user.getId()), projection.indexOf(target.getId()), label, useProxyTracks,
+                    maxNMID, topN, contribution);
+            return contribution;
+        }
+
+        TargetPaths.add(db, user, target, TargetPaths.Hops.of(label), useProxyTracks, maxNMID, topN, contribution);
+        return contribution;
+    }
+
+    /**
+     * Recalculate the SIMILAR_TO contributions and combined affinity of a user for a single venue or
+     * artist. Unlike similarity.calculateVenueAffinity, contributions that no longer have any paths
+     * are removed, so that the relationship ends up as a full recalculation would leave it.
+     *
+     * @param user the User node in question
+     * @param target the venue or artist Node for which we need to recalculate affinity
+     * @param label Venue or Artist
+     * @param useProxyTracks whether to use PROXY_TRACKS relationships (or calculate on the fly)
+     * @return the number of SIMILAR_TO paths followed
+     */
+    long updateAffinity(Node user, Node target, MyLabels label, boolean useProxyTracks) {
+        Contribution contribution = contribution(user, target, label, useProxyTracks);
+
+        Relationship affinity = AffinityIndex.forDatabase(db).find(user, target);
+        boolean isNew = affinity == null;
+        if (isNew) {
+            if (contribution.isEmpty()) {
+                return 0;
+            }
+            affinity = user.createRelationshipTo(target, MyRelationshipTypes.HAS_AFFINITY_FOR);
+            created++;
+        }
+        long before = writer.written();
+        contribution.replace(affinity, writer);
+
+        if (isActive(target, label)) {
+            double targetAffinity = label == MyLabels.Artist
+                    ? Scores.artistAffinity(contribution.count > 0 ? contribution.prod : Double.NaN,
+                                            contribution.proxyCount > 0 ? contribution.proxyProd : Double.NaN)
+                    : Scores.venueAffinity(doubleProperty(affinity, "distanceNorm"), contribution.avg(), contribution.proxyAvg());
+            if (targetAffinity != 1.0) {
+                writer.set(affinity, "affinity", targetAffinity);
+            } else {
+                writer.remove(affinity, "affinity");
+            }
+        }
+        if ( ! isNew && writer.written() > before) {
+            updated++;
+        }
+        return contribution.count + contribution.proxyCount;
+    }
+
+    /**
+     * Recalculate the affinity of a user for a single event, as {@link #calculateAllEventAffinity}
+     * would: from the user's stored affinities with its hosts and headliners, or their popularity.
+     * Events that the user tracks, that are not Future, that fall outside the dates or that are not
+     * among the candidates, having no host or headliner that the user has an affinity with or that
+     * is at least minPopularity popular, are left as they are.
+     *
+     * @param user the User node in question
+     * @param event the Event node for which we need to recalculate affinity
+     */
+    void updateEventAffinity(Node user, Node event) {
+        PrimitiveLongSet tracked = Primitive.longSet();
+        for (Relationship track : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.TRACKS)) {
+            tracked.add(track.getEndNode().getId());
+        }
+        if (tracked.contains(event.getId())) {
+            return;
+        }
+        AffinityIndex index = AffinityIndex.forDatabase(db);
+        LongFunction<Relationship> affinities = targetId -> index.find(user, db.getNodeById(targetId));
+        if (isCandidate(event, tracked, affinities)) {
+            writeEventAffinity(user, event, tracked, affinities);
+        }
+    }
+
+    // whether candidateEvents would find the event from one of its hosts or headliners
+    private boolean isCandidate(Node event, PrimitiveLongSet tracked, LongFunction<Relationship> affinities) {
+        for (Relationship rel : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.HOSTS, MyRelationshipTypes.PLAYS)) {
+            if (rel.isType(MyRelationshipTypes.PLAYS) && ! isHeadliner(rel)) {
+                continue;
+            }
+            Node target = rel.getStartNode();
+            if ( ! tracked.contains(target.getId()) && (affinities.apply(target.getId()) != null || isPopular(target))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expand (user)-[:TRACKS|PROXY_TRACKS]->(:label)-[:SIMILAR_TO]-(target:label:Active) in a single
+     * pass, skipping targets that the user already TRACKS; from the projection if it can be used
+     *
+     * @return the SIMILAR_TO contributions keyed by target node id
+     */
+    private PrimitiveLongObjectMap<Contribution> accumulate(Node user, MyLabels label) {
+        Projection projection = Projection.forUser(db, user);
+        return projection != null
+                ? accumulate(projection, projection.indexOf(user.getId()), label)
+                : accumulateFromStore(user, label);
+    }
+
+    private PrimitiveLongObjectMap<Contribution> accumulateFromStore(Node user, Label label) {
+        PrimitiveLongSet tracked = Primitive.longSet();
+        for (Relationship track : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.TRACKS)) {
+            tracked.add(track.getEndNode().getId());
+        }
+
+        Expansion expansion = new Expansion(label, tracked);
+        for (Relationship track : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.TRACKS, MyRelationshipTypes.PROXY_TRACKS)) {
+            Node source = track.getEndNode();
+            if ( ! source.hasLabel(label)) {
+                continue;
+            }
+            boolean isProxyPath = track.isType(MyRelationshipTypes.PROXY_TRACKS);
+            if (isPruned()) {
+                NeighbourCache.Neighbours neighbours = NeighbourCache.forDatabase(db).neighbours(source);
+                for (int n = 0, end = neighbours.limit(maxNMID, topN); n < end; n++) {
+                    expansion.add(db, neighbours.targets[n], neighbours.nmids[n], isProxyPath);
+                }
+                continue;
+            }
+            for (Relationship similar : source.getRelationships(MyRelationshipTypes.SIMILAR_TO)) {
+                expansion.add(source, similar, isProxyPath);
+            }
+        }
+        return expansion.contributions;
+    }
+
+    /**
+     * The SIMILAR_TO contributions of the paths from a user to the active targets with a label, as
+     * the paths are followed
+     */
+    private static class Expansion {
+        private final Label label;
+        private final PrimitiveLongSet tracked;
+
+        // targets whose labels have been checked, and found to be candidates or not
+        private final PrimitiveLongSet targets = Primitive.longSet();
+        private final PrimitiveLongSet ignored = Primitive.longSet();
+
+        final PrimitiveLongObjectMap<Contribution> contributions = Primitive.longObjectMap();
+
+        Expansion(Label label, PrimitiveLongSet tracked) {
+            this.label = label;
+            this.tracked = tracked;
+        }
+
+        void add(Node source, Relationship similar, boolean isProxyPath) {
+            Node target = similar.getOtherNode(source);
+            if ( ! isCandidate(target)) {
+                return;
+            }
+
+            Object nmid = similar.getProperty("NMID", null);
+            if (nmid == null) {
+                return;
+            }
+            contribute(target.getId(), ((Number) nmid).doubleValue(), isProxyPath);
+        }
+
+        void add(GraphDatabaseService db, long targetId, double nmid, boolean isProxyPath) {
+            // the node is only looked up if its labels have not been checked yet
+            if (targets.contains(targetId) || ( ! ignored.contains(targetId) && isCandidate(db.getNodeById(targetId)))) {
+                contribute(targetId, nmid, isProxyPath);
+            }
+        }
+
+        // labels are checked once per target rather than once per path
+        private boolean isCandidate(Node target) {
+            long targetId = target.getId();
+            if (ignored.contains(targetId)) {
+                return false;
+            }
+            if ( ! targets.contains(targetId)) {
+                if (tracked.contains(targetId) || ! isActive(target, label)) {
+                    ignored.add(targetId);
+                    return false;
+                }
+                targets.add(targetId);
+            }
+            return true;
+        }
+
+        private void contribute(long targetId, double nmid, boolean isProxyPath) {
+            Contribution contribution = contributions.get(targetId);
+            if (contribution == null) {
+                contribution = new Contribution();
+                contributions.put(targetId, contribution);
+            }
+            contribution.add(isProxyPath, nmid);
+        }
+    }
+
+    /**
+     * The same expansion as {@link #accumulateFromStore}, over the in-memory projection
+     */
+    private PrimitiveLongObjectMap<Contribution> accumulate(Projection projection, int user, MyLabels label) {
+        PrimitiveIntSet tracked = Primitive.intSet();
+        for (int t = projection.tracks.offsets[user]; t < projection.tracks.offsets[user + 1]; t++) {
+            tracked.add(projection.tracks.targets[t]);
+        }
+
+        PrimitiveLongObjectMap<Contribution> contributions = Primitive.longObjectMap();
+        accumulate(projection, projection.tracks, user, label, false, tracked, contributions);
+        accumulate(projection, projection.proxyTracks, user, label, true, tracked, contributions);
+        return contributions;
+    }
+
+    private void accumulate(Projection projection, Projection.Adjacency tracks, int user, MyLabels label, boolean isProxyPath,
+                            PrimitiveIntSet tracked, PrimitiveLongObjectMap<Contribution> contributions) {
+        Projection.Adjacency similar = projection.similar;
+
+        for (int t = tracks.offsets[user]; t < tracks.offsets[user + 1]; t++) {
+            int source = tracks.targets[t];
+            if ( ! projection.hasLabel(source, label)) {
+                continue;
+            }
+
+            int end = isPruned() ? projection.similarEnd(source, maxNMID, topN) : similar.offsets[source + 1];
+            for (int s = similar.offsets[source]; s < end; s++) {
+                int target = similar.targets[s];
+                if (Double.isNaN(similar.weights[s]) || tracked.contains(target) ||
+                        ! projection.hasLabel(target, label) || ! projection.hasLabel(target, MyLabels.Active)) {
+                    continue;
+                }
+
+                long targetId = projection.nodeId(target);
+                Contribution contribution = contributions.get(targetId);
+                if (contribution == null) {
+                    contribution = new Contribution();
+                    contributions.put(targetId, contribution);
+                }
+                contribution.add(isProxyPath, similar.weights[s]);
+            }
+        }
+    }
+
+    private PrimitiveLongObjectMap<Relationship> existingAffinities(Node user) {
+        PrimitiveLongObjectMap<Relationship> affinities = Primitive.longObjectMap();
+        for (Relationship affinity : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+            affinities.put(affinity.getEndNode().getId(), affinity);
+        }
+        return affinities;
+    }
+
+    private void write(Node user, PrimitiveLongObjectMap<Contribution> contributions, PrimitiveLongObjectMap<Relationship> affinities) {
+        contributions.visitEntries((targetId, contribution) -> {
+            Relationship affinity = affinities.get(targetId);
+            if (affinity == null) {
+                affinity = user.createRelationshipTo(db.getNodeById(targetId), MyRelationshipTypes.HAS_AFFINITY_FOR);
+                affinities.put(targetId, affinity);
+                created++;
+                contribution.write(affinity, writer);
+                return false;
+            }
+            long before = writer.written();
+            contribution.write(affinity, writer);
+            if (writer.written() > before) {
+                updated++;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Add the relationships written and SIMILAR_TO paths followed for a user to the counters of a
+     * procedure, see {@link Metrics}
+     */
+    private void record(String procedure, PrimitiveLongObjectMap<Contribution> contributions) {
+        long[] paths = new long[1];
+        contributions.visitEntries((targetId, contribution) -> {
+            paths[0] += contribution.count + contribution.proxyCount;
+            return false;
+        });
+        record(procedure, paths[0]);
+    }
+
+    /**
+     * Add the relationships written since the last call, and a number of SIMILAR_TO paths followed,
+     * to the counters of a procedure
+     */
+    void record(String procedure, long paths) {
+        Metrics.Metric metric = Metrics.get(procedure);
+        metric.count("paths", paths);
+        metric.count("relationshipsCreated", created);
+        metric.count("relationshipsUpdated", updated);
+        metric.count("relationshipsDeleted", deleted);
+        writer.record(procedure);
+        created = updated = deleted = 0;
+    }
+
+    /**
+     * @return whether the user TRACKS the target, which the calculateAll procedures leave out
+     */
+    static boolean tracks(Node user, Node target) {
+        for (Relationship track : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.TRACKS)) {
+            if (track.getEndNode().equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isActive(Node node, Label label) {
+        return node.hasLabel(label) && node.hasLabel(MyLabels.Active);
+    }
+
+    private static double doubleProperty(Relationship relationship, String key) {
+        Object value = relationship == null ? null : relationship.getProperty(key, null);
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+}
@@ -0,0 +1,44 @@
+package similarity;
+
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.kernel.impl.spi.KernelContext;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.LifeSupport;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+
+/**
+ * Registers the background services of the similarity plugin with the database; loaded through
+ * META-INF/services when the plugin jar is on the classpath
+ */
+public class AffinityExtensionFactory extends KernelExtensionFactory<AffinityExtensionFactory.Dependencies> {
+
+    public interface Dependencies {
+        GraphDatabaseAPI getGraphDatabaseAPI();
+
+        Config getConfig();
+
+        LogService getLogService();
+    }
+
+    public AffinityExtensionFactory() {
+        super("similarity");
+    }
+
+    @Override
+    public Class<?> getSettingsClass() {
+        return AffinitySettings.class;
+    }
+
+    @Override
+    public Lifecycle newInstance(KernelContext context, Dependencies dependencies) throws Throwable {
+        LifeSupport life = new LifeSupport();
+        life.add(new IncrementalAffinity(dependencies.getGraphDatabaseAPI(), dependencies.getConfig(),
+                dependencies.getLogService().getUserLog(IncrementalAffinity.class)));
+        life.add(new RefreshQueue(dependencies.getGraphDatabaseAPI(), dependencies.getConfig(),
+                dependencies.getLogService().getUserLog(RefreshQueue.class)));
+        life.add(new MetricsJmx(dependencies.getConfig(), dependencies.getLogService().getUserLog(MetricsJmx.class)));
+        return life;
+    }
+}
@@ -0,0 +1,115 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+
+/**
+ * A bounded max-heap of target node ids keyed by affinity, which keeps the k lowest (ie. best)
+ * affinities offered to it. Ties are broken on node id so that the selection is repeatable.
+ */
+final class AffinityHeap {
+
+    private final long[] ids;
+    private final double[] affinities;
+    private int size;
+
+    AffinityHeap(int capacity) {
+        this.ids = new long[capacity];
+        this.affinities = new double[capacity];
+    }
+
+    /**
+     * @return true if the target is (for now) among the k best
+     */
+    boolean offer(long id, double affinity) {
+        if (size < ids.length) {
+            ids[size] = id;
+            affinities[size] = affinity;
+            siftUp(size++);
+            return true;
+        }
+        if (size == 0 || ! worse(ids[0], affinities[0], id, affinity)) {
+            return false;
+        }
+        ids[0] = id;
+        affinities[0] = affinity;
+        siftDown(0);
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long id(int index) {
+        return ids[index];
+    }
+
+    double affinity(int index) {
+        return affinities[index];
+    }
+
+    /**
+     * Sort the heap in place, after which {@link #id(int)} and {@link #affinity(int)} return the
+     * targets best first; no more targets can be offered
+     */
+    void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    PrimitiveLongSet idSet() {
+        PrimitiveLongSet set = Primitive.longSet();
+        for (int i = 0; i < size; i++) {
+            set.add(ids[i]);
+        }
+        return set;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if ( ! worse(ids[index], affinities[index], ids[parent], affinities[parent])) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        siftDown(index, size);
+    }
+
+    private void siftDown(int index, int size) {
+        while (true) {
+            int worst = index;
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                if (worse(ids[child], affinities[child], ids[worst], affinities[worst])) {
+                    worst = child;
+                }
+            }
+            if (worst == index) {
+                return;
+            }
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    // higher affinities are worse
+    private static boolean worse(long id, double affinity, long otherId, double otherAffinity) {
+        return affinity > otherAffinity || (affinity == otherAffinity && id > otherId);
+    }
+
+    private void swap(int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double affinity = affinities[i];
+        affinities[i] = affinities[j];
+        affinities[j] = affinity;
+    }
+}
@@ -0,0 +1,276 @@
+package similarity;
+
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.txstate.TransactionState;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.storageengine.api.txstate.NodeState;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Finds a user's HAS_AFFINITY_FOR relationship to a target without scanning all of the user's
+ * affinities. The committed affinities of a user with at least {@link #MIN_DEGREE} of them are
+ * mapped from target node id to relationship id the first time they are needed, and a transaction
+ * event handler applies each committed creation or deletion to the users that are mapped, so a
+ * lookup costs the same whatever the user's degree. Changes the current transaction has made to
+ * a user's affinities are read from its transaction state. Users are evicted least recently used
+ * first once the maps hold {@code similarity.affinity_index.max_entries} affinities between them.
+ */
+class AffinityIndex {
+
+    // users with fewer affinities are scanned, which is as quick as a lookup and uses no memory
+    static final int MIN_DEGREE = 32;
+
+    private static final int STRIPES = 1024;
+
+    private static final Map<GraphDatabaseService, AffinityIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private final GraphDatabaseAPI database;
+    private final ThreadToStatementContextBridge bridge;
+    private final long maxEntries;
+
+    // guarded by this
+    private final LinkedHashMap<Long, LongLongMap> users = new LinkedHashMap<>(16, 0.75f, true);
+    private long entries;
+
+    // bumped by every commit that changes the affinities of a user in the stripe, so that a map built
+    // from a read that may have missed the commit is not published
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    private AffinityIndex(GraphDatabaseAPI database) {
+        this.database = database;
+        this.bridge = database.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class);
+        this.maxEntries = database.getDependencyResolver().resolveDependency(Config.class)
+                .get(AffinitySettings.affinity_index_max_entries);
+    }
+
+    /**
+     * Get the affinity index of a database, creating it on first use
+     *
+     * @param db the database, as injected into a procedure
+     */
+    static AffinityIndex forDatabase(GraphDatabaseService db) {
+        GraphDatabaseService database = Databases.unrestricted(db);
+        AffinityIndex index = INDEXES.get(database);
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (INDEXES) {
+            index = INDEXES.get(database);
+            if (index == null) {
+                index = new AffinityIndex((GraphDatabaseAPI) database);
+                database.registerTransactionEventHandler(index.new Maintainer());
+                Databases.onShutdown(database, () -> INDEXES.remove(database));
+                INDEXES.put(database, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Find the user's HAS_AFFINITY_FOR relationship to a target, as seen by the current transaction
+     *
+     * @param user the User node in question
+     * @param target the venue, artist or event
+     * @return the relationship, or null if there is none
+     */
+    Relationship find(Node user, Node target) {
+        if (maxEntries <= 0 || user.getDegree(MyRelationshipTypes.HAS_AFFINITY_FOR, Direction.OUTGOING) < MIN_DEGREE) {
+            return scan(user, target);
+        }
+
+        TransactionState state = transactionState();
+        NodeState changes = state != null && state.nodeModifiedInThisTx(user.getId()) ? state.getNodeState(user.getId()) : null;
+
+        if (changes != null) {
+            // relationships created by this transaction are not in the maps
+            PrimitiveLongIterator added = changes.getAddedRelationships(
+                    org.neo4j.storageengine.api.Direction.OUTGOING, new int[] {affinityType()});
+            while (added.hasNext()) {
+                Relationship relationship = database.getRelationshipById(added.next());
+                if (relationship.getEndNode().getId() == target.getId()) {
+                    return relationship;
+                }
+            }
+        }
+
+        // a user changed by this transaction can only be mapped from committed data, so is scanned
+        long relationshipId = isMapped(user, changes == null) ? lookup(user.getId(), target.getId()) : -2;
+        if (relationshipId == -2) {
+            return scan(user, target);
+        }
+        if (relationshipId < 0 || (state != null && state.relationshipIsDeletedInThisTx(relationshipId))) {
+            return null;
+        }
+        try {
+            return database.getRelationshipById(relationshipId);
+        } catch (NotFoundException e) {
+            // deleted by a transaction whose changes have not been applied to the maps yet
+            return scan(user, target);
+        }
+    }
+
+    /**
+     * Make sure the user's committed affinities are mapped, mapping them if the current transaction
+     * has not changed them
+     *
+     * @return whether the user is mapped
+     */
+    private boolean isMapped(Node user, boolean mayBuild) {
+        synchronized (this) {
+            if (users.get(user.getId()) != null) {
+                return true;
+            }
+        }
+        if ( ! mayBuild) {
+            return false;
+        }
+
+        int stripe = stripe(user.getId());
+        long version = versions.get(stripe);
+        LongLongMap targets = new LongLongMap(user.getDegree(MyRelationshipTypes.HAS_AFFINITY_FOR, Direction.OUTGOING));
+        for (Relationship affinity : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+            // the first of any duplicates, as a scan would find
+            targets.putIfAbsent(affinity.getEndNode().getId(), affinity.getId());
+        }
+
+        synchronized (this) {
+            // a commit may have changed the user's affinities after they were read
+            if (versions.get(stripe) != version) {
+                return false;
+            }
+            LongLongMap previous = users.put(user.getId(), targets);
+            entries += targets.size() - (previous == null ? 0 : previous.size());
+            evict();
+            return users.containsKey(user.getId());
+        }
+    }
+
+    /**
+     * @return the relationship id, -1 if there is none, or -2 if the user is not mapped
+     */
+    private synchronized long lookup(long userId, long targetId) {
+        LongLongMap targets = users.get(userId);
+        if (targets == null) {
+            // evicted or invalidated since it was mapped
+            return -2;
+        }
+        return targets.get(targetId);
+    }
+
+    private int affinityType() {
+        try (Statement statement = bridge.get()) {
+            return statement.readOperations().relationshipTypeGetForName(MyRelationshipTypes.HAS_AFFINITY_FOR.name());
+        }
+    }
+
+    // must hold the lock
+    private void evict() {
+        Iterator<LongLongMap> eldest = users.values().iterator();
+        while (entries > maxEntries && eldest.hasNext()) {
+            entries -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    synchronized int users() {
+        return users.size();
+    }
+
+    private TransactionState transactionState() {
+        KernelTransaction tx = bridge.getKernelTransactionBoundToThisThread(false);
+        if ( ! (tx instanceof TxStateHolder) || ! ((TxStateHolder) tx).hasTxStateWithChanges()) {
+            return null;
+        }
+        return ((TxStateHolder) tx).txState();
+    }
+
+    private static int stripe(long userId) {
+        return (int) (userId & (STRIPES - 1));
+    }
+
+    private static Relationship scan(Node user, Node target) {
+        for (Relationship affinity : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+            if (affinity.getEndNode().equals(target)) {
+                return affinity;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the HAS_AFFINITY_FOR relationships created and deleted by a transaction while it can
+     * still read them, and applies them to the mapped users once it commits
+     */
+    private class Maintainer implements TransactionEventHandler<long[]> {
+
+        @Override
+        public long[] beforeCommit(TransactionData data) throws Exception {
+            LongArray changes = new LongArray();
+            collect(data.createdRelationships(), 1, changes);
+            collect(data.deletedRelationships(), 0, changes);
+            return changes.size() == 0 ? null : changes.toArray();
+        }
+
+        private void collect(Iterable<Relationship> relationships, long created, LongArray changes) {
+            for (Relationship relationship : relationships) {
+                if (relationship.isType(MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+                    changes.add(relationship.getStartNode().getId());
+                    changes.add(relationship.getEndNode().getId());
+                    changes.add(relationship.getId());
+                    changes.add(created);
+                }
+            }
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, long[] changes) {
+            if (changes == null) {
+                return;
+            }
+            synchronized (AffinityIndex.this) {
+                for (int i = 0; i < changes.length; i += 4) {
+                    long userId = changes[i];
+                    versions.incrementAndGet(stripe(userId));
+
+                    LongLongMap targets = users.get(userId);
+                    if (targets == null) {
+                        continue;
+                    }
+                    long targetId = changes[i + 1];
+                    long relationshipId = changes[i + 2];
+                    if (changes[i + 3] == 1) {
+                        if (targets.putIfAbsent(targetId, relationshipId)) {
+                            entries++;
+                        }
+                    } else if (targets.get(targetId) == relationshipId) {
+                        // there may be a duplicate to fall back on, so map the user again when next needed
+                        entries -= users.remove(userId).size();
+                    }
+                }
+                evict();
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, long[] changes) {
+        }
+    }
+}
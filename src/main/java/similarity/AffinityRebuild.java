@@ -0,0 +1,244 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the affinities of every user, in partitions of {@code partitionSize} consecutive node
+ * ids that are processed in parallel on {@code concurrency} worker threads, {@code batchSize} users
+ * per transaction, as {@link AffinityBatch} does, retrying a transaction that fails with a transient
+ * error up to {@code retries} times before giving up on its partition. Progress is kept in a
+ * :RebuildCheckpoint node: once every partition up to some node id has been committed, that node
+ * id is recorded, so a rebuild that is interrupted by a restart or a failed partition carries on
+ * from there the next time it is run. Partitions after the checkpoint that had already been
+ * committed are rebuilt again, which only writes what has changed since. The checkpoint is
+ * deleted when a rebuild completes, so the next run starts from the beginning.
+ */
+class AffinityRebuild {
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private final AffinityBatch batch;
+    private final ChunkRunner runner;
+
+    private final String name;
+    private final long partitionSize;
+    private final boolean restart;
+
+    AffinityRebuild(GraphDatabaseService db, Log log, Map<String, Object> options) {
+        this.db = Databases.unrestricted(db);
+        this.log = log;
+        this.batch = new AffinityBatch(db, log, options);
+        this.runner = new ChunkRunner(log, "Affinity batch", options);
+        this.name = Options.stringValue(options, "name", "default");
+        this.partitionSize = Math.max(1, Options.longValue(options, "partitionSize", 100000));
+        this.restart = Options.booleanValue(options, "restart", false);
+    }
+
+    /**
+     * Rebuild the affinities of the users after the checkpoint, or of all users
+     *
+     * @return progress and throughput statistics for the run
+     */
+    Result run() {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(runner.concurrency);
+        try {
+            return run(pool, start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for affinity rebuild partitions", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Affinity rebuild failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // the checkpoint is read and written on the pool, in transactions of its own rather than the caller's
+    private Result run(ExecutorService pool, long start) throws InterruptedException, ExecutionException {
+        if (restart) {
+            pool.submit(this::clearCheckpoint).get();
+        }
+        long from = pool.submit(this::checkpoint).get();
+        long[] userIds = userIds(from);
+
+        // the partitions that have users, in order
+        List<long[]> partitions = new ArrayList<>();
+        LongArray ends = new LongArray();
+        for (int first = 0; first < userIds.length; ) {
+            long end = from + ((userIds[first] - from) / partitionSize + 1) * partitionSize;
+            int last = first;
+            while (last < userIds.length && userIds[last] < end) {
+                last++;
+            }
+            partitions.add(Arrays.copyOfRange(userIds, first, last));
+            ends.add(end);
+            first = last;
+        }
+
+        Progress progress = new Progress(from, ends);
+        AtomicLong processed = new AtomicLong();
+        AtomicLong failedPartitions = new AtomicLong();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < partitions.size(); i++) {
+            int partition = i;
+            long[] users = partitions.get(i);
+            futures.add(pool.submit(() -> {
+                try {
+                    for (int first = 0; first < users.length; first += runner.batchSize) {
+                        long[] chunk = Arrays.copyOfRange(users, first, Math.min(first + runner.batchSize, users.length));
+                        processed.addAndGet(runner.process(chunk, batch::process));
+                    }
+                    progress.completed(partition);
+                } catch (RuntimeException e) {
+                    failedPartitions.incrementAndGet();
+                    log.error("Affinity rebuild of the partition of " + users.length + " users before node " +
+                            ends.get(partition) + " failed", e);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        Result result = new Result();
+        result.users = processed.get();
+        result.partitions = partitions.size();
+        result.failedPartitions = failedPartitions.get();
+        result.retriedBatches = runner.retriedBatches.get();
+        result.resumedFrom = from;
+        result.complete = result.failedPartitions == 0;
+        result.checkpoint = result.complete ? -1 : progress.checkpoint();
+        result.concurrency = runner.concurrency;
+        result.timeMs = System.currentTimeMillis() - start;
+        result.usersPerSecond = result.timeMs == 0 ? result.users : result.users * 1000.0 / result.timeMs;
+        if (result.complete) {
+            pool.submit(this::clearCheckpoint).get();
+        }
+
+        log.info("Rebuilt affinities for " + result.users + " users from node " + from + " in " + result.timeMs + "ms (" +
+                result.failedPartitions + " of " + result.partitions + " partitions failed)");
+
+        return result;
+    }
+
+    /**
+     * @return the ids of the users from a node id on, in ascending order
+     */
+    private long[] userIds(long from) {
+        LongArray ids = new LongArray();
+        try (Transaction tx = db.beginTx();
+             ResourceIterator<Node> nodes = db.findNodes(MyLabels.User)) {
+            while (nodes.hasNext()) {
+                long id = nodes.next().getId();
+                if (id >= from) {
+                    ids.add(id);
+                }
+            }
+            tx.success();
+        }
+        long[] sorted = ids.toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return the node id that the last run got up to, or 0 to start from the beginning
+     */
+    private long checkpoint() {
+        try (Transaction tx = db.beginTx()) {
+            Node checkpoint = db.findNode(MyLabels.RebuildCheckpoint, "name", name);
+            Object nodeId = checkpoint == null ? null : checkpoint.getProperty("nodeId", null);
+            tx.success();
+            return nodeId instanceof Number ? ((Number) nodeId).longValue() : 0;
+        }
+    }
+
+    private void saveCheckpoint(long nodeId) {
+        try (Transaction tx = db.beginTx()) {
+            Node checkpoint = db.findNode(MyLabels.RebuildCheckpoint, "name", name);
+            if (checkpoint == null) {
+                checkpoint = db.createNode(MyLabels.RebuildCheckpoint);
+                checkpoint.setProperty("name", name);
+            }
+            checkpoint.setProperty("nodeId", nodeId);
+            checkpoint.setProperty("updated", System.currentTimeMillis());
+            tx.success();
+        }
+    }
+
+    private void clearCheckpoint() {
+        try (Transaction tx = db.beginTx()) {
+            Node checkpoint = db.findNode(MyLabels.RebuildCheckpoint, "name", name);
+            if (checkpoint != null) {
+                checkpoint.delete();
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * The partitions completed so far; the checkpoint is the end of the last partition before the
+     * first one that has not completed
+     */
+    private class Progress {
+        private final long from;
+        private final LongArray ends;
+        private final boolean[] completed;
+        private int next;
+
+        Progress(long from, LongArray ends) {
+            this.from = from;
+            this.ends = ends;
+            this.completed = new boolean[ends.size()];
+        }
+
+        synchronized void completed(int partition) {
+            completed[partition] = true;
+            int first = next;
+            while (next < completed.length && completed[next]) {
+                next++;
+            }
+            // not after the last partition, whose checkpoint is deleted instead
+            if (next > first && next < completed.length) {
+                saveCheckpoint(ends.get(next - 1));
+            }
+        }
+
+        synchronized long checkpoint() {
+            return next == 0 ? from : ends.get(next - 1);
+        }
+    }
+
+    /**
+     * Progress and throughput statistics returned by similarity.rebuildAffinities; checkpoint is
+     * the node id that the next run will resume from, or -1 if the rebuild is complete
+     */
+    public static class Result {
+        public long users;
+        public long partitions;
+        public long failedPartitions;
+        public long retriedBatches;
+        public long resumedFrom;
+        public long checkpoint;
+        public boolean complete;
+        public long concurrency;
+        public long timeMs;
+        public double usersPerSecond;
+    }
+}
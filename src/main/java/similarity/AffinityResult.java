@@ -0,0 +1,30 @@
+package similarity;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * A row returned by the streaming affinity procedures: the same properties that the calculateAll
+ * procedures write to the HAS_AFFINITY_FOR relationship, with null for any contribution that does
+ * not apply to the target
+ */
+public class AffinityResult {
+    public Node node;
+
+    public Double distanceM;
+    public Double distanceNorm;
+
+    public Double min;
+    public Double avg;
+    public Double prod;
+    public Long count;
+
+    public Double proxyMin;
+    public Double proxyAvg;
+    public Double proxyProd;
+    public Long proxyCount;
+
+    public Double artistAffinity;
+    public Double venueAffinity;
+
+    public double affinity;
+}
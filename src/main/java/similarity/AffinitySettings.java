@@ -0,0 +1,75 @@
+package similarity;
+
+import org.neo4j.graphdb.config.Setting;
+import org.neo4j.graphdb.factory.Description;
+
+import java.io.File;
+
+import static org.neo4j.kernel.configuration.Settings.BOOLEAN;
+import static org.neo4j.kernel.configuration.Settings.DURATION;
+import static org.neo4j.kernel.configuration.Settings.FALSE;
+import static org.neo4j.kernel.configuration.Settings.INTEGER;
+import static org.neo4j.kernel.configuration.Settings.LONG;
+import static org.neo4j.kernel.configuration.Settings.NO_DEFAULT;
+import static org.neo4j.kernel.configuration.Settings.TRUE;
+import static org.neo4j.kernel.configuration.Settings.pathSetting;
+import static org.neo4j.kernel.configuration.Settings.setting;
+
+/**
+ * Settings for the similarity kernel extension, read from neo4j.conf
+ */
+public class AffinitySettings {
+
+    @Description("Recalculate the venue affinities affected by each committed change to TRACKS, PROXY_TRACKS " +
+            "or SIMILAR_TO relationships in the background")
+    public static final Setting<Boolean> incremental_enabled =
+            setting("similarity.incremental.enabled", BOOLEAN, FALSE);
+
+    @Description("Whether incremental recalculation follows PROXY_TRACKS relationships, or finds proxy venues " +
+            "through tracked events, as the useProxyTracks argument of similarity.calculateVenueAffinity")
+    public static final Setting<Boolean> incremental_use_proxy_tracks =
+            setting("similarity.incremental.use_proxy_tracks", BOOLEAN, TRUE);
+
+    @Description("The number of user and venue pairs recalculated per transaction by incremental recalculation")
+    public static final Setting<Integer> incremental_batch_size =
+            setting("similarity.incremental.batch_size", INTEGER, "1000");
+
+    @Description("Publish the statistics returned by similarity.stats() as the JMX MBean similarity:type=Metrics")
+    public static final Setting<Boolean> metrics_jmx_enabled =
+            setting("similarity.metrics.jmx_enabled", BOOLEAN, FALSE);
+
+    @Description("The number of HAS_AFFINITY_FOR relationships of high degree users to keep mapped by target, so " +
+            "that similarity.calculateVenueAffinity finds an existing affinity without scanning; 0 to always scan")
+    public static final Setting<Long> affinity_index_max_entries =
+            setting("similarity.affinity_index.max_entries", LONG, "1000000");
+
+    @Description("The number of SIMILAR_TO neighbours to keep sorted by NMID, for affinity calculations with a " +
+            "maxNMID or topN option; 0 to sort them on every use")
+    public static final Setting<Long> neighbour_cache_max_entries =
+            setting("similarity.neighbour_cache.max_entries", LONG, "10000000");
+
+    @Description("The directory that similarity.exportAffinities and similarity.importAffinities resolve paths " +
+            "against, and may not leave, relative to the Neo4j home directory; both procedures refuse to run until it is set")
+    public static final Setting<File> snapshot_directory =
+            pathSetting("similarity.snapshot.directory", NO_DEFAULT);
+
+    @Description("The number of users that similarity.enqueueRefresh can hold queued for refreshing in the background")
+    public static final Setting<Integer> refresh_queue_capacity =
+            setting("similarity.refresh_queue.capacity", INTEGER, "100000");
+
+    @Description("The number of worker threads that refresh queued users")
+    public static final Setting<Integer> refresh_queue_concurrency =
+            setting("similarity.refresh_queue.concurrency", INTEGER, "2");
+
+    @Description("The number of queued users refreshed per transaction")
+    public static final Setting<Integer> refresh_queue_batch_size =
+            setting("similarity.refresh_queue.batch_size", INTEGER, "100");
+
+    @Description("How long similarity.enqueueRefresh waits for room in a full queue before giving up")
+    public static final Setting<Long> refresh_queue_offer_timeout =
+            setting("similarity.refresh_queue.offer_timeout", DURATION, "1s");
+
+    @Description("Whether refreshing a queued user adds their proxy tracks first, as similarity.refreshUser does by default")
+    public static final Setting<Boolean> refresh_queue_proxy_tracks =
+            setting("similarity.refresh_queue.proxy_tracks", BOOLEAN, TRUE);
+}
@@ -0,0 +1,288 @@
+package similarity;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only, memory-mapped snapshot of the affinity property of HAS_AFFINITY_FOR relationships,
+ * as written by similarity.exportAffinities, that can be read without a database. Users and their
+ * targets are identified by the id property of their nodes.
+ *
+ * <p>The file is big-endian. A 24 byte header (magic, version, user count, affinity count) is
+ * followed by the user index, one (userId, first affinity) pair of longs per user in ascending
+ * userId order, and then by the affinities in three columns: the target ids as longs, the
+ * affinities as doubles, and the target types as bytes. The affinities of a user run from its
+ * first affinity to the next user's, in ascending (targetType, targetId) order. Reads go straight
+ * to the mapped file, so opening a snapshot costs the same whatever its size.
+ */
+public final class AffinitySnapshot implements Closeable {
+
+    public static final byte VENUE = 1;
+    public static final byte ARTIST = 2;
+    public static final byte EVENT = 3;
+
+    private static final int MAGIC = 0x41464631; // "AFF1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+
+    private final FileChannel channel;
+    private final int users;
+    private final int affinities;
+    private final ByteBuffer index;
+    private final ByteBuffer targetIds;
+    private final ByteBuffer scores;
+    private final ByteBuffer targetTypes;
+
+    private AffinitySnapshot(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not an affinity snapshot, or written by an incompatible version");
+        }
+        this.users = count(header.getLong(8), 16);
+        this.affinities = count(header.getLong(16), 8);
+
+        long position = HEADER_BYTES;
+        this.index = channel.map(FileChannel.MapMode.READ_ONLY, position, users * 16L);
+        position += users * 16L;
+        this.targetIds = channel.map(FileChannel.MapMode.READ_ONLY, position, affinities * 8L);
+        position += affinities * 8L;
+        this.scores = channel.map(FileChannel.MapMode.READ_ONLY, position, affinities * 8L);
+        position += affinities * 8L;
+        this.targetTypes = channel.map(FileChannel.MapMode.READ_ONLY, position, affinities);
+        if (position + affinities != channel.size()) {
+            throw new IOException("Truncated affinity snapshot");
+        }
+    }
+
+    /**
+     * Map a snapshot file for reading
+     *
+     * @param path the file written by similarity.exportAffinities
+     */
+    public static AffinitySnapshot open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new AffinitySnapshot(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of users, each of which has at least one affinity
+     */
+    public int users() {
+        return users;
+    }
+
+    /**
+     * @return the number of affinities of all users
+     */
+    public int affinities() {
+        return affinities;
+    }
+
+    /**
+     * @param user the index of a user, from 0 to {@link #users()}
+     * @return the id property of the user
+     */
+    public long userId(int user) {
+        return index.getLong(user * 16);
+    }
+
+    /**
+     * Find a user by binary search of the index
+     *
+     * @param userId the id property of the user
+     * @return the index of the user, or -1 if the user has no affinities
+     */
+    public int indexOf(long userId) {
+        int low = 0;
+        int high = users - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long id = userId(mid);
+            if (id < userId) {
+                low = mid + 1;
+            } else if (id > userId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param user the index of a user
+     * @return the index of the user's first affinity
+     */
+    public int firstAffinity(int user) {
+        return (int) index.getLong(user * 16 + 8);
+    }
+
+    /**
+     * @param user the index of a user
+     * @return the index after the user's last affinity
+     */
+    public int endAffinity(int user) {
+        return user + 1 < users ? firstAffinity(user + 1) : affinities;
+    }
+
+    /**
+     * @param affinity the index of an affinity
+     * @return the id property of the venue, artist or event
+     */
+    public long targetId(int affinity) {
+        return targetIds.getLong(affinity * 8);
+    }
+
+    /**
+     * @param affinity the index of an affinity
+     * @return {@link #VENUE}, {@link #ARTIST} or {@link #EVENT}
+     */
+    public byte targetType(int affinity) {
+        return targetTypes.get(affinity);
+    }
+
+    /**
+     * @param affinity the index of an affinity
+     * @return the affinity property of the relationship
+     */
+    public double affinity(int affinity) {
+        return scores.getDouble(affinity * 8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int count(long count, int bytesPerEntry) throws IOException {
+        if (count < 0 || count * bytesPerEntry > Integer.MAX_VALUE) {
+            throw new IOException("Affinity snapshot sections are limited to 2GB, found " + count + " entries");
+        }
+        return (int) count;
+    }
+
+    /**
+     * Writes a snapshot, with the columns spooled to temporary files beside it so that only the user
+     * index is held in memory, and moves it into place once it is complete
+     */
+    static class Writer implements Closeable {
+
+        private final Path path;
+        private final Path[] spools;
+        private final DataOutputStream targetIds;
+        private final DataOutputStream scores;
+        private final OutputStream targetTypes;
+
+        private final LongArray index = new LongArray();
+        private long affinities;
+        private long lastUserId = Long.MIN_VALUE;
+        private long lastTargetType = Long.MIN_VALUE;
+        private long lastTargetId = Long.MIN_VALUE;
+
+        Writer(Path path) throws IOException {
+            this.path = path;
+            this.spools = new Path[] {spool(path, "targets"), spool(path, "scores"), spool(path, "types"), spool(path, "tmp")};
+            this.targetIds = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spools[0]), 1 << 16));
+            this.scores = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spools[1]), 1 << 16));
+            this.targetTypes = new BufferedOutputStream(Files.newOutputStream(spools[2]), 1 << 16);
+        }
+
+        /**
+         * Start the affinities of the next user, in ascending userId order
+         */
+        void user(long userId) {
+            if (userId <= lastUserId) {
+                throw new IllegalArgumentException("Users must be written in ascending order of id, found " + userId +
+                        " after " + lastUserId);
+            }
+            index.add(userId);
+            index.add(affinities);
+            lastUserId = userId;
+            lastTargetType = lastTargetId = Long.MIN_VALUE;
+        }
+
+        /**
+         * Add an affinity of the current user, in ascending (targetType, targetId) order
+         */
+        void affinity(byte targetType, long targetId, double affinity) throws IOException {
+            if (targetType < lastTargetType || (targetType == lastTargetType && targetId <= lastTargetId)) {
+                throw new IllegalArgumentException("Affinities must be written in ascending order of target");
+            }
+            targetIds.writeLong(targetId);
+            scores.writeDouble(affinity);
+            targetTypes.write(targetType);
+            affinities++;
+            lastTargetType = targetType;
+            lastTargetId = targetId;
+        }
+
+        /**
+         * @return the size of the snapshot in bytes
+         */
+        long finish() throws IOException {
+            targetIds.close();
+            scores.close();
+            targetTypes.close();
+
+            int users = index.size() / 2;
+            if (affinities * 8 > Integer.MAX_VALUE || users * 16L > Integer.MAX_VALUE) {
+                throw new IOException("Affinity snapshot sections are limited to 2GB, found " + affinities + " affinities");
+            }
+
+            try (FileChannel out = FileChannel.open(spools[3], StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES + users * 16);
+                head.putInt(MAGIC).putInt(VERSION).putLong(users).putLong(affinities);
+                for (int i = 0; i < index.size(); i++) {
+                    head.putLong(index.get(i));
+                }
+                head.flip();
+                while (head.hasRemaining()) {
+                    out.write(head);
+                }
+                for (int i = 0; i < 3; i++) {
+                    try (FileChannel in = FileChannel.open(spools[i], StandardOpenOption.READ)) {
+                        long position = 0;
+                        long size = in.size();
+                        while (position < size) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                    }
+                }
+                out.force(false);
+            }
+            Files.move(spools[3], path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return Files.size(path);
+        }
+
+        @Override
+        public void close() throws IOException {
+            targetIds.close();
+            scores.close();
+            targetTypes.close();
+            // the snapshot itself has been moved away from its spool once finished
+            for (Path spool : spools) {
+                Files.deleteIfExists(spool);
+            }
+        }
+
+        private static Path spool(Path path, String suffix) {
+            return path.resolveSibling(path.getFileName() + "." + suffix);
+        }
+    }
+}
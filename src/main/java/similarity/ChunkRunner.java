@@ -0,0 +1,180 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.TransientFailureException;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes many users in chunks of {@code batchSize} on a pool of {@code concurrency} worker
+ * threads, each chunk in a transaction of its own, so that a failed chunk only rolls back the users
+ * within it. Chunks write to the same venues and artists, so a chunk that fails with a transient
+ * error, such as a deadlock between workers, is retried up to {@code retries} times. The counts of
+ * all chunks processed so far are kept for the statistics that the procedures return.
+ */
+class ChunkRunner {
+
+    /**
+     * The work for one chunk of users, in a transaction of its own
+     */
+    interface Work {
+        /**
+         * @param chunk the node ids of the users in question
+         * @return the number of users processed, not counting those that have been deleted
+         */
+        int process(long[] chunk);
+    }
+
+    private final Log log;
+    private final String name;
+
+    final int batchSize;
+    final int concurrency;
+    final int retries;
+
+    final AtomicLong users = new AtomicLong();
+    final AtomicLong failedUsers = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong failedBatches = new AtomicLong();
+    final AtomicLong retriedBatches = new AtomicLong();
+
+    /**
+     * @param name what a chunk is called in log messages, eg. "Affinity batch"
+     * @param options batchSize (default 1000), concurrency (default the number of cores) and
+     *                retries (default 3)
+     */
+    ChunkRunner(Log log, String name, Map<String, Object> options) {
+        this.log = log;
+        this.name = name;
+        this.batchSize = Math.max(1, Options.intValue(options, "batchSize", 1000));
+        this.concurrency = Math.max(1, Options.intValue(options, "concurrency", Runtime.getRuntime().availableProcessors()));
+        this.retries = Math.max(0, Options.intValue(options, "retries", 3));
+    }
+
+    /**
+     * Process the given users in chunks on the pool, and wait for all of them; a chunk that fails
+     * for good is logged and counted rather than thrown
+     *
+     * @param userIds the node ids of the users in question
+     * @param work the work for each chunk
+     */
+    void run(long[] userIds, Work work) {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int from = 0; from < userIds.length; from += batchSize) {
+                long[] chunk = Arrays.copyOfRange(userIds, from, Math.min(from + batchSize, userIds.length));
+                batches.incrementAndGet();
+                futures.add(pool.submit(() -> {
+                    try {
+                        users.addAndGet(process(chunk, work));
+                    } catch (RuntimeException e) {
+                        failedBatches.incrementAndGet();
+                        failedUsers.addAndGet(chunk.length);
+                        log.error(name + " of " + chunk.length + " users failed", e);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for " + name.toLowerCase() + "es", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(name + " failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Process a chunk of users on the current thread, retrying it if it fails with a transient
+     * error; the retries are counted, but not the users, which is up to the caller
+     *
+     * @param chunk the node ids of the users in question
+     * @param work the work for the chunk
+     * @return the number of users processed, not counting those that have been deleted
+     */
+    int process(long[] chunk, Work work) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return work.process(chunk);
+            } catch (RuntimeException e) {
+                if (attempt >= retries || ! isTransient(e)) {
+                    throw e;
+                }
+                retriedBatches.incrementAndGet();
+                log.warn(name + " of " + chunk.length + " users failed, and will be retried: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the users processed per second over a run that took timeMs
+     */
+    double usersPerSecond(long timeMs) {
+        return timeMs == 0 ? users.get() : users.get() * 1000.0 / timeMs;
+    }
+
+    /**
+     * Resolve the ids of the users to process, from either a list of user nodes or a label name
+     *
+     * @param db the database, in a transaction
+     * @param users a List of Nodes, a single Node, or the name of a label
+     * @return the node ids of the users
+     */
+    static long[] userIds(GraphDatabaseService db, Object users) {
+        if (users == null) {
+            return new long[0];
+        }
+        if (users instanceof Node) {
+            return new long[] { ((Node) users).getId() };
+        }
+        if (users instanceof String) {
+            LongArray ids = new LongArray();
+            try (ResourceIterator<Node> nodes = db.findNodes(Label.label((String) users))) {
+                while (nodes.hasNext()) {
+                    ids.add(nodes.next().getId());
+                }
+            }
+            return ids.toArray();
+        }
+        if (users instanceof List) {
+            LongArray ids = new LongArray();
+            for (Object user : (List<?>) users) {
+                if (user instanceof Node) {
+                    ids.add(((Node) user).getId());
+                } else if (user != null) {
+                    throw new IllegalArgumentException("Expected a list of User nodes but found " + user.getClass().getSimpleName());
+                }
+            }
+            return ids.toArray();
+        }
+        throw new IllegalArgumentException("Expected a list of User nodes or a label name but found " + users.getClass().getSimpleName());
+    }
+
+    /**
+     * @return whether the error, or one of its causes, is worth retrying, eg. a deadlock
+     */
+    static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransientFailureException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+package similarity;
+
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Accumulates the NMID values of the SIMILAR_TO relationships on the paths from a user to a
+ * single target, keeping direct (TRACKS) and proxy (PROXY_TRACKS, or tracked event) paths apart
+ */
+class Contribution {
+
+    long   count = 0;
+    double total = 0;
+    double prod = 1.0;
+    double min = 1.0;
+    long   proxyCount = 0;
+    double proxyTotal = 0;
+    double proxyProd = 1.0;
+    double proxyMin = 1.0;
+
+    void add(boolean isProxyPath, double similarity) {
+        if ( ! isProxyPath) {
+            count++;
+            total += similarity;
+            prod *= similarity;
+            if (similarity < min) {
+                min = similarity;
+            }
+        } else {
+            proxyCount++;
+            proxyTotal += similarity;
+            proxyProd *= similarity;
+            if (similarity < proxyMin) {
+                proxyMin = similarity;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return count == 0 && proxyCount == 0;
+    }
+
+    double avg() {
+        return count > 0 ? total / count : Double.NaN;
+    }
+
+    double proxyAvg() {
+        return proxyCount > 0 ? proxyTotal / proxyCount : Double.NaN;
+    }
+
+    /**
+     * Set the min/avg/prod/count and proxy equivalents on an affinity relationship, leaving
+     * either group untouched if no paths contributed to it
+     */
+    void write(Relationship affinity, PropertyWriter writer) {
+        if (count > 0) {
+            writer.set(affinity, "min", min);
+            writer.set(affinity, "avg", total / count);
+            writer.set(affinity, "prod", prod);
+            writer.set(affinity, "count", count);
+        }
+
+        if (proxyCount > 0) {
+            writer.set(affinity, "proxyMin", proxyMin);
+            writer.set(affinity, "proxyAvg", proxyTotal / proxyCount);
+            writer.set(affinity, "proxyProd", proxyProd);
+            writer.set(affinity, "proxyCount", proxyCount);
+        }
+    }
+
+    /**
+     * As {@link #write}, but also remove either group from the relationship if no paths contribute
+     * to it any more
+     */
+    void replace(Relationship affinity, PropertyWriter writer) {
+        write(affinity, writer);
+
+        if (count == 0) {
+            for (String key : new String[] { "min", "avg", "prod", "count" }) {
+                writer.remove(affinity, key);
+            }
+        }
+
+        if (proxyCount == 0) {
+            for (String key : new String[] { "proxyMin", "proxyAvg", "proxyProd", "proxyCount" }) {
+                writer.remove(affinity, key);
+            }
+        }
+    }
+
+    /**
+     * Copy the min/avg/prod/count and proxy equivalents to a streamed result, leaving either group
+     * null if no paths contributed to it
+     */
+    void fill(AffinityResult result) {
+        if (count > 0) {
+            result.min = min;
+            result.avg = total / count;
+            result.prod = prod;
+            result.count = count;
+        }
+
+        if (proxyCount > 0) {
+            result.proxyMin = proxyMin;
+            result.proxyAvg = proxyTotal / proxyCount;
+            result.proxyProd = proxyProd;
+            result.proxyCount = proxyCount;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.storageengine.api.txstate.ReadableTransactionState;
+
+/**
+ * Helpers for working with the database service handed to procedures
+ */
+final class Databases {
+
+    private Databases() {
+    }
+
+    /**
+     * The GraphDatabaseService injected into a procedure is bound to the procedure's own thread and
+     * transaction. Work that runs on other threads in separate transactions (eg. batched commits)
+     * needs the database facade itself, which we look up through the dependency resolver.
+     *
+     * @param db the GraphDatabaseService injected into the procedure
+     * @return a GraphDatabaseService that can begin transactions on any thread
+     */
+    static GraphDatabaseService unrestricted(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(GraphDatabaseAPI.class);
+    }
+
+    /**
+     * Whether the transaction bound to the current thread has uncommitted changes to a node or its
+     * relationships, which in-memory snapshots of committed data will not reflect
+     *
+     * @param db the GraphDatabaseService injected into the procedure
+     * @param nodeId the node in question
+     */
+    static boolean modifiedInTransaction(GraphDatabaseService db, long nodeId) {
+        ReadableTransactionState state = transactionState(db);
+        return state != null && state.nodeModifiedInThisTx(nodeId);
+    }
+
+    /**
+     * The uncommitted changes of the transaction bound to the current thread, eg. to check its
+     * relationships for property changes, which do not count as changes to their nodes
+     *
+     * @param db the GraphDatabaseService injected into the procedure
+     * @return the changes, or null if there is no transaction or it has changed nothing
+     */
+    static ReadableTransactionState transactionState(GraphDatabaseService db) {
+        KernelTransaction tx = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class)
+                .getKernelTransactionBoundToThisThread(false);
+        if ( ! (tx instanceof TxStateHolder) || ! ((TxStateHolder) tx).hasTxStateWithChanges()) {
+            return null;
+        }
+        return ((TxStateHolder) tx).txState();
+    }
+
+    /**
+     * Run an action when a database shuts down, eg. to forget caches that were built for it
+     *
+     * @param database the unrestricted database
+     * @param action the action to run
+     */
+    static void onShutdown(GraphDatabaseService database, Runnable action) {
+        database.registerKernelEventHandler(new KernelEventHandler() {
+            @Override
+            public void beforeShutdown() {
+                action.run();
+            }
+
+            @Override
+            public void kernelPanic(ErrorState error) {
+            }
+
+            @Override
+            public Object getResource() {
+                return null;
+            }
+
+            @Override
+            public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+                return ExecutionOrder.DOESNT_MATTER;
+            }
+        });
+    }
+}
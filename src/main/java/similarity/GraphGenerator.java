@@ -0,0 +1,307 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates a seeded graph with the labels and relationships of the production graph, for
+ * benchmarks and soak tests. The popularity of venues, artists and events follows a power law with
+ * exponent {@code skew}, and so do the number of tracks per user and similarities per node, so a
+ * few nodes have very high degrees as in production. Zero skew gives uniform popularity and fixed
+ * degrees. Nodes and relationships are created through the Core API on a single thread and
+ * committed every {@code batchSize} operations, so the same seed always gives the same graph.
+ */
+public class GraphGenerator {
+
+    // users and venues are scattered across the UK
+    private static final double MIN_LATITUDE = 50.0;
+    private static final double MAX_LATITUDE = 58.0;
+    private static final double MIN_LONGITUDE = -6.0;
+    private static final double MAX_LONGITUDE = 2.0;
+
+    private final GraphDatabaseService db;
+    private final Log log;
+
+    private final long seed;
+    private final int users;
+    private final int venues;
+    private final int artists;
+    private final int events;
+    private final double tracksPerUser;
+    private final double proxyTracksPerUser;
+    private final double similarPerNode;
+    private final double artistsPerEvent;
+    private final double skew;
+    private final int batchSize;
+
+    public GraphGenerator(GraphDatabaseService db, Log log, Map<String, Object> options) {
+        this.db = Databases.unrestricted(db);
+        this.log = log;
+        this.seed = Options.longValue(options, "seed", 42);
+        this.users = Math.max(0, Options.intValue(options, "users", 1000));
+        this.venues = Math.max(0, Options.intValue(options, "venues", 200));
+        this.artists = Math.max(0, Options.intValue(options, "artists", 200));
+        this.events = Math.max(0, Options.intValue(options, "events", 500));
+        this.tracksPerUser = Options.doubleValue(options, "tracksPerUser", 10);
+        this.proxyTracksPerUser = Options.doubleValue(options, "proxyTracksPerUser", 2);
+        this.similarPerNode = Options.doubleValue(options, "similarPerNode", 10);
+        this.artistsPerEvent = Options.doubleValue(options, "artistsPerEvent", 2);
+        this.skew = Math.max(0, Options.doubleValue(options, "skew", 1.0));
+        this.batchSize = Math.max(1, Options.intValue(options, "batchSize", 10000));
+    }
+
+    /**
+     * Generate the graph, adding to whatever is already in the database
+     *
+     * @return the number of nodes and relationships created
+     */
+    public Result run() {
+        // batched commits need a thread without the procedure's transaction bound to it
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            return writer.submit(this::generate).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while generating graph", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Generating graph failed", e.getCause());
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private Result generate() {
+        long start = System.currentTimeMillis();
+        Random random = new Random(seed);
+        Result result = new Result();
+
+        try (Batch batch = new Batch(result)) {
+            long[] venueIds = createNodes(batch, random, venues, true, MyLabels.Venue, MyLabels.Active);
+            long[] artistIds = createNodes(batch, random, artists, false, MyLabels.Artist, MyLabels.Active);
+            long[] eventIds = createNodes(batch, random, events, false, MyLabels.Event, MyLabels.Future);
+            long[] userIds = createNodes(batch, random, users, true, MyLabels.User);
+
+            PowerLaw venuePopularity = new PowerLaw(venues, skew);
+            PowerLaw artistPopularity = new PowerLaw(artists, skew);
+            PowerLaw eventPopularity = new PowerLaw(events, skew);
+
+            // each relationship adds a similarity to both of its nodes
+            similarTo(batch, random, venueIds, venuePopularity);
+            similarTo(batch, random, artistIds, artistPopularity);
+
+            for (int i = 0; i < eventIds.length && venues > 0 && artists > 0; i++) {
+                Node event = db.getNodeById(eventIds[i]);
+                db.getNodeById(venueIds[venuePopularity.next(random)]).createRelationshipTo(event, MyRelationshipTypes.HOSTS);
+                batch.relationship();
+
+                int lineUp = Math.max(1, degree(random, artistsPerEvent, artists));
+                PrimitiveLongSet playing = Primitive.longSet();
+                for (int attempt = 0; playing.size() < lineUp && attempt < lineUp * 4; attempt++) {
+                    int artist = artistPopularity.next(random);
+                    if (playing.add(artist)) {
+                        db.getNodeById(artistIds[artist]).createRelationshipTo(event, MyRelationshipTypes.PLAYS)
+                                .setProperty("roster", (long) playing.size() - 1);
+                        batch.relationship();
+                    }
+                }
+            }
+
+            long[][] targets = {venueIds, artistIds, eventIds};
+            PowerLaw[] popularity = {venuePopularity, artistPopularity, eventPopularity};
+            int[][] trackers = {new int[venues], new int[artists], new int[events]};
+            for (long userId : userIds) {
+                Node user = db.getNodeById(userId);
+                PrimitiveLongSet tracked = Primitive.longSet();
+                // venues and artists are tracked twice as often as events
+                track(batch, random, user, tracked, degree(random, tracksPerUser, venues + artists + events),
+                        new int[] {0, 0, 1, 1, 2}, targets, popularity, trackers, MyRelationshipTypes.TRACKS);
+                track(batch, random, user, tracked, degree(random, proxyTracksPerUser, venues + artists),
+                        new int[] {0, 1}, targets, popularity, null, MyRelationshipTypes.PROXY_TRACKS);
+            }
+
+            for (int kind = 0; kind < 2; kind++) {
+                for (int i = 0; i < targets[kind].length; i++) {
+                    db.getNodeById(targets[kind][i]).setProperty("trackers", (long) trackers[kind][i]);
+                    batch.operation();
+                }
+            }
+            batch.success();
+        }
+
+        result.timeMs = System.currentTimeMillis() - start;
+        log.info("Generated graph of " + (result.users + result.venues + result.artists + result.events) + " nodes and " +
+                result.relationships + " relationships in " + result.timeMs + "ms");
+
+        return result;
+    }
+
+    private long[] createNodes(Batch batch, Random random, int count, boolean located, Label... labels) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            Node node = db.createNode(labels);
+            node.setProperty("id", (long) i);
+            if (located) {
+                node.setProperty("latitude", MIN_LATITUDE + random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE));
+                node.setProperty("longitude", MIN_LONGITUDE + random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE));
+            }
+            ids[i] = node.getId();
+            batch.node(labels[0]);
+        }
+        return ids;
+    }
+
+    private void similarTo(Batch batch, Random random, long[] ids, PowerLaw popularity) {
+        PrimitiveLongSet pairs = Primitive.longSet();
+        for (int i = 0; i < ids.length; i++) {
+            Node node = db.getNodeById(ids[i]);
+            int degree = degree(random, similarPerNode / 2, ids.length - 1);
+            for (int created = 0, attempt = 0; created < degree && attempt < degree * 4; attempt++) {
+                int other = popularity.next(random);
+                if (other != i && pairs.add((long) Math.min(i, other) * ids.length + Math.max(i, other))) {
+                    node.createRelationshipTo(db.getNodeById(ids[other]), MyRelationshipTypes.SIMILAR_TO)
+                            .setProperty("NMID", 0.5 + random.nextDouble() / 2);
+                    batch.relationship();
+                    created++;
+                }
+            }
+        }
+    }
+
+    private void track(Batch batch, Random random, Node user, PrimitiveLongSet tracked, int degree, int[] kinds,
+                       long[][] targets, PowerLaw[] popularity, int[][] trackers, MyRelationshipTypes type) {
+        for (int created = 0, attempt = 0; created < degree && attempt < degree * 4; attempt++) {
+            int kind = kinds[random.nextInt(kinds.length)];
+            if (targets[kind].length == 0) {
+                continue;
+            }
+            int target = popularity[kind].next(random);
+            if (tracked.add(((long) kind << 32) | target)) {
+                Relationship track = user.createRelationshipTo(db.getNodeById(targets[kind][target]), type);
+                if (type == MyRelationshipTypes.PROXY_TRACKS) {
+                    // as similarity.addProxyTracks marks the relationships it maintains
+                    track.setProperty("proxy", true);
+                }
+                if (trackers != null) {
+                    trackers[kind][target]++;
+                }
+                batch.relationship();
+                created++;
+            }
+        }
+    }
+
+    /**
+     * A degree with the given mean, drawn from a Pareto distribution whose tail gets heavier with
+     * the skew, and capped at the number of possible targets
+     */
+    private int degree(Random random, double mean, int max) {
+        if (mean <= 0 || max <= 0) {
+            return 0;
+        }
+        if (skew == 0) {
+            return (int) Math.min(max, Math.round(mean));
+        }
+        double alpha = 1 + 1 / skew;
+        double minimum = mean * (alpha - 1) / alpha;
+        double degree = minimum / Math.pow(1 - random.nextDouble(), 1 / alpha);
+        return (int) Math.min(max, Math.round(degree));
+    }
+
+    /**
+     * Draws indexes in [0, n) with probability proportional to (index + 1) ^ -skew, so that the
+     * first nodes created are the most popular
+     */
+    private static class PowerLaw {
+        private final double[] cumulative;
+
+        PowerLaw(int n, double skew) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += Math.pow(i + 1, -skew);
+                cumulative[i] = total;
+            }
+        }
+
+        int next(Random random) {
+            double x = random.nextDouble() * cumulative[cumulative.length - 1];
+            int i = Arrays.binarySearch(cumulative, x);
+            return Math.min(cumulative.length - 1, i >= 0 ? i : -i - 1);
+        }
+    }
+
+    /**
+     * The current transaction, committed every batchSize operations; if generation fails, only the
+     * current batch is rolled back
+     */
+    private class Batch implements AutoCloseable {
+        private final Result result;
+        private Transaction tx = db.beginTx();
+        private long operations;
+
+        Batch(Result result) {
+            this.result = result;
+        }
+
+        void node(Label label) {
+            switch ((MyLabels) label) {
+                case User: result.users++; break;
+                case Venue: result.venues++; break;
+                case Artist: result.artists++; break;
+                case Event: result.events++; break;
+                default: break;
+            }
+            operation();
+        }
+
+        void relationship() {
+            result.relationships++;
+            operation();
+        }
+
+        void operation() {
+            if (++operations % batchSize == 0) {
+                tx.success();
+                tx.close();
+                result.batches++;
+                tx = db.beginTx();
+            }
+        }
+
+        void success() {
+            tx.success();
+        }
+
+        @Override
+        public void close() {
+            tx.close();
+            result.batches++;
+        }
+    }
+
+    /**
+     * Statistics returned by similarity.generateGraph
+     */
+    public static class Result {
+        public long users;
+        public long venues;
+        public long artists;
+        public long events;
+        public long relationships;
+        public long batches;
+        public long timeMs;
+    }
+}
@@ -0,0 +1,337 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.logging.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps venue affinities current as the graph changes, rather than waiting for the next full
+ * recalculation. A transaction event handler works out which user and venue pairs each committed
+ * change to TRACKS, PROXY_TRACKS, SIMILAR_TO (or their NMID) and HOSTS relationships affects, and a
+ * single background thread recalculates just those pairs, following the same paths as
+ * similarity.calculateVenueAffinity.
+ *
+ * Enabled with similarity.incremental.enabled=true; pairs that are still queued when the database
+ * shuts down are not recalculated.
+ */
+class IncrementalAffinity extends LifecycleAdapter {
+
+    private static final Map<GraphDatabaseService, IncrementalAffinity> INSTANCES = new ConcurrentHashMap<>();
+
+    private final GraphDatabaseAPI db;
+    private final Log log;
+    private final boolean enabled;
+    private final boolean useProxyTracks;
+    private final int batchSize;
+
+    private final Object lock = new Object();
+    private PrimitiveLongObjectMap<PrimitiveLongSet> pending = Primitive.longObjectMap();
+    private boolean draining;
+
+    private final AtomicLong recalculated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private ExecutorService executor;
+    private Detector detector;
+
+    IncrementalAffinity(GraphDatabaseAPI db, Config config, Log log) {
+        this.db = db;
+        this.log = log;
+        this.enabled = config.get(AffinitySettings.incremental_enabled);
+        this.useProxyTracks = config.get(AffinitySettings.incremental_use_proxy_tracks);
+        this.batchSize = Math.max(1, config.get(AffinitySettings.incremental_batch_size));
+    }
+
+    /**
+     * @param db the database, as injected into a procedure
+     * @return the incremental maintenance of the database, or null if it is not enabled
+     */
+    static IncrementalAffinity forDatabase(GraphDatabaseService db) {
+        return INSTANCES.get(Databases.unrestricted(db));
+    }
+
+    @Override
+    public void start() throws Throwable {
+        if ( ! enabled) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "similarity-incremental-affinity");
+            thread.setDaemon(true);
+            return thread;
+        });
+        detector = new Detector();
+        db.registerTransactionEventHandler(detector);
+        INSTANCES.put(db, this);
+        log.info("Incremental venue affinity maintenance enabled" + (useProxyTracks ? " (using PROXY_TRACKS)" : ""));
+    }
+
+    @Override
+    public void stop() throws Throwable {
+        if ( ! enabled) {
+            return;
+        }
+        INSTANCES.remove(db);
+        db.unregisterTransactionEventHandler(detector);
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    long recalculated() {
+        return recalculated.get();
+    }
+
+    long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Wait until every queued pair has been recalculated
+     *
+     * @return false if pairs were still queued or in progress when the timeout elapsed
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (draining) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    private void enqueue(PrimitiveLongObjectMap<PrimitiveLongSet> pairs) {
+        synchronized (lock) {
+            pairs.visitEntries((user, targets) -> {
+                PrimitiveLongSet queued = pending.get(user);
+                if (queued == null) {
+                    pending.put(user, targets);
+                } else {
+                    targets.visitKeys(target -> {
+                        queued.add(target);
+                        return false;
+                    });
+                }
+                return false;
+            });
+            if ( ! draining) {
+                try {
+                    executor.execute(this::drain);
+                    draining = true;
+                } catch (RejectedExecutionException e) {
+                    // shutting down
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            PrimitiveLongObjectMap<PrimitiveLongSet> pairs;
+            synchronized (lock) {
+                if (pending.isEmpty() || Thread.currentThread().isInterrupted()) {
+                    draining = false;
+                    lock.notifyAll();
+                    return;
+                }
+                pairs = pending;
+                pending = Primitive.longObjectMap();
+            }
+
+            LongArray users = new LongArray();
+            LongArray targets = new LongArray();
+            pairs.visitEntries((user, venues) -> {
+                venues.visitKeys(venue -> {
+                    users.add(user);
+                    targets.add(venue);
+                    return false;
+                });
+                return false;
+            });
+
+            for (int from = 0; from < users.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, users.size());
+                try {
+                    recalculate(users, targets, from, to);
+                    recalculated.addAndGet(to - from);
+                } catch (RuntimeException e) {
+                    failed.addAndGet(to - from);
+                    log.error("Incremental affinity recalculation of " + (to - from) + " pairs failed", e);
+                }
+            }
+        }
+    }
+
+    private void recalculate(LongArray users, LongArray targets, int from, int to) {
+        AffinityEngine engine = new AffinityEngine(db, null);
+
+        try (Transaction tx = db.beginTx()) {
+            for (int i = from; i < to; i++) {
+                Node user;
+                Node venue;
+                try {
+                    user = db.getNodeById(users.get(i));
+                    venue = db.getNodeById(targets.get(i));
+                } catch (NotFoundException e) {
+                    // deleted since the change was queued
+                    continue;
+                }
+                // the all-venue calculations leave out venues that the user already TRACKS
+                if ( ! AffinityEngine.tracks(user, venue)) {
+                    engine.updateAffinity(user, venue, MyLabels.Venue, useProxyTracks);
+                }
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Works out the user and venue pairs affected by a transaction while it can still read the
+     * graph, and queues them once it has committed
+     */
+    private class Detector implements TransactionEventHandler<PrimitiveLongObjectMap<PrimitiveLongSet>> {
+
+        @Override
+        public PrimitiveLongObjectMap<PrimitiveLongSet> beforeCommit(TransactionData data) throws Exception {
+            PrimitiveLongObjectMap<PrimitiveLongSet> pairs = Primitive.longObjectMap();
+
+            for (Relationship relationship : data.createdRelationships()) {
+                affected(relationship, pairs);
+            }
+            for (Relationship relationship : data.deletedRelationships()) {
+                affected(relationship, pairs);
+            }
+            for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+                if (entry.key().equals("NMID") && entry.entity().isType(MyRelationshipTypes.SIMILAR_TO)) {
+                    affected(entry.entity(), pairs);
+                }
+            }
+            for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+                if (entry.key().equals("NMID") && entry.entity().isType(MyRelationshipTypes.SIMILAR_TO)) {
+                    affected(entry.entity(), pairs);
+                }
+            }
+
+            return pairs.isEmpty() ? null : pairs;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, PrimitiveLongObjectMap<PrimitiveLongSet> pairs) {
+            if (pairs != null) {
+                enqueue(pairs);
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, PrimitiveLongObjectMap<PrimitiveLongSet> pairs) {
+        }
+
+        private void affected(Relationship relationship, PrimitiveLongObjectMap<PrimitiveLongSet> pairs) {
+            try {
+                Node start = relationship.getStartNode();
+                Node end = relationship.getEndNode();
+
+                if (relationship.isType(MyRelationshipTypes.TRACKS) ||
+                        (useProxyTracks && relationship.isType(MyRelationshipTypes.PROXY_TRACKS))) {
+                    // (user)-[:TRACKS|PROXY_TRACKS]->(:Venue)-[:SIMILAR_TO]-(venue)
+                    if (start.hasLabel(MyLabels.User) && end.hasLabel(MyLabels.Venue)) {
+                        addSimilar(start, end, pairs);
+                    }
+                    // (user)-[:TRACKS]->(:Event)<-[:HOSTS]-(:Venue)-[:SIMILAR_TO]-(venue)
+                    else if ( ! useProxyTracks && start.hasLabel(MyLabels.User) && end.hasLabel(MyLabels.Event)) {
+                        for (Relationship host : end.getRelationships(Direction.INCOMING, MyRelationshipTypes.HOSTS)) {
+                            if (host.getStartNode().hasLabel(MyLabels.Venue)) {
+                                addSimilar(start, host.getStartNode(), pairs);
+                            }
+                        }
+                    }
+                } else if (relationship.isType(MyRelationshipTypes.SIMILAR_TO)) {
+                    addTrackers(start, end, pairs);
+                    addTrackers(end, start, pairs);
+                } else if ( ! useProxyTracks && relationship.isType(MyRelationshipTypes.HOSTS) && start.hasLabel(MyLabels.Venue)) {
+                    for (Relationship track : end.getRelationships(Direction.INCOMING, MyRelationshipTypes.TRACKS)) {
+                        if (track.getStartNode().hasLabel(MyLabels.User)) {
+                            addSimilar(track.getStartNode(), start, pairs);
+                        }
+                    }
+                }
+            } catch (NotFoundException e) {
+                // one of the nodes was deleted, along with any affinities to or from it
+            }
+        }
+
+        // pair the user with every active venue that is SIMILAR_TO the one they (proxy) track
+        private void addSimilar(Node user, Node source, PrimitiveLongObjectMap<PrimitiveLongSet> pairs) {
+            for (Relationship similar : source.getRelationships(MyRelationshipTypes.SIMILAR_TO)) {
+                Node target = similar.getOtherNode(source);
+                if ( ! target.equals(source)) {
+                    add(user, target, pairs);
+                }
+            }
+        }
+
+        // pair everyone who (proxy) tracks the source venue with the target venue
+        private void addTrackers(Node source, Node target, PrimitiveLongObjectMap<PrimitiveLongSet> pairs) {
+            if ( ! source.hasLabel(MyLabels.Venue) || source.equals(target)) {
+                return;
+            }
+            if (useProxyTracks) {
+                for (Relationship track : source.getRelationships(Direction.INCOMING, MyRelationshipTypes.TRACKS, MyRelationshipTypes.PROXY_TRACKS)) {
+                    if (track.getStartNode().hasLabel(MyLabels.User)) {
+                        add(track.getStartNode(), target, pairs);
+                    }
+                }
+                return;
+            }
+            for (Relationship track : source.getRelationships(Direction.INCOMING, MyRelationshipTypes.TRACKS)) {
+                if (track.getStartNode().hasLabel(MyLabels.User)) {
+                    add(track.getStartNode(), target, pairs);
+                }
+            }
+            for (Relationship host : source.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HOSTS)) {
+                for (Relationship track : host.getEndNode().getRelationships(Direction.INCOMING, MyRelationshipTypes.TRACKS)) {
+                    if (track.getStartNode().hasLabel(MyLabels.User)) {
+                        add(track.getStartNode(), target, pairs);
+                    }
+                }
+            }
+        }
+
+        private void add(Node user, Node venue, PrimitiveLongObjectMap<PrimitiveLongSet> pairs) {
+            if ( ! venue.hasLabel(MyLabels.Venue) || ! venue.hasLabel(MyLabels.Active)) {
+                return;
+            }
+            PrimitiveLongSet targets = pairs.get(user.getId());
+            if (targets == null) {
+                targets = Primitive.longSet();
+                pairs.put(user.getId(), targets);
+            }
+            targets.add(venue.getId());
+        }
+    }
+}
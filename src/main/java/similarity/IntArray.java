@@ -0,0 +1,43 @@
+package similarity;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive ints, used to collect dense node indexes without boxing
+ */
+final class IntArray {
+
+    private int[] values;
+    private int size;
+
+    IntArray() {
+        this(16);
+    }
+
+    IntArray(int capacity) {
+        this.values = new int[Math.max(1, capacity)];
+    }
+
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    int get(int index) {
+        return values[index];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,116 @@
+package similarity;
+
+/**
+ * Allocation-free log-likelihood ratio, mutual information and NMID of a 2x2 contingency table,
+ * returning exactly the same doubles as Mahout's {@code LogLikelihood} and
+ * {@code LoglikelihoodSimilarity}. The x.log(x) term of each count is computed once and shared by
+ * the row, column and matrix entropies, and is looked up from a table for small counts.
+ *
+ * The order of the floating point operations follows Mahout's, which is why the matrix entropy is
+ * summed differently for the LLR (a chain of subtractions) and for NMID (the varargs entropy).
+ */
+final class LogLikelihoodKernel {
+
+    // co-occurrence counts are mostly small, and this keeps the table (128KB) cache resident
+    private static final int TABLE_SIZE = 1 << 14;
+
+    private static final double[] X_LOG_X = new double[TABLE_SIZE];
+
+    static {
+        for (int x = 1; x < TABLE_SIZE; x++) {
+            X_LOG_X[x] = x * Math.log(x);
+        }
+    }
+
+    private LogLikelihoodKernel() {
+    }
+
+    static double xLogX(long x) {
+        if (x >= 0 && x < TABLE_SIZE) {
+            return X_LOG_X[(int) x];
+        }
+        return x == 0 ? 0.0 : x * Math.log(x);
+    }
+
+    /**
+     * The log-likelihood ratio of the co-occurrence counts, as LogLikelihood.logLikelihoodRatio(AB,
+     * A-AB, B-AB, total-A-B+AB)
+     */
+    static double llr(long AB, long A, long B, long total) {
+        return logLikelihoodRatio(AB, A - AB, B - AB, total - A - B + AB);
+    }
+
+    /**
+     * The mutual information of the co-occurrence counts, LLR / 2N
+     */
+    static double mutualInformation(long AB, long A, long B, long total) {
+        return llr(AB, A, B, total) / (2.0 * total);
+    }
+
+    /**
+     * The normalised mutual information distance of the co-occurrence counts, 1 - MI / H where H is
+     * the joint entropy of the table over N
+     */
+    static double nmid(long AB, long A, long B, long total) {
+        long k11 = AB;
+        long k12 = A - AB;
+        long k21 = B - AB;
+        long k22 = total - A - B + AB;
+        checkCounts(k11, k12, k21, k22);
+
+        double xN = xLogX(k11 + k12 + k21 + k22);
+        double x11 = xLogX(k11);
+        double x12 = xLogX(k12);
+        double x21 = xLogX(k21);
+        double x22 = xLogX(k22);
+
+        double mutualInformation = ratio(xN, k11, k12, k21, k22, x11, x12, x21, x22) / (2.0 * total);
+        double normalisedJointEntropy = (xN - (x11 + x12 + x21 + x22)) / total;
+
+        return 1.0 - (mutualInformation / normalisedJointEntropy);
+    }
+
+    /**
+     * The log-likelihood similarity of the co-occurrence counts, as
+     * LoglikelihoodSimilarity.similarity(AB, A, B, (int) total)
+     */
+    static double llSimilarity(long AB, long A, long B, long total) {
+        // LoglikelihoodSimilarity takes the counts as doubles and the total as an int
+        double dots = AB;
+        double normA = A;
+        double normB = B;
+        long k22 = (long) ((double) (int) total - normA - normB + dots);
+
+        double logLikelihood = logLikelihoodRatio((long) dots, (long) (normB - dots), (long) (normA - dots), k22);
+
+        return 1.0 - 1.0 / (1.0 + logLikelihood);
+    }
+
+    /**
+     * The log-likelihood ratio of a contingency table, as LogLikelihood.logLikelihoodRatio
+     */
+    static double logLikelihoodRatio(long k11, long k12, long k21, long k22) {
+        checkCounts(k11, k12, k21, k22);
+
+        return ratio(xLogX(k11 + k12 + k21 + k22), k11, k12, k21, k22, xLogX(k11), xLogX(k12), xLogX(k21), xLogX(k22));
+    }
+
+    private static double ratio(double xN, long k11, long k12, long k21, long k22,
+                                double x11, double x12, double x21, double x22) {
+        double rowEntropy = xN - xLogX(k11 + k12) - xLogX(k21 + k22);
+        double columnEntropy = xN - xLogX(k11 + k21) - xLogX(k12 + k22);
+        double matrixEntropy = xN - x11 - x12 - x21 - x22;
+        if (rowEntropy + columnEntropy < matrixEntropy) {
+            // round off error
+            return 0.0;
+        }
+        return 2.0 * (rowEntropy + columnEntropy - matrixEntropy);
+    }
+
+    private static void checkCounts(long k11, long k12, long k21, long k22) {
+        if (k11 < 0 || k12 < 0 || k21 < 0 || k22 < 0) {
+            throw new IllegalArgumentException("Co-occurrence counts must not be negative: " +
+                    k11 + ", " + k12 + ", " + k21 + ", " + k22);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package similarity;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive longs, used to collect node ids without boxing
+ */
+final class LongArray {
+
+    private long[] values;
+    private int size;
+
+    LongArray() {
+        this(16);
+    }
+
+    LongArray(int capacity) {
+        this.values = new long[Math.max(1, capacity)];
+    }
+
+    void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    long get(int index) {
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,210 @@
+package similarity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Call counts, latency histograms and named counters for the procedures, and call counts for the
+ * functions, shared by every database in the JVM. Recording never takes a lock: counts are
+ * LongAdders, and latencies go into fixed buckets of an AtomicLongArray, four per power of two
+ * nanoseconds, so percentiles are accurate to within 25%.
+ */
+final class Metrics {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private static final Map<String, Metric> METRICS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    static Metric get(String name) {
+        // computeIfAbsent locks the bin even when the metric exists
+        Metric metric = METRICS.get(name);
+        return metric != null ? metric : METRICS.computeIfAbsent(name, Metric::new);
+    }
+
+    /**
+     * Count a call without timing it, for functions so cheap that reading the clock twice and
+     * updating the histogram would cost about as much as the call itself
+     */
+    static void call(String name) {
+        get(name).calls.increment();
+    }
+
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a call that started at {@code start}, as returned by {@link #start}
+     */
+    static void record(String name, long start) {
+        get(name).record(System.nanoTime() - start);
+    }
+
+    static void count(String name, String counter, long delta) {
+        get(name).count(counter, delta);
+    }
+
+    static void time(String name, Runnable body) {
+        Metric metric = get(name);
+        long start = System.nanoTime();
+        try {
+            body.run();
+        } catch (RuntimeException | Error e) {
+            metric.errors.increment();
+            throw e;
+        } finally {
+            metric.record(System.nanoTime() - start);
+        }
+    }
+
+    static <T> T time(String name, Supplier<T> body) {
+        Metric metric = get(name);
+        long start = System.nanoTime();
+        try {
+            return body.get();
+        } catch (RuntimeException | Error e) {
+            metric.errors.increment();
+            throw e;
+        } finally {
+            metric.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Time a procedure that returns a lazy stream, from the call until the stream is closed
+     */
+    static <T> Stream<T> timeStream(String name, Supplier<Stream<T>> body) {
+        Metric metric = get(name);
+        long start = System.nanoTime();
+        try {
+            return body.get().onClose(() -> metric.record(System.nanoTime() - start));
+        } catch (RuntimeException | Error e) {
+            metric.errors.increment();
+            metric.record(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    static void reset() {
+        METRICS.clear();
+    }
+
+    /**
+     * The bucket of a latency, which is exact below SUB_BUCKETS nanoseconds and otherwise keeps
+     * the two bits after the most significant one
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int fraction = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - 1) * SUB_BUCKETS + fraction);
+    }
+
+    /**
+     * The largest latency that falls into a bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        long fraction = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + fraction + 1) << (exponent - 2)) - 1;
+    }
+
+    static class Metric {
+        final String name;
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+        Metric(String name) {
+            this.name = name;
+        }
+
+        void record(long elapsed) {
+            calls.increment();
+            nanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+            buckets.incrementAndGet(bucket(elapsed));
+        }
+
+        void count(String counter, long delta) {
+            if (delta != 0) {
+                counters.computeIfAbsent(counter, key -> new LongAdder()).add(delta);
+            }
+        }
+
+        /**
+         * @param quantile eg. 0.99
+         * @return the upper bound of the bucket holding the quantile, in nanoseconds
+         */
+        long percentile(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+
+        Map<String, Object> counters() {
+            Map<String, Object> values = new TreeMap<>();
+            counters.forEach((counter, value) -> values.put(counter, value.sum()));
+            return values;
+        }
+
+        StatsProcedures.Stat stat() {
+            StatsProcedures.Stat stat = new StatsProcedures.Stat();
+            stat.name = name;
+            stat.calls = calls.sum();
+            stat.errors = errors.sum();
+            stat.totalMs = nanos.sum() / 1e6;
+            stat.meanMs = stat.calls == 0 ? 0 : stat.totalMs / stat.calls;
+            stat.maxMs = maxNanos.get() / 1e6;
+            stat.p50Ms = percentile(0.50) / 1e6;
+            stat.p95Ms = percentile(0.95) / 1e6;
+            stat.p99Ms = percentile(0.99) / 1e6;
+            stat.counters = counters();
+            return stat;
+        }
+    }
+
+    static List<StatsProcedures.Stat> stats() {
+        List<StatsProcedures.Stat> stats = new ArrayList<>();
+        for (Metric metric : METRICS.values()) {
+            stats.add(metric.stat());
+        }
+        stats.sort((a, b) -> a.name.compareTo(b.name));
+        return stats;
+    }
+}
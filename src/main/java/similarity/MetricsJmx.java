@@ -0,0 +1,131 @@
+package similarity;
+
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.logging.Log;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes the {@link Metrics} as the MBean similarity:type=Metrics, with one numeric attribute
+ * per statistic (eg. similarity.calculateAllVenueAffinity.p99Ms) so that monitoring can alert on
+ * each of them, and a reset operation. Enabled with similarity.metrics.jmx_enabled=true.
+ */
+class MetricsJmx extends LifecycleAdapter {
+
+    private static final String OBJECT_NAME = "similarity:type=Metrics";
+
+    private final boolean enabled;
+    private final Log log;
+    private ObjectName registered;
+
+    MetricsJmx(Config config, Log log) {
+        this.enabled = config.get(AffinitySettings.metrics_jmx_enabled);
+        this.log = log;
+    }
+
+    @Override
+    public void start() throws Throwable {
+        if ( ! enabled) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        // the metrics are shared by every database in the JVM, so one MBean serves them all
+        if ( ! server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(), name);
+            registered = name;
+            log.info("Similarity metrics published to JMX as " + OBJECT_NAME);
+        }
+    }
+
+    @Override
+    public void stop() throws Throwable {
+        if (registered != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            registered = null;
+        }
+    }
+
+    static class MetricsMBean implements DynamicMBean {
+
+        private static Map<String, Object> attributes() {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            for (StatsProcedures.Stat stat : Metrics.stats()) {
+                attributes.put(stat.name + ".calls", stat.calls);
+                attributes.put(stat.name + ".errors", stat.errors);
+                attributes.put(stat.name + ".meanMs", stat.meanMs);
+                attributes.put(stat.name + ".maxMs", stat.maxMs);
+                attributes.put(stat.name + ".p50Ms", stat.p50Ms);
+                attributes.put(stat.name + ".p95Ms", stat.p95Ms);
+                attributes.put(stat.name + ".p99Ms", stat.p99Ms);
+                stat.counters.forEach((counter, value) -> attributes.put(stat.name + "." + counter, value));
+            }
+            return attributes;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Similarity metrics are read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            if ("reset".equals(actionName)) {
+                Metrics.reset();
+                return null;
+            }
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            attributes().forEach((name, value) -> infos.add(new MBeanAttributeInfo(name, value.getClass().getName(),
+                    name, true, false, false)));
+            MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clear all statistics", null, "void",
+                    MBeanOperationInfo.ACTION);
+            return new MBeanInfo(getClass().getName(), "Similarity procedure and function metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {reset}, null);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package similarity;
+
+import org.neo4j.graphdb.Label;
+
+/**
+ * The node labels used by the affinity procedures
+ */
+enum MyLabels implements Label
+{
+    User, Venue, Artist, Event, Active, Future, RebuildCheckpoint
+}
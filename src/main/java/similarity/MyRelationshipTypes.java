@@ -7,5 +7,5 @@ import org.neo4j.graphdb.RelationshipType;
  */
 enum MyRelationshipTypes implements RelationshipType
 {
-    HAS_AFFINITY_FOR, TRACKS, PROXY_TRACKS, SIMILAR_TO, HOSTS
+    HAS_AFFINITY_FOR, TRACKS, PROXY_TRACKS, SIMILAR_TO, HOSTS, PLAYS
 }
\ No newline at end of file
@@ -0,0 +1,295 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.storageengine.api.txstate.ReadableTransactionState;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The SIMILAR_TO neighbours of venues and artists, most similar (lowest NMID) first, so that an
+ * expansion that only wants the strongest similarities can stop at the first neighbour past a
+ * maxNMID threshold or after the topN. A node's committed neighbours are read and sorted the first
+ * time they are needed, and a transaction event handler forgets both ends of each SIMILAR_TO
+ * relationship that a commit creates, deletes or changes the NMID of, so they are read again when
+ * next needed. Nodes that the current transaction has changed, or whose SIMILAR_TO relationships
+ * it has set properties on, are read from the store and sorted without being kept. Nodes are
+ * evicted least recently used first once the lists hold
+ * {@code similarity.neighbour_cache.max_entries} neighbours between them.
+ */
+class NeighbourCache {
+
+    private static final int STRIPES = 1024;
+
+    private static final Map<GraphDatabaseService, NeighbourCache> CACHES = new ConcurrentHashMap<>();
+
+    private final GraphDatabaseAPI database;
+    private final long maxEntries;
+
+    // guarded by this
+    private final LinkedHashMap<Long, Neighbours> nodes = new LinkedHashMap<>(16, 0.75f, true);
+    private long entries;
+
+    // bumped by every commit that changes the similarities of a node in the stripe, so that a list
+    // read before the commit is not kept
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    private NeighbourCache(GraphDatabaseAPI database) {
+        this.database = database;
+        this.maxEntries = database.getDependencyResolver().resolveDependency(Config.class)
+                .get(AffinitySettings.neighbour_cache_max_entries);
+    }
+
+    /**
+     * Get the neighbour cache of a database, creating it on first use
+     *
+     * @param db the database, as injected into a procedure
+     */
+    static NeighbourCache forDatabase(GraphDatabaseService db) {
+        GraphDatabaseService database = Databases.unrestricted(db);
+        NeighbourCache cache = CACHES.get(database);
+        if (cache != null) {
+            return cache;
+        }
+
+        synchronized (CACHES) {
+            cache = CACHES.get(database);
+            if (cache == null) {
+                cache = new NeighbourCache((GraphDatabaseAPI) database);
+                database.registerTransactionEventHandler(cache.new Maintainer());
+                Databases.onShutdown(database, () -> CACHES.remove(database));
+                CACHES.put(database, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * The neighbours of a node, as seen by the current transaction, most similar first
+     *
+     * @param source the venue or artist in question
+     */
+    Neighbours neighbours(Node source) {
+        long sourceId = source.getId();
+        // relationships created or deleted by the transaction change their nodes, but new property
+        // values do not, so the relationships of a kept list are checked too
+        ReadableTransactionState state = Databases.transactionState(database);
+        if (state != null && state.nodeModifiedInThisTx(sourceId)) {
+            return Neighbours.of(source);
+        }
+        synchronized (this) {
+            Neighbours neighbours = nodes.get(sourceId);
+            if (neighbours != null && (state == null || ! neighbours.changedIn(state))) {
+                return neighbours;
+            }
+        }
+
+        int stripe = stripe(sourceId);
+        long version = versions.get(stripe);
+        Neighbours neighbours = Neighbours.of(source);
+        if (maxEntries <= 0 || (state != null && neighbours.changedIn(state))) {
+            return neighbours;
+        }
+
+        synchronized (this) {
+            // a commit may have changed the neighbours after they were read
+            if (versions.get(stripe) == version) {
+                Neighbours previous = nodes.put(sourceId, neighbours);
+                entries += neighbours.size() - (previous == null ? 0 : previous.size());
+                evict();
+            }
+        }
+        return neighbours;
+    }
+
+    // must hold the lock
+    private void evict() {
+        Iterator<Neighbours> eldest = nodes.values().iterator();
+        while (entries > maxEntries && eldest.hasNext()) {
+            entries -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    synchronized int nodes() {
+        return nodes.size();
+    }
+
+    private static int stripe(long nodeId) {
+        return (int) (nodeId & (STRIPES - 1));
+    }
+
+    /**
+     * The SIMILAR_TO relationships of one node that have an NMID, as the node ids at their other
+     * ends, sorted by NMID and then node id, and the ids of all its SIMILAR_TO relationships
+     */
+    static final class Neighbours {
+        final long[] targets;
+        final double[] nmids;
+        private final long[] relationships;
+
+        private Neighbours(long[] targets, double[] nmids, long[] relationships) {
+            this.targets = targets;
+            this.nmids = nmids;
+            this.relationships = relationships;
+        }
+
+        static Neighbours of(Node source) {
+            LongArray targets = new LongArray();
+            LongArray relationships = new LongArray();
+            double[] nmids = new double[16];
+            for (Relationship similar : source.getRelationships(MyRelationshipTypes.SIMILAR_TO)) {
+                relationships.add(similar.getId());
+                Object nmid = similar.getProperty("NMID", null);
+                if ( ! (nmid instanceof Number) || Double.isNaN(((Number) nmid).doubleValue())) {
+                    continue;
+                }
+                if (targets.size() == nmids.length) {
+                    nmids = Arrays.copyOf(nmids, nmids.length * 2);
+                }
+                nmids[targets.size()] = ((Number) nmid).doubleValue();
+                targets.add(similar.getOtherNode(source).getId());
+            }
+            int[] order = order(nmids, targets.toArray(), targets.size());
+            Neighbours neighbours = new Neighbours(new long[order.length], new double[order.length], relationships.toArray());
+            for (int i = 0; i < order.length; i++) {
+                neighbours.targets[i] = targets.get(order[i]);
+                neighbours.nmids[i] = nmids[order[i]];
+            }
+            return neighbours;
+        }
+
+        int size() {
+            return targets.length;
+        }
+
+        /**
+         * @return whether the transaction has set or removed properties of any of the relationships
+         */
+        boolean changedIn(ReadableTransactionState state) {
+            for (long relationship : relationships) {
+                if (state.getRelationshipState(relationship).hasChanges()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the number of neighbours from the start of the list that are within the limits
+         */
+        int limit(double maxNMID, int topN) {
+            int limit = topN > 0 ? Math.min(topN, targets.length) : targets.length;
+            for (int i = 0; i < limit; i++) {
+                if (nmids[i] > maxNMID) {
+                    return i;
+                }
+            }
+            return limit;
+        }
+    }
+
+    /**
+     * The order of the first size of a node's SIMILAR_TO relationships by NMID, NaN last, and then
+     * by the node id at their other end
+     *
+     * @return the indexes of the relationships, most similar first
+     */
+    static int[] order(double[] nmids, long[] nodeIds, int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        // a merge sort rather than insertion, as hubs have many neighbours
+        int[] buffer = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int left = 0; left < order.length - width; left += 2 * width) {
+                int middle = left + width;
+                int right = Math.min(left + 2 * width, order.length);
+                System.arraycopy(order, left, buffer, left, right - left);
+                for (int i = left, l = left, r = middle; i < right; i++) {
+                    order[i] = l < middle && (r == right || compare(nmids, nodeIds, buffer[l], buffer[r]) <= 0)
+                            ? buffer[l++] : buffer[r++];
+                }
+            }
+        }
+        return order;
+    }
+
+    private static int compare(double[] nmids, long[] nodeIds, int a, int b) {
+        int byNmid = Double.compare(nmids[a], nmids[b]);
+        return byNmid != 0 ? byNmid : Long.compare(nodeIds[a], nodeIds[b]);
+    }
+
+    /**
+     * Collects the nodes at both ends of the SIMILAR_TO relationships changed by a transaction while
+     * it can still read them, and forgets their neighbours once it commits
+     */
+    private class Maintainer implements TransactionEventHandler<long[]> {
+
+        @Override
+        public long[] beforeCommit(TransactionData data) throws Exception {
+            LongArray changed = new LongArray();
+            for (Relationship relationship : data.createdRelationships()) {
+                collect(relationship, changed);
+            }
+            for (Relationship relationship : data.deletedRelationships()) {
+                collect(relationship, changed);
+            }
+            for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+                if (entry.key().equals("NMID")) {
+                    collect(entry.entity(), changed);
+                }
+            }
+            for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+                if (entry.key().equals("NMID")) {
+                    collect(entry.entity(), changed);
+                }
+            }
+            return changed.size() == 0 ? null : changed.toArray();
+        }
+
+        private void collect(Relationship relationship, LongArray changed) {
+            try {
+                if (relationship.isType(MyRelationshipTypes.SIMILAR_TO)) {
+                    changed.add(relationship.getStartNode().getId());
+                    changed.add(relationship.getEndNode().getId());
+                }
+            } catch (NotFoundException e) {
+                // deleted along with its nodes, whose neighbours can no longer be asked for
+            }
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, long[] changed) {
+            if (changed == null) {
+                return;
+            }
+            synchronized (NeighbourCache.this) {
+                for (long nodeId : changed) {
+                    versions.incrementAndGet(stripe(nodeId));
+                    Neighbours neighbours = nodes.remove(nodeId);
+                    if (neighbours != null) {
+                        entries -= neighbours.size();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, long[] changed) {
+        }
+    }
+}
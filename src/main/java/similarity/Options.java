@@ -0,0 +1,37 @@
+package similarity;
+
+import java.util.Map;
+
+/**
+ * Helpers for reading the optional configuration maps passed to procedures
+ */
+final class Options {
+
+    private Options() {
+    }
+
+    static int intValue(Map<String, Object> options, String key, int defaultValue) {
+        Object value = options == null ? null : options.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    static long longValue(Map<String, Object> options, String key, long defaultValue) {
+        Object value = options == null ? null : options.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    static double doubleValue(Map<String, Object> options, String key, double defaultValue) {
+        Object value = options == null ? null : options.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    static boolean booleanValue(Map<String, Object> options, String key, boolean defaultValue) {
+        Object value = options == null ? null : options.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    static String stringValue(Map<String, Object> options, String key, String defaultValue) {
+        Object value = options == null ? null : options.get(key);
+        return value == null ? defaultValue : value.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sets the popularityNorm of every node with a label from its trackers count, with the same pareto
+ * scaling as the original Cypher statement but without APOC. Nodes whose popularityNorm already
+ * has the value are not written to, so a node is only changed when its trackers count or the
+ * thresholds have changed since the last run. Without a {@code batchSize} the nodes are updated in
+ * the caller's transaction; with one they are split into ranges of consecutive node ids that are
+ * committed separately on {@code concurrency} worker threads, so that the changes never have to
+ * be held in a single transaction.
+ */
+class PopularityNorm {
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private final long eightyPercentValue;
+    private final long maximumValue;
+
+    private final int batchSize;
+    private final int concurrency;
+
+    PopularityNorm(GraphDatabaseService db, Log log, long eightyPercentValue, long maximumValue, Map<String, Object> options) {
+        this.db = db;
+        this.log = log;
+        this.eightyPercentValue = eightyPercentValue;
+        this.maximumValue = maximumValue;
+        this.batchSize = Math.max(0, Options.intValue(options, "batchSize", 0));
+        this.concurrency = Math.max(1, Options.intValue(options, "concurrency", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Update the popularityNorm of all nodes with the label
+     *
+     * @param label the Node label to update, ie. Artist or Venue
+     */
+    void run(String label) {
+        if (batchSize == 0) {
+            try (ResourceIterator<Node> nodes = db.findNodes(Label.label(label))) {
+                while (nodes.hasNext()) {
+                    update(nodes.next());
+                }
+            }
+            return;
+        }
+
+        GraphDatabaseService database = Databases.unrestricted(db);
+        long[] nodeIds = nodeIds(database, label);
+        long start = System.currentTimeMillis();
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int from = 0; from < nodeIds.length; from += batchSize) {
+                long[] range = Arrays.copyOfRange(nodeIds, from, Math.min(from + batchSize, nodeIds.length));
+                futures.add(pool.submit(() -> {
+                    try (Transaction tx = database.beginTx()) {
+                        for (long id : range) {
+                            update(database.getNodeById(id));
+                        }
+                        tx.success();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for popularity norm batches", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Popularity norm batch failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        log.info("Updated the popularity norm of " + nodeIds.length + " " + label + " nodes in " +
+                futures.size() + " batches in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return the ids of the nodes with the label, in ascending order
+     */
+    private static long[] nodeIds(GraphDatabaseService database, String label) {
+        LongArray ids = new LongArray();
+        try (Transaction tx = database.beginTx();
+             ResourceIterator<Node> nodes = database.findNodes(Label.label(label))) {
+            while (nodes.hasNext()) {
+                ids.add(nodes.next().getId());
+            }
+            tx.success();
+        }
+        long[] sorted = ids.toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void update(Node node) {
+        Object trackers = node.getProperty("trackers", null);
+        double popularityNorm = popularityNorm(trackers instanceof Number ? ((Number) trackers).longValue() : 0);
+
+        Metrics.count(Affinity.ADD_POPULARITY_NORM, "nodes", 1);
+        Object existing = node.getProperty("popularityNorm", null);
+        if (existing instanceof Double && (Double) existing == popularityNorm) {
+            Metrics.count(Affinity.ADD_POPULARITY_NORM, "nodesUnchanged", 1);
+            return;
+        }
+        node.setProperty("popularityNorm", popularityNorm);
+        Metrics.count(Affinity.ADD_POPULARITY_NORM, "propertiesSet", 1);
+    }
+
+    private double popularityNorm(long trackers) {
+        return 0.99999 + (0.00001 * (1 - Scores.pareto(0, eightyPercentValue, maximumValue, trackers) / (double) maximumValue));
+    }
+}
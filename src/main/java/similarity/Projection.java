@@ -0,0 +1,629 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIntMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable in-memory projection of the part of the graph that the affinity calculations
+ * traverse: the TRACKS and PROXY_TRACKS relationships of users, the SIMILAR_TO relationships of
+ * venues and artists with their NMID, and the HOSTS relationships of events. Nodes are numbered
+ * densely, and each relationship type is held in compressed sparse row form, so that traversals
+ * need neither store access nor allocation per relationship. The SIMILAR_TO relationships of each
+ * node are sorted most similar first, so that traversals with an NMID threshold or topN can stop
+ * early.
+ *
+ * The projection is a snapshot of committed data, loaded by similarity.projection.load(). A
+ * transaction event handler invalidates it when that data changes: a change to a user's own
+ * TRACKS or PROXY_TRACKS only excludes that user, while any other change marks the whole projection
+ * stale. Calculations for excluded users, or while stale, fall back to the store until the
+ * projection is loaded again.
+ */
+class Projection {
+
+    private static final Map<GraphDatabaseService, Slot> SLOTS = new ConcurrentHashMap<>();
+
+    private static final MyLabels[] LABELS = { MyLabels.User, MyLabels.Venue, MyLabels.Artist, MyLabels.Event, MyLabels.Active };
+
+    private final PrimitiveLongIntMap index;
+    private final long[] ids;
+    private final int[] labels;
+
+    final Adjacency tracks;
+    final Adjacency proxyTracks;
+    final Adjacency similar;
+    final Adjacency hosts;
+
+    private final long loadTimeMs;
+
+    private Projection(PrimitiveLongIntMap index, long[] ids, int[] labels, Adjacency tracks, Adjacency proxyTracks,
+                       Adjacency similar, Adjacency hosts, long loadTimeMs) {
+        this.index = index;
+        this.ids = ids;
+        this.labels = labels;
+        this.tracks = tracks;
+        this.proxyTracks = proxyTracks;
+        this.similar = similar;
+        this.hosts = hosts;
+        this.loadTimeMs = loadTimeMs;
+    }
+
+    /**
+     * Load (or reload) the projection of a database
+     *
+     * @param db the database, as injected into a procedure
+     * @return the status of the new projection
+     */
+    static ProjectionProcedures.Status load(GraphDatabaseService db) {
+        GraphDatabaseService database = Databases.unrestricted(db);
+        Slot slot = slot(database);
+        synchronized (slot.loads) {
+            // the current projection stays in use, as stale or dirty as it was, until the new one
+            // replaces it
+            long invalidations = slot.startLoad();
+            Projection projection;
+            try {
+                projection = build(database);
+            } catch (RuntimeException e) {
+                slot.abortLoad();
+                throw e;
+            }
+            slot.finishLoad(projection, invalidations);
+            return slot.status();
+        }
+    }
+
+    /**
+     * Discard the projection of a database, if it has one
+     *
+     * @param db the database, as injected into a procedure
+     * @return the status of the (now unloaded) projection
+     */
+    static ProjectionProcedures.Status drop(GraphDatabaseService db) {
+        Slot slot = SLOTS.get(Databases.unrestricted(db));
+        if (slot == null) {
+            return new ProjectionProcedures.Status();
+        }
+        synchronized (slot) {
+            slot.projection = null;
+            slot.stale = false;
+            slot.clearDirty();
+            return slot.status();
+        }
+    }
+
+    static ProjectionProcedures.Status status(GraphDatabaseService db) {
+        Slot slot = SLOTS.get(Databases.unrestricted(db));
+        return slot == null ? new ProjectionProcedures.Status() : slot.status();
+    }
+
+    /**
+     * Get the projection of a database if it can be used to traverse from a user; that is, if one
+     * is loaded, is not stale, and neither a commit since it was loaded nor the current transaction
+     * has changed the user's relationships
+     *
+     * @param db the database, as injected into a procedure
+     * @param user the User node in question
+     * @return the projection, or null if the store must be traversed instead
+     */
+    static Projection forUser(GraphDatabaseService db, Node user) {
+        Slot slot = SLOTS.get(Databases.unrestricted(db));
+        if (slot == null) {
+            return null;
+        }
+        Projection projection = slot.projection;
+        if (projection == null || slot.stale || slot.isDirty(user.getId())) {
+            return null;
+        }
+        int index = projection.indexOf(user.getId());
+        if (index < 0 || ! projection.hasLabel(index, MyLabels.User) || Databases.modifiedInTransaction(db, user.getId())) {
+            return null;
+        }
+        return projection;
+    }
+
+    private static Slot slot(GraphDatabaseService database) {
+        synchronized (SLOTS) {
+            Slot slot = SLOTS.get(database);
+            if (slot == null) {
+                slot = new Slot();
+                database.registerTransactionEventHandler(new Invalidator(slot));
+                Databases.onShutdown(database, () -> SLOTS.remove(database));
+                SLOTS.put(database, slot);
+            }
+            return slot;
+        }
+    }
+
+    // in a transaction of its own, on another thread, so that the uncommitted changes of the
+    // caller's transaction are not kept should it roll back
+    private static Projection build(GraphDatabaseService database) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(() -> {
+                try (Transaction tx = database.beginTx()) {
+                    Projection projection = scan(database);
+                    tx.success();
+                    return projection;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading the projection", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to load the projection", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Projection scan(GraphDatabaseService db) {
+        long start = System.currentTimeMillis();
+        Builder builder = new Builder();
+
+        for (MyLabels label : new MyLabels[] { MyLabels.User, MyLabels.Venue, MyLabels.Artist, MyLabels.Event }) {
+            try (ResourceIterator<Node> nodes = db.findNodes(label)) {
+                while (nodes.hasNext()) {
+                    builder.indexOf(nodes.next());
+                }
+            }
+        }
+
+        // only labelled nodes have relationships in the projection; any other nodes that they lead
+        // to are numbered as they are found, after these
+        int sources = builder.ids.size();
+        for (int i = 0; i < sources; i++) {
+            Node node = db.getNodeById(builder.ids.get(i));
+            int labels = builder.labels.get(i);
+
+            if ((labels & bit(MyLabels.User)) != 0) {
+                for (Relationship track : node.getRelationships(Direction.OUTGOING, MyRelationshipTypes.TRACKS, MyRelationshipTypes.PROXY_TRACKS)) {
+                    int target = builder.indexOf(track.getEndNode());
+                    if (track.isType(MyRelationshipTypes.TRACKS)) {
+                        builder.tracks.add(target);
+                    } else {
+                        builder.proxyTracks.add(target);
+                    }
+                }
+            }
+            if ((labels & (bit(MyLabels.Venue) | bit(MyLabels.Artist))) != 0) {
+                for (Relationship similar : node.getRelationships(MyRelationshipTypes.SIMILAR_TO)) {
+                    Object nmid = similar.getProperty("NMID", null);
+                    builder.similar.add(builder.indexOf(similar.getOtherNode(node)),
+                            nmid instanceof Number ? ((Number) nmid).doubleValue() : Double.NaN);
+                }
+            }
+            if ((labels & bit(MyLabels.Event)) != 0) {
+                for (Relationship host : node.getRelationships(Direction.INCOMING, MyRelationshipTypes.HOSTS)) {
+                    builder.hosts.add(builder.indexOf(host.getStartNode()));
+                }
+            }
+
+            builder.tracks.next();
+            builder.proxyTracks.next();
+            builder.similar.next();
+            builder.hosts.next();
+        }
+
+        int nodes = builder.ids.size();
+        long[] ids = builder.ids.toArray();
+        return new Projection(builder.index, ids, builder.labels.toArray(),
+                builder.tracks.build(nodes), builder.proxyTracks.build(nodes), sortByNmid(builder.similar.build(nodes), ids),
+                builder.hosts.build(nodes), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the dense index of a node, or -1 if it is not in the projection
+     */
+    int indexOf(long nodeId) {
+        return index.containsKey(nodeId) ? index.get(nodeId) : -1;
+    }
+
+    long nodeId(int index) {
+        return ids[index];
+    }
+
+    boolean hasLabel(int index, MyLabels label) {
+        return (labels[index] & bit(label)) != 0;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Add the NMID of the SIMILAR_TO relationships on the paths from a user to a single venue or
+     * artist to a contribution, following the same paths as {@link TargetPaths}. The projection has
+     * no PLAYS relationships, so artists can only be followed with useProxyTracks.
+     *
+     * @param user the index of the user
+     * @param target the index of the venue or artist, or -1 if it is not in the projection
+     * @param label Venue or Artist
+     * @param useProxyTracks whether to use PROXY_TRACKS relationships (or find the proxies via tracked events)
+     * @param maxNMID only follow SIMILAR_TO relationships with at most this NMID
+     * @param topN only follow the topN most similar SIMILAR_TO relationships of each node, or 0 for all
+     */
+    void addPaths(int user, int target, MyLabels label, boolean useProxyTracks, double maxNMID, int topN,
+                  Contribution contribution) {
+        if (target < 0) {
+            return;
+        }
+        if ( ! useProxyTracks && label != MyLabels.Venue) {
+            throw new IllegalArgumentException("Only venue paths through tracked events are projected");
+        }
+
+        for (int t = tracks.offsets[user]; t < tracks.offsets[user + 1]; t++) {
+            int tracked = tracks.targets[t];
+            if (tracked == target) {
+                continue;
+            }
+            if (hasLabel(tracked, label)) {
+                // (user)-[:TRACKS]->(:label)-[:SIMILAR_TO]-(target)
+                addSimilar(tracked, target, false, maxNMID, topN, contribution);
+            } else if ( ! useProxyTracks && hasLabel(tracked, MyLabels.Event)) {
+                // (user)-[:TRACKS]->(:Event)<-[:HOSTS]-(:Venue)-[:SIMILAR_TO]-(venue)
+                for (int h = hosts.offsets[tracked]; h < hosts.offsets[tracked + 1]; h++) {
+                    int host = hosts.targets[h];
+                    if (host != target && hasLabel(host, MyLabels.Venue)) {
+                        addSimilar(host, target, true, maxNMID, topN, contribution);
+                    }
+                }
+            }
+        }
+
+        if (useProxyTracks) {
+            // (user)-[:PROXY_TRACKS]->(:label)-[:SIMILAR_TO]-(target)
+            for (int t = proxyTracks.offsets[user]; t < proxyTracks.offsets[user + 1]; t++) {
+                int tracked = proxyTracks.targets[t];
+                if (tracked != target && hasLabel(tracked, label)) {
+                    addSimilar(tracked, target, true, maxNMID, topN, contribution);
+                }
+            }
+        }
+    }
+
+    private void addSimilar(int source, int target, boolean isProxyPath, double maxNMID, int topN, Contribution contribution) {
+        for (int s = similar.offsets[source], end = similarEnd(source, maxNMID, topN); s < end; s++) {
+            if (similar.targets[s] == target && ! Double.isNaN(similar.weights[s])) {
+                contribution.add(isProxyPath, similar.weights[s]);
+            }
+        }
+    }
+
+    /**
+     * The end of the part of a node's SIMILAR_TO relationships, which are sorted most similar first,
+     * that is within an NMID threshold and the topN
+     *
+     * @param source the index of the venue or artist
+     * @param maxNMID the greatest NMID to follow
+     * @param topN the most relationships to follow, or 0 for no limit
+     */
+    int similarEnd(int source, double maxNMID, int topN) {
+        int end = similar.offsets[source + 1];
+        if (topN > 0) {
+            end = Math.min(end, similar.offsets[source] + topN);
+        }
+        for (int s = similar.offsets[source]; s < end; s++) {
+            // NaN sorts last
+            if ( ! (similar.weights[s] <= maxNMID)) {
+                return s;
+            }
+        }
+        return end;
+    }
+
+    // sort the relationships of each node by NMID and then node id, as NeighbourCache does
+    private static Adjacency sortByNmid(Adjacency adjacency, long[] ids) {
+        for (int node = 0; node + 1 < adjacency.offsets.length; node++) {
+            int from = adjacency.offsets[node];
+            int size = adjacency.offsets[node + 1] - from;
+            if (size < 2) {
+                continue;
+            }
+            int[] targets = Arrays.copyOfRange(adjacency.targets, from, from + size);
+            double[] weights = Arrays.copyOfRange(adjacency.weights, from, from + size);
+            long[] nodeIds = new long[size];
+            for (int i = 0; i < size; i++) {
+                nodeIds[i] = ids[targets[i]];
+            }
+            int[] order = NeighbourCache.order(weights, nodeIds, size);
+            for (int i = 0; i < size; i++) {
+                adjacency.targets[from + i] = targets[order[i]];
+                adjacency.weights[from + i] = weights[order[i]];
+            }
+        }
+        return adjacency;
+    }
+
+    private static int bit(MyLabels label) {
+        return 1 << label.ordinal();
+    }
+
+    /**
+     * The relationships of one type in compressed sparse row form: the relationships of the node
+     * with index i lead to {@code targets[offsets[i]]} up to (but excluding) {@code targets[offsets[i + 1]]}
+     */
+    static class Adjacency {
+        final int[] offsets;
+        final int[] targets;
+        final double[] weights;
+
+        Adjacency(int[] offsets, int[] targets, double[] weights) {
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+        }
+
+        int size() {
+            return targets.length;
+        }
+    }
+
+    private static class Builder {
+        final PrimitiveLongIntMap index = Primitive.longIntMap();
+        final LongArray ids = new LongArray();
+        final IntArray labels = new IntArray();
+
+        final AdjacencyBuilder tracks = new AdjacencyBuilder(false);
+        final AdjacencyBuilder proxyTracks = new AdjacencyBuilder(false);
+        final AdjacencyBuilder similar = new AdjacencyBuilder(true);
+        final AdjacencyBuilder hosts = new AdjacencyBuilder(false);
+
+        int indexOf(Node node) {
+            long id = node.getId();
+            if (index.containsKey(id)) {
+                return index.get(id);
+            }
+            int bits = 0;
+            for (MyLabels label : LABELS) {
+                if (node.hasLabel(label)) {
+                    bits |= bit(label);
+                }
+            }
+            int i = ids.size();
+            index.put(id, i);
+            ids.add(id);
+            labels.add(bits);
+            return i;
+        }
+    }
+
+    private static class AdjacencyBuilder {
+        final IntArray offsets = new IntArray();
+        final IntArray targets = new IntArray();
+        double[] weights;
+
+        AdjacencyBuilder(boolean weighted) {
+            offsets.add(0);
+            weights = weighted ? new double[16] : null;
+        }
+
+        void add(int target) {
+            targets.add(target);
+        }
+
+        void add(int target, double weight) {
+            if (targets.size() == weights.length) {
+                weights = Arrays.copyOf(weights, weights.length * 2);
+            }
+            weights[targets.size()] = weight;
+            targets.add(target);
+        }
+
+        // ends the relationships of the current node
+        void next() {
+            offsets.add(targets.size());
+        }
+
+        Adjacency build(int nodes) {
+            while (offsets.size() <= nodes) {
+                offsets.add(targets.size());
+            }
+            return new Adjacency(offsets.toArray(), targets.toArray(),
+                    weights == null ? null : Arrays.copyOf(weights, targets.size()));
+        }
+    }
+
+    /**
+     * The projection of a database, and what has changed since it was loaded
+     */
+    private static class Slot {
+        volatile Projection projection;
+        volatile boolean stale;
+        // while a new projection is scanned, changes are tracked even if there is none to invalidate yet
+        volatile boolean loading;
+        final Object loads = new Object();
+        private final AtomicLong invalidations = new AtomicLong();
+        private final PrimitiveLongSet dirty = Primitive.longSet();
+        // the users marked dirty since the current load began, who stay dirty in the new projection
+        private final PrimitiveLongSet dirtySinceLoad = Primitive.longSet();
+
+        synchronized void invalidate() {
+            invalidations.incrementAndGet();
+            stale = true;
+        }
+
+        void markDirty(PrimitiveLongSet users) {
+            synchronized (dirty) {
+                users.visitKeys(user -> {
+                    dirty.add(user);
+                    if (loading) {
+                        dirtySinceLoad.add(user);
+                    }
+                    return false;
+                });
+            }
+        }
+
+        /**
+         * @return the invalidation count to compare with once the new projection is scanned
+         */
+        long startLoad() {
+            synchronized (dirty) {
+                dirtySinceLoad.clear();
+                loading = true;
+            }
+            return invalidations.get();
+        }
+
+        // the projection is swapped in before stale and dirty are reset, so that the old one is
+        // never used without them
+        synchronized void finishLoad(Projection projection, long invalidations) {
+            this.projection = projection;
+            // anything committed while we were scanning may or may not have been seen
+            stale = this.invalidations.get() != invalidations;
+            synchronized (dirty) {
+                dirty.clear();
+                dirtySinceLoad.visitKeys(user -> {
+                    dirty.add(user);
+                    return false;
+                });
+                dirtySinceLoad.clear();
+                loading = false;
+            }
+        }
+
+        void abortLoad() {
+            synchronized (dirty) {
+                dirtySinceLoad.clear();
+                loading = false;
+            }
+        }
+
+        boolean isDirty(long user) {
+            synchronized (dirty) {
+                return dirty.contains(user);
+            }
+        }
+
+        void clearDirty() {
+            synchronized (dirty) {
+                dirty.clear();
+            }
+        }
+
+        ProjectionProcedures.Status status() {
+            ProjectionProcedures.Status status = new ProjectionProcedures.Status();
+            Projection projection = this.projection;
+            if (projection != null) {
+                status.loaded = true;
+                status.stale = stale;
+                status.nodes = projection.size();
+                status.tracks = projection.tracks.size();
+                status.proxyTracks = projection.proxyTracks.size();
+                status.similarTo = projection.similar.size();
+                status.hosts = projection.hosts.size();
+                synchronized (dirty) {
+                    status.dirtyUsers = dirty.size();
+                }
+                status.loadTimeMs = projection.loadTimeMs;
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Marks users whose TRACKS or PROXY_TRACKS changed as dirty, and the whole projection as stale
+     * when any other projected relationship, NMID or label changes
+     */
+    private static class Invalidator implements TransactionEventHandler<Void> {
+
+        private final Slot slot;
+
+        Invalidator(Slot slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Void beforeCommit(TransactionData data) throws Exception {
+            Projection projection = slot.projection;
+            if ( ! slot.loading && (projection == null || slot.stale)) {
+                return null;
+            }
+
+            Changes changes = new Changes();
+            for (Relationship relationship : data.createdRelationships()) {
+                changes.stale |= classify(relationship, changes.users);
+            }
+            for (Relationship relationship : data.deletedRelationships()) {
+                changes.stale |= classify(relationship, changes.users);
+            }
+            for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+                changes.stale |= isNmid(entry);
+            }
+            for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+                changes.stale |= isNmid(entry);
+            }
+            for (LabelEntry entry : data.assignedLabels()) {
+                changes.stale |= isProjectedLabel(projection, entry);
+            }
+            for (LabelEntry entry : data.removedLabels()) {
+                changes.stale |= isProjectedLabel(projection, entry);
+            }
+
+            // applied before the commit rather than after it, so that no other thread can read the
+            // committed changes through the projection; a rollback only costs a fall back to the store
+            if (changes.stale) {
+                slot.invalidate();
+            } else if ( ! changes.users.isEmpty()) {
+                slot.markDirty(changes.users);
+            }
+            return null;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Void state) {
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Void state) {
+        }
+
+        // returns true if the relationship invalidates the whole projection
+        private boolean classify(Relationship relationship, PrimitiveLongSet users) {
+            if (relationship.isType(MyRelationshipTypes.TRACKS) || relationship.isType(MyRelationshipTypes.PROXY_TRACKS)) {
+                users.add(relationship.getStartNode().getId());
+                return false;
+            }
+            return relationship.isType(MyRelationshipTypes.SIMILAR_TO) || relationship.isType(MyRelationshipTypes.HOSTS);
+        }
+
+        private boolean isNmid(PropertyEntry<Relationship> entry) {
+            return entry.key().equals("NMID") && entry.entity().isType(MyRelationshipTypes.SIMILAR_TO);
+        }
+
+        // label changes to nodes that are not in the projection only matter once they gain
+        // relationships; without a projection, while the first one is loading, any of them might be
+        private boolean isProjectedLabel(Projection projection, LabelEntry entry) {
+            for (MyLabels label : LABELS) {
+                if (label.name().equals(entry.label().name())) {
+                    return projection == null || projection.indexOf(entry.node().getId()) >= 0;
+                }
+            }
+            return false;
+        }
+
+        private static class Changes {
+            final PrimitiveLongSet users = Primitive.longSet();
+            boolean stale;
+        }
+    }
+}
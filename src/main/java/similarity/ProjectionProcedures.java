@@ -0,0 +1,67 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Procedure;
+
+import java.util.stream.Stream;
+
+/**
+ * Procedures to manage the in-memory projection that the affinity procedures traverse instead of
+ * the store, when it is loaded
+ */
+public class ProjectionProcedures {
+
+    @Context
+    public GraphDatabaseService db;
+
+    @Context
+    public Log log;
+
+    /**
+     * Load the TRACKS, PROXY_TRACKS, SIMILAR_TO and HOSTS relationships into memory, replacing any
+     * projection that is already loaded. Call again to refresh a projection that has gone stale.
+     */
+    @Procedure(value = "similarity.projection.load", mode = Mode.READ)
+    @Description("similarity.projection.load() - load (or refresh) the in-memory projection used by the affinity procedures")
+    public Stream<Status> load()
+    {
+        Status status = Projection.load(db);
+        log.info("Loaded similarity projection of " + status.nodes + " nodes in " + status.loadTimeMs + "ms");
+
+        return Stream.of(status);
+    }
+
+    @Procedure(value = "similarity.projection.drop", mode = Mode.READ)
+    @Description("similarity.projection.drop() - discard the in-memory projection, so that the affinity procedures use the store")
+    public Stream<Status> drop()
+    {
+        return Stream.of(Projection.drop(db));
+    }
+
+    @Procedure(value = "similarity.projection.status", mode = Mode.READ)
+    @Description("similarity.projection.status() - report whether the in-memory projection is loaded and current")
+    public Stream<Status> status()
+    {
+        return Stream.of(Projection.status(db));
+    }
+
+    /**
+     * The state of the projection; dirtyUsers have changed TRACKS or PROXY_TRACKS since it was
+     * loaded, and while stale it is not used at all
+     */
+    public static class Status {
+        public boolean loaded;
+        public boolean stale;
+        public long nodes;
+        public long tracks;
+        public long proxyTracks;
+        public long similarTo;
+        public long hosts;
+        public long dirtyUsers;
+        public long loadTimeMs;
+    }
+}
@@ -0,0 +1,76 @@
+package similarity;
+
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * Sets properties only where the stored value differs from the new one, so that recalculating an
+ * affinity that has not changed leaves nothing in the transaction state, the transaction log or
+ * the lock manager. Doubles within {@code epsilon} of the stored value count as unchanged.
+ */
+final class PropertyWriter {
+
+    // affinities and NMID lie within [0, 1], so this absorbs the rounding of sums and products
+    // accumulated in a different order without hiding any change that matters
+    static final double DEFAULT_EPSILON = 1e-9;
+
+    private final double epsilon;
+
+    private long written;
+    private long skipped;
+
+    PropertyWriter(double epsilon) {
+        this.epsilon = Math.max(0, epsilon);
+    }
+
+    void set(PropertyContainer entity, String key, double value) {
+        Object existing = entity.getProperty(key, null);
+        if (existing instanceof Double && Math.abs((Double) existing - value) <= epsilon) {
+            skipped++;
+            return;
+        }
+        entity.setProperty(key, value);
+        written++;
+    }
+
+    void set(PropertyContainer entity, String key, long value) {
+        Object existing = entity.getProperty(key, null);
+        if (existing instanceof Long && (Long) existing == value) {
+            skipped++;
+            return;
+        }
+        entity.setProperty(key, value);
+        written++;
+    }
+
+    void remove(PropertyContainer entity, String key) {
+        if (entity.hasProperty(key)) {
+            entity.removeProperty(key);
+            written++;
+        }
+    }
+
+    /**
+     * @return the number of properties set or removed
+     */
+    long written() {
+        return written;
+    }
+
+    /**
+     * @return the number of properties left as they were, because they already had the value
+     */
+    long skipped() {
+        return skipped;
+    }
+
+    /**
+     * Add the properties written and skipped since the last call to the counters of a procedure,
+     * see {@link Metrics}
+     */
+    void record(String procedure) {
+        Metrics.Metric metric = Metrics.get(procedure);
+        metric.count("propertiesSet", written);
+        metric.count("writesSkipped", skipped);
+        written = skipped = 0;
+    }
+}
@@ -0,0 +1,216 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings the PROXY_TRACKS {proxy: true} relationships of many users in line with what
+ * similarity.addProxyTracks would add: one to every venue that hosts an event the user tracks, and
+ * one to each headliner of the event unless the user tracks either the venue or the headliner.
+ * The users are split into chunks of {@code batchSize} that are processed on a pool of worker
+ * threads, each in its own transaction, as {@link AffinityBatch} does. The hosts and headliners of
+ * each tracked event are read once per chunk and shared by its users. Only missing relationships
+ * are created, and those to targets the user no longer proxies (eg. after untracking an event) are
+ * deleted, unless {@code removeStale} is false. A chunk that fails with a transient error, such as
+ * a deadlock between workers over a popular venue, is retried up to {@code retries} times; see
+ * {@link ChunkRunner}.
+ */
+class ProxyTracksBatch {
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private final Map<String, Object> options;
+
+    private final boolean removeStale;
+
+    ProxyTracksBatch(GraphDatabaseService db, Log log, Map<String, Object> options) {
+        this.db = Databases.unrestricted(db);
+        this.log = log;
+        this.options = options;
+        this.removeStale = Options.booleanValue(options, "removeStale", true);
+    }
+
+    /**
+     * Add the missing proxy tracks of the given users, and remove their stale ones
+     *
+     * @param userIds the node ids of the users in question
+     * @return counts and throughput statistics for the run
+     */
+    Result run(long[] userIds) {
+        long start = System.currentTimeMillis();
+        AtomicLong created = new AtomicLong();
+        AtomicLong deleted = new AtomicLong();
+
+        ChunkRunner runner = new ChunkRunner(log, "Proxy tracks batch", options);
+        runner.run(userIds, chunk -> {
+            long[] counts = process(chunk);
+            // only once the chunk has committed, as a retried attempt rolls back what it counted
+            created.addAndGet(counts[0]);
+            deleted.addAndGet(counts[1]);
+            return (int) counts[2];
+        });
+
+        Result result = new Result();
+        result.users = runner.users.get();
+        result.failedUsers = runner.failedUsers.get();
+        result.batches = runner.batches.get();
+        result.failedBatches = runner.failedBatches.get();
+        result.retriedBatches = runner.retriedBatches.get();
+        result.created = created.get();
+        result.deleted = deleted.get();
+        result.concurrency = runner.concurrency;
+        result.timeMs = System.currentTimeMillis() - start;
+        result.usersPerSecond = runner.usersPerSecond(result.timeMs);
+
+        log.info("Updated proxy tracks for " + result.users + " users in " + result.timeMs + "ms (" +
+                result.created + " created, " + result.deleted + " deleted, " + result.failedUsers + " users failed)");
+
+        return result;
+    }
+
+    /**
+     * Update the proxy tracks of a chunk of users in one transaction
+     *
+     * @param chunk the node ids of the users in question
+     * @return the number of relationships created and deleted, and of users processed, not
+     * counting those that have been deleted
+     */
+    private long[] process(long[] chunk) {
+        long[] counts = new long[3];
+        PrimitiveLongObjectMap<EventTargets> events = Primitive.longObjectMap();
+
+        try (Transaction tx = db.beginTx()) {
+            for (long id : chunk) {
+                Node user;
+                try {
+                    user = db.getNodeById(id);
+                } catch (NotFoundException e) {
+                    // deleted since the users were listed
+                    continue;
+                }
+                counts[2]++;
+
+                PrimitiveLongSet tracked = Primitive.longSet();
+                LongArray trackedEvents = new LongArray();
+                PrimitiveLongObjectMap<Relationship> proxied = Primitive.longObjectMap();
+                List<Relationship> stale = new ArrayList<>();
+                for (Relationship rel : user.getRelationships(Direction.OUTGOING,
+                        MyRelationshipTypes.TRACKS, MyRelationshipTypes.PROXY_TRACKS)) {
+                    Node target = rel.getEndNode();
+                    if (rel.isType(MyRelationshipTypes.TRACKS)) {
+                        tracked.add(target.getId());
+                        if (target.hasLabel(MyLabels.Event)) {
+                            trackedEvents.add(target.getId());
+                        }
+                    } else if (Boolean.TRUE.equals(rel.getProperty("proxy", null))) {
+                        // a duplicate is as stale as one whose target is no longer proxied
+                        if (proxied.put(target.getId(), rel) != null) {
+                            stale.add(rel);
+                        }
+                    }
+                }
+
+                PrimitiveLongSet targets = Primitive.longSet();
+                for (int i = 0; i < trackedEvents.size(); i++) {
+                    long eventId = trackedEvents.get(i);
+                    EventTargets event = events.get(eventId);
+                    if (event == null) {
+                        event = EventTargets.of(db.getNodeById(eventId));
+                        events.put(eventId, event);
+                    }
+                    for (long venue : event.venues) {
+                        targets.add(venue);
+                        if (tracked.contains(venue)) {
+                            continue;
+                        }
+                        for (long artist : event.headliners) {
+                            if ( ! tracked.contains(artist)) {
+                                targets.add(artist);
+                            }
+                        }
+                    }
+                }
+
+                for (PrimitiveLongIterator it = targets.iterator(); it.hasNext(); ) {
+                    long targetId = it.next();
+                    if (proxied.remove(targetId) == null) {
+                        Relationship proxy = user.createRelationshipTo(db.getNodeById(targetId), MyRelationshipTypes.PROXY_TRACKS);
+                        proxy.setProperty("proxy", true);
+                        counts[0]++;
+                    }
+                }
+                if (removeStale) {
+                    // what remains of proxied is no longer a target
+                    for (PrimitiveLongIterator it = proxied.iterator(); it.hasNext(); ) {
+                        stale.add(proxied.get(it.next()));
+                    }
+                    for (Relationship rel : stale) {
+                        rel.delete();
+                        counts[1]++;
+                    }
+                }
+            }
+            tx.success();
+        }
+        return counts;
+    }
+
+    /**
+     * The venues that host an event and the artists that headline it, as node ids
+     */
+    private static final class EventTargets {
+        final long[] venues;
+        final long[] headliners;
+
+        private EventTargets(long[] venues, long[] headliners) {
+            this.venues = venues;
+            this.headliners = headliners;
+        }
+
+        static EventTargets of(Node event) {
+            LongArray venues = new LongArray();
+            LongArray headliners = new LongArray();
+            for (Relationship rel : event.getRelationships(Direction.INCOMING, MyRelationshipTypes.HOSTS, MyRelationshipTypes.PLAYS)) {
+                Node node = rel.getStartNode();
+                if (rel.isType(MyRelationshipTypes.HOSTS)) {
+                    if (node.hasLabel(MyLabels.Venue)) {
+                        venues.add(node.getId());
+                    }
+                } else if (AffinityEngine.isHeadliner(rel) && node.hasLabel(MyLabels.Artist)) {
+                    headliners.add(node.getId());
+                }
+            }
+            return new EventTargets(venues.toArray(), headliners.toArray());
+        }
+    }
+
+    /**
+     * Counts and throughput statistics returned by similarity.addProxyTracksBatch
+     */
+    public static class Result {
+        public long users;
+        public long failedUsers;
+        public long batches;
+        public long failedBatches;
+        public long retriedBatches;
+        public long created;
+        public long deleted;
+        public long concurrency;
+        public long timeMs;
+        public double usersPerSecond;
+    }
+}
@@ -0,0 +1,369 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.logging.Log;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the affinities of queued users in the background, as similarity.refreshUser does, so
+ * that callers who only need them to become current (eg. after a user tracks something) neither
+ * wait for the calculation nor hold its locks. A user is queued when the transaction that queued
+ * them commits, and a user who is queued again before being refreshed is only refreshed once.
+ * A pool of worker threads takes the users in the order they were queued, committing batchSize
+ * users per transaction; users whose batch fails with a transient error, such as a deadlock
+ * between workers, are queued again.
+ *
+ * The queue holds a bounded number of users. Each user that a transaction queues takes a slot
+ * until the transaction closes; queueing the same user again in that transaction takes no other.
+ * Once the queue is full, queueing waits for room until a timeout, slowing bursts such as imports
+ * down to the rate at which users are refreshed, and then gives up. A transaction that already
+ * holds slots gives up at once instead, as the room it would wait for may be its own. Users that
+ * are still queued when the database shuts down are not refreshed.
+ */
+class RefreshQueue extends LifecycleAdapter {
+
+    private static final Map<GraphDatabaseService, RefreshQueue> INSTANCES = new ConcurrentHashMap<>();
+
+    private final GraphDatabaseAPI db;
+    private final Log log;
+    private final int capacity;
+    private final int concurrency;
+    private final int batchSize;
+    private final long offerTimeoutMs;
+    private final boolean proxyTracks;
+
+    private final Object lock = new Object();
+    // the queued users, oldest first, in a ring of capacity slots; a user is in queued while in the ring
+    private long[] ring;
+    private int head;
+    private int size;
+    private final PrimitiveLongSet queued = Primitive.longSet();
+    // slots promised to transactions that have queued a user but not yet committed
+    private int reserved;
+    // the users queued by each open transaction, added together once it closes
+    private final Map<KernelTransaction, Pending> uncommitted = new ConcurrentHashMap<>();
+    private int inProgress;
+    private int workers;
+
+    private long enqueued;
+    private long coalesced;
+    private long rejected;
+    private long refreshed;
+    private long retried;
+    private long failed;
+
+    private ExecutorService executor;
+
+    RefreshQueue(GraphDatabaseAPI db, Config config, Log log) {
+        this.db = db;
+        this.log = log;
+        this.capacity = Math.max(1, config.get(AffinitySettings.refresh_queue_capacity));
+        this.concurrency = Math.max(1, config.get(AffinitySettings.refresh_queue_concurrency));
+        this.batchSize = Math.max(1, config.get(AffinitySettings.refresh_queue_batch_size));
+        this.offerTimeoutMs = Math.max(0, config.get(AffinitySettings.refresh_queue_offer_timeout));
+        this.proxyTracks = config.get(AffinitySettings.refresh_queue_proxy_tracks);
+    }
+
+    /**
+     * @param db the database, as injected into a procedure
+     * @return the refresh queue of the database, or null if it is not running
+     */
+    static RefreshQueue forDatabase(GraphDatabaseService db) {
+        return INSTANCES.get(Databases.unrestricted(db));
+    }
+
+    @Override
+    public void start() throws Throwable {
+        ring = new long[capacity];
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "similarity-refresh-queue-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        INSTANCES.put(db, this);
+    }
+
+    @Override
+    public void stop() throws Throwable {
+        INSTANCES.remove(db);
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queue a user to be refreshed once the transaction bound to the current thread commits,
+     * waiting for room in the queue if it is full
+     *
+     * @param db the GraphDatabaseService injected into the procedure
+     * @param user the user Node in question
+     * @return whether the user will be queued; not if the queue stayed full for the whole offer
+     *         timeout, or at once if the transaction holds slots itself, or the wait was interrupted
+     */
+    Queued enqueue(GraphDatabaseService db, Node user) {
+        KernelTransaction tx = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class)
+                .getKernelTransactionBoundToThisThread(true);
+        // only touched by the thread the transaction is bound to, and by its close listener
+        Pending pending = uncommitted.get(tx);
+
+        Queued result = new Queued();
+        if (pending != null && pending.users.contains(user.getId())) {
+            pending.duplicates++;
+            result.queued = true;
+        } else {
+            result.queued = reserve(pending != null);
+            if (result.queued) {
+                if (pending == null) {
+                    Pending added = new Pending();
+                    uncommitted.put(tx, added);
+                    tx.registerCloseListener(txId -> {
+                        uncommitted.remove(tx);
+                        add(added, txId != KernelTransaction.ROLLBACK);
+                    });
+                    pending = added;
+                }
+                pending.users.add(user.getId());
+            }
+        }
+        synchronized (lock) {
+            result.size = size;
+        }
+        return result;
+    }
+
+    /**
+     * Take a slot for a user, waiting for room unless the transaction already holds slots that
+     * only it can give back
+     */
+    private boolean reserve(boolean holdsSlots) {
+        long deadline = System.nanoTime() + (holdsSlots ? 0 : TimeUnit.MILLISECONDS.toNanos(offerTimeoutMs));
+        synchronized (lock) {
+            try {
+                while (size + reserved >= capacity) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejected++;
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected++;
+                return false;
+            }
+            reserved++;
+            return true;
+        }
+    }
+
+    // fill (or give back) the slots reserved by a transaction, at once so that no worker takes a
+    // user between two of its reservations
+    private void add(Pending pending, boolean committed) {
+        synchronized (lock) {
+            reserved -= pending.users.size();
+            if (committed) {
+                enqueued += pending.duplicates;
+                coalesced += pending.duplicates;
+                for (PrimitiveLongIterator users = pending.users.iterator(); users.hasNext(); ) {
+                    long user = users.next();
+                    enqueued++;
+                    if (queued.add(user)) {
+                        ring[(head + size) % capacity] = user;
+                        size++;
+                    } else {
+                        coalesced++;
+                    }
+                }
+                startWorkers();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    // under the lock: a worker for each batch waiting, up to the size of the pool
+    private void startWorkers() {
+        while (workers < concurrency && (long) workers * batchSize < size) {
+            try {
+                executor.execute(this::drain);
+                workers++;
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            long[] batch;
+            synchronized (lock) {
+                if (size == 0 || Thread.currentThread().isInterrupted()) {
+                    workers--;
+                    lock.notifyAll();
+                    return;
+                }
+                batch = new long[Math.min(batchSize, size)];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = ring[head];
+                    queued.remove(batch[i]);
+                    head = (head + 1) % capacity;
+                }
+                size -= batch.length;
+                inProgress += batch.length;
+                // there is room for waiting callers
+                lock.notifyAll();
+            }
+
+            try {
+                refresh(batch);
+                done(batch, true, false);
+            } catch (RuntimeException e) {
+                boolean retry = ChunkRunner.isTransient(e);
+                if (retry) {
+                    log.warn("Refresh of " + batch.length + " queued users failed, and will be retried: " + e.getMessage());
+                } else {
+                    log.error("Refresh of " + batch.length + " queued users failed", e);
+                }
+                done(batch, false, retry);
+            }
+        }
+    }
+
+    private void done(long[] batch, boolean success, boolean retry) {
+        synchronized (lock) {
+            inProgress -= batch.length;
+            if (success) {
+                refreshed += batch.length;
+            } else if ( ! retry) {
+                failed += batch.length;
+            } else {
+                retried += batch.length;
+                // unless the room has been taken by other users in the meantime
+                for (long user : batch) {
+                    if (size + reserved < capacity && queued.add(user)) {
+                        ring[(head + size) % capacity] = user;
+                        size++;
+                    } else if ( ! queued.contains(user)) {
+                        failed++;
+                    }
+                }
+            }
+            lock.notifyAll();
+        }
+        Metrics.count(Affinity.ENQUEUE_REFRESH, success ? "refreshed" : retry ? "retried" : "failed", batch.length);
+    }
+
+    private void refresh(long[] batch) {
+        Affinity affinity = new Affinity();
+        affinity.db = db;
+        affinity.log = log;
+
+        try (Transaction tx = db.beginTx()) {
+            for (long id : batch) {
+                Node user;
+                try {
+                    user = db.getNodeById(id);
+                } catch (NotFoundException e) {
+                    // deleted since they were queued
+                    continue;
+                }
+                affinity.refreshUser(user, proxyTracks, Collections.emptyMap());
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Wait until every queued user has been refreshed
+     *
+     * @return false if users were still queued or in progress when the timeout elapsed
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (size > 0 || reserved > 0 || inProgress > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    Status status() {
+        Status status = new Status();
+        synchronized (lock) {
+            status.queued = size;
+            status.uncommitted = reserved;
+            status.inProgress = inProgress;
+            status.workers = workers;
+            status.capacity = capacity;
+            status.enqueued = enqueued;
+            status.coalesced = coalesced;
+            status.rejected = rejected;
+            status.refreshed = refreshed;
+            status.retried = retried;
+            status.failed = failed;
+        }
+        return status;
+    }
+
+    /**
+     * The distinct users queued by an open transaction, each holding a slot, and the number of
+     * times it queued one of them again
+     */
+    private static final class Pending {
+        final PrimitiveLongSet users = Primitive.longSet();
+        int duplicates;
+    }
+
+    /**
+     * The row returned by similarity.enqueueRefresh; size is the number of users queued, not
+     * counting those whose transactions have yet to commit
+     */
+    public static class Queued {
+        public boolean queued;
+        public long size;
+    }
+
+    /**
+     * The state of the queue returned by similarity.queueStatus; uncommitted users have been queued
+     * by transactions that are still open, and coalesced users were already queued
+     */
+    public static class Status {
+        public long queued;
+        public long uncommitted;
+        public long inProgress;
+        public long workers;
+        public long capacity;
+        public long enqueued;
+        public long coalesced;
+        public long rejected;
+        public long refreshed;
+        public long retried;
+        public long failed;
+    }
+}
@@ -0,0 +1,83 @@
+package similarity;
+
+/**
+ * Native versions of the scoring functions used by the Cypher affinity statements, so that the
+ * Core API engines produce the same values without calling back into Cypher or APOC
+ */
+final class Scores {
+
+    // the earth radius used by Cypher's distance() function
+    static final double EARTH_RADIUS_METERS = 6378140.0;
+
+    private Scores() {
+    }
+
+    /**
+     * The same pareto scaling as apoc.scoring.pareto
+     *
+     * @param minimumThreshold scores below this value are scaled to zero
+     * @param eightyPercentValue the score at which 80% of the maximum value is reached
+     * @param maximumValue the maximum scaled value
+     * @param score the score to scale
+     * @return the scaled score
+     */
+    static double pareto(long minimumThreshold, long eightyPercentValue, long maximumValue, long score) {
+        if (score < minimumThreshold) {
+            return 0.0d;
+        }
+        double alpha = Math.log(5.0d) / eightyPercentValue;
+        double exp = Math.exp(-alpha * score);
+        return maximumValue * (1 - exp);
+    }
+
+    /**
+     * Haversine distance between two WGS84 points, calculated exactly as Cypher's
+     * distance(point(a), point(b)) does
+     *
+     * @return distance in meters
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double lat1Radians = Math.toRadians(lat1);
+        double lat2Radians = Math.toRadians(lat2);
+        double dx = Math.toRadians(lon2) - Math.toRadians(lon1);
+        double dy = lat2Radians - lat1Radians;
+        double a = Math.pow(Math.sin(dy / 2), 2.0) + Math.cos(lat1Radians) * Math.cos(lat2Radians) * Math.pow(Math.sin(dx / 2), 2.0);
+        double c = 2.0 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return EARTH_RADIUS_METERS * c;
+    }
+
+    /**
+     * Normalise a user to venue distance into the range [0.85, 1.0)
+     *
+     * @param distanceM the distance in meters
+     * @return the distance contribution to venue affinity
+     */
+    static double distanceNorm(double distanceM) {
+        return 0.85 + (0.15 * (pareto(0, 50000, 200000, (long) distanceM) / 200000.0));
+    }
+
+    /**
+     * Combine the distance and similarity contributions of a user to venue affinity
+     *
+     * @param distanceNorm the normalised distance, or NaN if unknown
+     * @param avg the average NMID of TRACKS paths, or NaN if there are none
+     * @param proxyAvg the average NMID of PROXY_TRACKS paths, or NaN if there are none
+     * @return the venue affinity; 1.0 means there is no affinity
+     */
+    static double venueAffinity(double distanceNorm, double avg, double proxyAvg) {
+        double distance = ! Double.isNaN(distanceNorm) ? distanceNorm : 1.0;
+        double similarity = ! Double.isNaN(avg) ? avg : ! Double.isNaN(proxyAvg) ? Math.pow(proxyAvg, 0.1) : 1.0;
+        return Math.min(distance, similarity);
+    }
+
+    /**
+     * Combine the similarity contributions of a user to artist affinity
+     *
+     * @param prod the product of the NMID of TRACKS paths, or NaN if there are none
+     * @param proxyProd the product of the NMID of PROXY_TRACKS paths, or NaN if there are none
+     * @return the artist affinity; 1.0 means there is no affinity
+     */
+    static double artistAffinity(double prod, double proxyProd) {
+        return ! Double.isNaN(prod) ? Math.pow(prod, 2) : ! Double.isNaN(proxyProd) ? Math.pow(proxyProd, 0.1) : 1.0;
+    }
+}
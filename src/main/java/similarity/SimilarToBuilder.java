@@ -0,0 +1,641 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongIntMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds SIMILAR_TO relationships between all nodes with a label from the users that co-track
+ * them. The user/item incidence is loaded once into primitive arrays, the rows of the item
+ * co-occurrence matrix are counted in parallel, and only the pairs whose log-likelihood ratio
+ * reaches the threshold are written, in batched commits on a single writer thread. Then, unless
+ * {@code removeStale} is false, the SIMILAR_TO relationships between nodes with the label whose
+ * pairs were not written, because they no longer reach the threshold or are no longer co-tracked,
+ * are deleted, so that the affinities do not follow similarities that a rebuild has dropped.
+ *
+ * <p>With {@code candidates: 'lsh'} the co-occurrence matrix is not counted. Instead each item gets
+ * a MinHash signature of its users, the signatures are split into {@code bands} of {@code rows}
+ * values, and only items that share all the values of at least one band are scored, exactly, from
+ * the intersection of their users. A pair whose user sets have Jaccard similarity s becomes a
+ * candidate with probability 1 - (1 - s^rows)^bands, so more bands raise the recall and more rows
+ * cut the number of candidates.
+ */
+public class SimilarToBuilder {
+
+    // rows are handed out to the workers in blocks, so that popular items do not all land on one thread
+    private static final int ROWS_PER_BLOCK = 64;
+
+    private final GraphDatabaseService db;
+    private final Log log;
+
+    private final int batchSize;
+    private final int concurrency;
+    private final long minCount;
+    private final long total;
+    private final boolean removeStale;
+
+    private final boolean lsh;
+    private final int bands;
+    private final int rows;
+    private final long seed;
+
+    SimilarToBuilder(GraphDatabaseService db, Log log, Map<String, Object> options) {
+        this.db = Databases.unrestricted(db);
+        this.log = log;
+        this.batchSize = Math.max(1, Options.intValue(options, "batchSize", 10000));
+        this.concurrency = Math.max(1, Options.intValue(options, "concurrency", Runtime.getRuntime().availableProcessors()));
+        this.minCount = Math.max(1, Options.longValue(options, "minCount", 1));
+        this.total = Options.longValue(options, "total", 0);
+        this.removeStale = Options.booleanValue(options, "removeStale", true);
+
+        String candidates = Options.stringValue(options, "candidates", "exact");
+        if ( ! candidates.equals("exact") && ! candidates.equals("lsh")) {
+            throw new IllegalArgumentException("candidates must be 'exact' or 'lsh', not '" + candidates + "'");
+        }
+        this.lsh = candidates.equals("lsh");
+        this.bands = Math.max(1, Options.intValue(options, "bands", 32));
+        this.rows = Math.max(1, Options.intValue(options, "rows", 2));
+        this.seed = Options.longValue(options, "seed", 42);
+    }
+
+    /**
+     * Score every co-tracked pair of items and write those at or above the threshold
+     *
+     * @param label the label of the items, eg. Artist
+     * @param relType the relationship from users to the items, eg. TRACKS
+     * @param threshold the minimum log-likelihood ratio of a pair to be written
+     * @return statistics for the run
+     */
+    Result run(String label, String relType, double threshold) {
+        long start = System.currentTimeMillis();
+
+        Incidence incidence = Incidence.load(db, Label.label(label), RelationshipType.withName(relType));
+        long n = total > 0 ? total : incidence.users();
+
+        Pairs[] pairs = score(incidence, n, threshold);
+
+        Result result = new Result();
+        result.items = incidence.items();
+        result.users = incidence.users();
+        for (Pairs partition : pairs) {
+            result.candidates += partition.candidates;
+            result.pairs += partition.cooccurring;
+        }
+        write(incidence, pairs, result);
+        result.timeMs = System.currentTimeMillis() - start;
+
+        log.info("Built SIMILAR_TO for " + result.items + " " + label + " nodes: " + result.created + " created, " +
+                result.updated + " updated, " + result.deleted + " deleted in " + result.timeMs + "ms");
+
+        return result;
+    }
+
+    private Pairs[] score(Incidence incidence, long n, double threshold) {
+        Buckets buckets = lsh ? Buckets.build(incidence, bands, rows, seed, concurrency) : null;
+        Pairs[] pairs = new Pairs[concurrency];
+        AtomicInteger nextRow = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < concurrency; t++) {
+                Pairs partition = pairs[t] = new Pairs();
+                futures.add(pool.submit(() -> {
+                    int[] counts = new int[incidence.items()];
+                    IntArray touched = new IntArray();
+                    for (int from = nextRow.getAndAdd(ROWS_PER_BLOCK); from < incidence.items(); from = nextRow.getAndAdd(ROWS_PER_BLOCK)) {
+                        int to = Math.min(from + ROWS_PER_BLOCK, incidence.items());
+                        for (int row = from; row < to; row++) {
+                            if (buckets == null) {
+                                scoreRow(incidence, row, n, threshold, counts, touched, partition);
+                            } else {
+                                scoreCandidates(incidence, buckets, row, n, threshold, counts, touched, partition);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while counting co-occurrences", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Counting co-occurrences failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return pairs;
+    }
+
+    /**
+     * Count the co-occurrences of one item with every item after it, then score them; counts is a
+     * zeroed scratch array that is zeroed again on return
+     */
+    private void scoreRow(Incidence incidence, int row, long n, double threshold, int[] counts, IntArray touched, Pairs pairs) {
+        int[] itemUsers = incidence.itemUsers;
+        int[] userItems = incidence.userItems;
+        int[] userOffsets = incidence.userOffsets;
+
+        touched.clear();
+        for (int u = incidence.itemOffsets[row]; u < incidence.itemOffsets[row + 1]; u++) {
+            int user = itemUsers[u];
+            int end = userOffsets[user + 1];
+            // the items of each user are sorted, so skip straight past this row
+            int i = Arrays.binarySearch(userItems, userOffsets[user], end, row) + 1;
+            for (; i < end; i++) {
+                int column = userItems[i];
+                if (counts[column]++ == 0) {
+                    touched.add(column);
+                }
+            }
+        }
+
+        long a = incidence.degree(row);
+        for (int t = 0; t < touched.size(); t++) {
+            int column = touched.get(t);
+            long ab = counts[column];
+            counts[column] = 0;
+            pairs.candidates++;
+            score(incidence, row, column, ab, a, n, threshold, pairs);
+        }
+    }
+
+    /**
+     * Score one item against every item after it that shares a band bucket with it, counting the
+     * users in common by merging their sorted user lists; seen is a zeroed scratch array that is
+     * zeroed again on return
+     */
+    private void scoreCandidates(Incidence incidence, Buckets buckets, int row, long n, double threshold,
+                                 int[] seen, IntArray touched, Pairs pairs) {
+        touched.clear();
+        for (int band = 0; band < buckets.bands(); band++) {
+            int[] members = buckets.members[band];
+            int position = buckets.positions[band][row];
+            if (position < 0 || members[position] < 0) {
+                continue;
+            }
+            // members of a bucket are in item order, so those after this row's position come after it
+            for (int i = position + 1; ; i++) {
+                int column = members[i] < 0 ? ~members[i] : members[i];
+                if (seen[column]++ == 0) {
+                    touched.add(column);
+                }
+                if (members[i] < 0) {
+                    break;
+                }
+            }
+        }
+
+        long a = incidence.degree(row);
+        for (int t = 0; t < touched.size(); t++) {
+            int column = touched.get(t);
+            seen[column] = 0;
+            pairs.candidates++;
+            score(incidence, row, column, incidence.common(row, column), a, n, threshold, pairs);
+        }
+    }
+
+    private void score(Incidence incidence, int row, int column, long ab, long a, long n, double threshold, Pairs pairs) {
+        if (ab == 0) {
+            return;
+        }
+        pairs.cooccurring++;
+        if (ab < minCount) {
+            return;
+        }
+        long b = incidence.degree(column);
+        double llr = LogLikelihoodKernel.llr(ab, a, b, n);
+        if (llr >= threshold) {
+            pairs.add(row, column, llr, LogLikelihoodKernel.nmid(ab, a, b, n));
+        }
+    }
+
+    private void write(Incidence incidence, Pairs[] pairs, Result result) {
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            for (Pairs partition : pairs) {
+                for (int from = 0; from < partition.size(); from += batchSize) {
+                    int start = from;
+                    int end = Math.min(from + batchSize, partition.size());
+                    try {
+                        int[] counts = writer.submit(() -> writeBatch(incidence, partition, start, end)).get();
+                        result.created += counts[0];
+                        result.updated += counts[1];
+                    } catch (ExecutionException e) {
+                        result.failedBatches++;
+                        log.error("SIMILAR_TO batch of " + (end - start) + " pairs failed", e.getCause());
+                    }
+                    result.batches++;
+                }
+            }
+            if (removeStale) {
+                try {
+                    result.deleted = writer.submit(() -> removeStale(incidence, pairs)).get();
+                } catch (ExecutionException e) {
+                    result.failedBatches++;
+                    log.error("Deleting stale SIMILAR_TO relationships failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing SIMILAR_TO", e);
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private int[] writeBatch(Incidence incidence, Pairs pairs, int from, int to) {
+        int[] counts = new int[2];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = from; i < to; i++) {
+                Node a = db.getNodeById(incidence.itemIds[pairs.rows.get(i)]);
+                Node b = db.getNodeById(incidence.itemIds[pairs.columns.get(i)]);
+                Relationship similar = similarTo(a, b);
+                if (similar == null) {
+                    similar = a.createRelationshipTo(b, MyRelationshipTypes.SIMILAR_TO);
+                    counts[0]++;
+                } else {
+                    counts[1]++;
+                }
+                similar.setProperty("LLR", pairs.llr[i]);
+                similar.setProperty("NMID", pairs.nmid[i]);
+            }
+            tx.success();
+        }
+        return counts;
+    }
+
+    /**
+     * Delete the SIMILAR_TO relationships between items whose pairs are not among those found, in
+     * commits of batchSize relationships; each relationship is visited from the item with the lower
+     * index. Pairs in a batch that failed to write keep their relationships.
+     *
+     * @return the number of relationships deleted
+     */
+    private long removeStale(Incidence incidence, Pairs[] pairs) {
+        int items = incidence.items();
+        PrimitiveLongSet found = Primitive.longSet();
+        for (Pairs partition : pairs) {
+            for (int i = 0; i < partition.size(); i++) {
+                // the column of a pair always comes after its row
+                found.add((long) partition.rows.get(i) * items + partition.columns.get(i));
+            }
+        }
+        PrimitiveLongIntMap index = Primitive.longIntMap();
+        for (int item = 0; item < items; item++) {
+            index.put(incidence.itemIds[item], item);
+        }
+
+        long deleted = 0;
+        int uncommitted = 0;
+        Transaction tx = db.beginTx();
+        try {
+            List<Relationship> stale = new ArrayList<>();
+            for (int item = 0; item < items; item++) {
+                Node node;
+                try {
+                    node = db.getNodeById(incidence.itemIds[item]);
+                } catch (NotFoundException e) {
+                    // deleted since the incidence was loaded
+                    continue;
+                }
+                stale.clear();
+                for (Relationship similar : node.getRelationships(Direction.BOTH, MyRelationshipTypes.SIMILAR_TO)) {
+                    // -1 for nodes without the label, which are left alone
+                    int other = index.get(similar.getOtherNode(node).getId());
+                    if (other >= item && ! found.contains((long) item * items + other)) {
+                        stale.add(similar);
+                    }
+                }
+                for (Relationship similar : stale) {
+                    similar.delete();
+                }
+                deleted += stale.size();
+                uncommitted += stale.size();
+                if (uncommitted >= batchSize) {
+                    tx.success();
+                    tx.close();
+                    tx = db.beginTx();
+                    uncommitted = 0;
+                }
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        return deleted;
+    }
+
+    // the existing relationship between a and b in either direction, if any
+    private static Relationship similarTo(Node a, Node b) {
+        Node from = a.getDegree(MyRelationshipTypes.SIMILAR_TO) <= b.getDegree(MyRelationshipTypes.SIMILAR_TO) ? a : b;
+        Node other = from == a ? b : a;
+        for (Relationship similar : from.getRelationships(Direction.BOTH, MyRelationshipTypes.SIMILAR_TO)) {
+            if (similar.getOtherNode(from).equals(other)) {
+                return similar;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The users of each item and the items of each user, as dense indexes in CSR form with each
+     * list sorted and free of duplicates
+     */
+    private static class Incidence {
+        long[] itemIds;
+        int[] itemOffsets;
+        int[] itemUsers;
+        int[] userOffsets;
+        int[] userItems;
+
+        static Incidence load(GraphDatabaseService db, Label label, RelationshipType relType) {
+            Incidence incidence = new Incidence();
+            PrimitiveLongIntMap userIndex = Primitive.longIntMap();
+            LongArray itemIds = new LongArray();
+            IntArray offsets = new IntArray();
+            IntArray users = new IntArray();
+
+            try (Transaction tx = db.beginTx();
+                 ResourceIterator<Node> items = db.findNodes(label)) {
+                while (items.hasNext()) {
+                    Node item = items.next();
+                    itemIds.add(item.getId());
+                    offsets.add(users.size());
+                    for (Relationship track : item.getRelationships(Direction.INCOMING, relType)) {
+                        long userId = track.getStartNode().getId();
+                        int user = userIndex.get(userId);
+                        if (user == -1) {
+                            user = userIndex.size();
+                            userIndex.put(userId, user);
+                        }
+                        users.add(user);
+                    }
+                }
+                offsets.add(users.size());
+                tx.success();
+            }
+
+            incidence.itemIds = itemIds.toArray();
+            int[] itemOffsets = offsets.toArray();
+            int[] itemUsers = users.toArray();
+
+            // sort each item's users and squeeze out users who track an item more than once
+            int size = 0;
+            for (int item = 0; item < incidence.itemIds.length; item++) {
+                int from = itemOffsets[item];
+                int to = itemOffsets[item + 1];
+                Arrays.sort(itemUsers, from, to);
+                itemOffsets[item] = size;
+                for (int i = from; i < to; i++) {
+                    if (i == from || itemUsers[i] != itemUsers[i - 1]) {
+                        itemUsers[size++] = itemUsers[i];
+                    }
+                }
+            }
+            itemOffsets[incidence.itemIds.length] = size;
+            incidence.itemOffsets = itemOffsets;
+            incidence.itemUsers = Arrays.copyOf(itemUsers, size);
+
+            // transpose; filling in item order leaves each user's items sorted
+            int[] userOffsets = new int[userIndex.size() + 1];
+            for (int i = 0; i < size; i++) {
+                userOffsets[incidence.itemUsers[i] + 1]++;
+            }
+            for (int user = 0; user < userIndex.size(); user++) {
+                userOffsets[user + 1] += userOffsets[user];
+            }
+            int[] next = Arrays.copyOf(userOffsets, userIndex.size());
+            int[] userItems = new int[size];
+            for (int item = 0; item < incidence.itemIds.length; item++) {
+                for (int i = itemOffsets[item]; i < itemOffsets[item + 1]; i++) {
+                    userItems[next[incidence.itemUsers[i]]++] = item;
+                }
+            }
+            incidence.userOffsets = userOffsets;
+            incidence.userItems = userItems;
+
+            return incidence;
+        }
+
+        int items() {
+            return itemIds.length;
+        }
+
+        int users() {
+            return userOffsets.length - 1;
+        }
+
+        long degree(int item) {
+            return itemOffsets[item + 1] - itemOffsets[item];
+        }
+
+        /**
+         * @return the number of users of both items
+         */
+        long common(int a, int b) {
+            int i = itemOffsets[a];
+            int endA = itemOffsets[a + 1];
+            int j = itemOffsets[b];
+            int endB = itemOffsets[b + 1];
+            long common = 0;
+            while (i < endA && j < endB) {
+                int userA = itemUsers[i];
+                int userB = itemUsers[j];
+                if (userA == userB) {
+                    common++;
+                    i++;
+                    j++;
+                } else if (userA < userB) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return common;
+        }
+    }
+
+    /**
+     * The LSH buckets of each band that hold more than one item: the items sorted by the hash of
+     * their signature values in the band and then by item, so that each bucket is a run of members
+     * in item order, with the last member of each bucket stored as its complement. For each item,
+     * its position in the members, or -1 if it has no users or is alone in its bucket.
+     */
+    private static class Buckets {
+        int[][] members;
+        int[][] positions;
+
+        static Buckets build(Incidence incidence, int bands, int rows, long seed, int concurrency) {
+            int[] signatures = signatures(incidence, bands * rows, seed, concurrency);
+            int items = incidence.items();
+
+            Buckets buckets = new Buckets();
+            buckets.members = new int[bands][];
+            buckets.positions = new int[bands][];
+            long[] keys = new long[items];
+            for (int band = 0; band < bands; band++) {
+                // the band's hash in the high half and the item in the low half
+                int size = 0;
+                for (int item = 0; item < items; item++) {
+                    if (incidence.degree(item) > 0) {
+                        int offset = item * bands * rows + band * rows;
+                        long hash = seed;
+                        for (int r = 0; r < rows; r++) {
+                            hash = mix(hash + signatures[offset + r]);
+                        }
+                        keys[size++] = (hash & 0xFFFFFFFF00000000L) | item;
+                    }
+                }
+                Arrays.sort(keys, 0, size);
+
+                IntArray members = new IntArray();
+                int[] positions = buckets.positions[band] = new int[items];
+                Arrays.fill(positions, -1);
+                for (int from = 0, to; from < size; from = to) {
+                    to = from + 1;
+                    while (to < size && (keys[to] >>> 32) == (keys[from] >>> 32)) {
+                        to++;
+                    }
+                    if (to - from == 1) {
+                        continue;
+                    }
+                    for (int i = from; i < to; i++) {
+                        int item = (int) keys[i];
+                        positions[item] = members.size();
+                        members.add(i + 1 == to ? ~item : item);
+                    }
+                }
+                buckets.members[band] = members.toArray();
+            }
+            return buckets;
+        }
+
+        /**
+         * The MinHash signatures of the items' users, one after another. Each of the values of a
+         * signature is the minimum over the item's users of a different seeding of the same mix,
+         * applied to the dense user indexes.
+         */
+        private static int[] signatures(Incidence incidence, int values, long seed, int concurrency) {
+            int items = incidence.items();
+            int[] signatures = new int[items * values];
+            long[] seeds = new long[values];
+            for (int h = 0; h < values; h++) {
+                seeds[h] = mix(seed + h);
+            }
+
+            AtomicInteger nextItem = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+            List<Future<?>> futures = new ArrayList<>();
+            try {
+                for (int t = 0; t < concurrency; t++) {
+                    futures.add(pool.submit(() -> {
+                        for (int from = nextItem.getAndAdd(ROWS_PER_BLOCK); from < items; from = nextItem.getAndAdd(ROWS_PER_BLOCK)) {
+                            for (int item = from; item < Math.min(from + ROWS_PER_BLOCK, items); item++) {
+                                int offset = item * values;
+                                Arrays.fill(signatures, offset, offset + values, Integer.MAX_VALUE);
+                                for (int u = incidence.itemOffsets[item]; u < incidence.itemOffsets[item + 1]; u++) {
+                                    long user = incidence.itemUsers[u];
+                                    for (int h = 0; h < values; h++) {
+                                        int hash = (int) (mix(user ^ seeds[h]) >>> 33);
+                                        if (hash < signatures[offset + h]) {
+                                            signatures[offset + h] = hash;
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while computing MinHash signatures", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Computing MinHash signatures failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+            return signatures;
+        }
+
+        // the SplitMix64 finaliser
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        int bands() {
+            return members.length;
+        }
+    }
+
+    /**
+     * The pairs that one worker found at or above the threshold
+     */
+    private static class Pairs {
+        final IntArray rows = new IntArray();
+        final IntArray columns = new IntArray();
+        double[] llr = new double[16];
+        double[] nmid = new double[16];
+        long candidates;
+        long cooccurring;
+
+        void add(int row, int column, double llr, double nmid) {
+            int i = rows.size();
+            if (i == this.llr.length) {
+                this.llr = Arrays.copyOf(this.llr, i * 2);
+                this.nmid = Arrays.copyOf(this.nmid, i * 2);
+            }
+            rows.add(row);
+            columns.add(column);
+            this.llr[i] = llr;
+            this.nmid[i] = nmid;
+        }
+
+        int size() {
+            return rows.size();
+        }
+    }
+
+    /**
+     * Statistics returned by similarity.buildSimilarTo
+     */
+    public static class Result {
+        public long items;
+        public long users;
+        public long candidates;
+        public long pairs;
+        public long created;
+        public long updated;
+        public long deleted;
+        public long batches;
+        public long failedBatches;
+        public long timeMs;
+    }
+}
@@ -1,6 +1,5 @@
 package similarity;
 
-import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.LoglikelihoodSimilarity;
 import org.neo4j.procedure.Description;
 import org.neo4j.procedure.Name;
 import org.neo4j.procedure.UserFunction;
@@ -20,7 +19,8 @@ public class Similarity
             @Name("all B") long B,
             @Name("total") long total) {
 
-        return org.apache.mahout.math.stats.LogLikelihood.logLikelihoodRatio(AB, A-AB, B-AB, total-A-B+AB);
+        Metrics.call("similarity.LLR");
+        return LogLikelihoodKernel.llr(AB, A, B, total);
     }
 
     @UserFunction
@@ -31,9 +31,8 @@ public class Similarity
             @Name("all B") long B,
             @Name("total") long total) {
 
-        LoglikelihoodSimilarity lls = new LoglikelihoodSimilarity();
-
-        return lls.similarity(AB, A, B, (int) total);
+        Metrics.call("similarity.LLSimilarity");
+        return LogLikelihoodKernel.llSimilarity(AB, A, B, total);
     }
 
     @UserFunction
@@ -44,7 +43,8 @@ public class Similarity
             @Name("all B") long B,
             @Name("total") long total) {
 
-        return 1.0 - LLSimilarity(AB, A, B, total);
+        Metrics.call("similarity.LLDistance");
+        return 1.0 - LogLikelihoodKernel.llSimilarity(AB, A, B, total);
     }
 
     @UserFunction
@@ -58,7 +58,8 @@ public class Similarity
         // LLR = 2 * N * MI
         // MI  = LLR / 2 * N
 
-        return this.LLR(AB, A, B, total) / (2.0 * total);
+        Metrics.call("similarity.mutualInformation");
+        return LogLikelihoodKernel.mutualInformation(AB, A, B, total);
     }
 
     @UserFunction
@@ -71,14 +72,14 @@ public class Similarity
 
         // NMID = 1 - MI / H
 
-        double normalisedJointEntropy = org.apache.mahout.math.stats.LogLikelihood.entropy(AB, A-AB, B-AB, total-A-B+AB) / total;
-
-        return 1.0 - (this.mutualInformation(AB, A, B, total) / normalisedJointEntropy);
+        Metrics.call("similarity.NMID");
+        return LogLikelihoodKernel.nmid(AB, A, B, total);
     }
 
     @UserFunction
     @Description("similarity.product([0.5, 0.4, 0.2]) = 0.04 - return the product of the entries in a list")
     public double product(@Name("numbers") List<Number> list) {
+        Metrics.call("similarity.product");
         double product = 1;
         for (Number number : list) {
             product *= number.doubleValue();
@@ -91,6 +92,7 @@ public class Similarity
             "1 - (0.5 * 0.6 * 0.8) = 0.76 - return the complement of the product of the complement of the " +
             "entries in a list")
     public double complementProduct(@Name("numbers") List<Number> list) {
+        Metrics.call("similarity.complementProduct");
         double product = 1;
         for (Number number : list) {
             product *= (1d - number.doubleValue());
@@ -101,6 +103,7 @@ public class Similarity
     @UserFunction
     @Description("similarity.sublist([1, 2, 3, 4, 5], 0, 2) = [1, 2] - return a sublist of the input list")
     public List sublist(@Name("list") List list, @Name("index start") Number fromIndex, @Name("number of elements") Number count) {
+        Metrics.call("similarity.sublist");
         Number toIndex = fromIndex.intValue() + count.intValue();
         if (toIndex.intValue() > list.size()) {
             toIndex = list.size();
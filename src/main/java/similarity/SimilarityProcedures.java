@@ -0,0 +1,72 @@
+package similarity;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Procedures that build the SIMILAR_TO relationships the affinity calculations follow, or a whole
+ * synthetic graph to run them against
+ */
+public class SimilarityProcedures {
+
+    @Context
+    public GraphDatabaseService db;
+
+    @Context
+    public Log log;
+
+    /**
+     * Score every pair of nodes with a label that are co-tracked by at least one user, with the
+     * same LLR and NMID as the similarity functions, and create or update a SIMILAR_TO relationship
+     * for each pair whose LLR reaches the threshold. The SIMILAR_TO relationships between nodes with
+     * the label whose pairs were not written are then deleted
+     *
+     * @param label the label of the nodes to relate, eg. Artist
+     * @param relType the relationship from users to those nodes, eg. TRACKS
+     * @param threshold the minimum LLR of a pair to be written
+     * @param options batchSize (pairs per commit, default 10000), concurrency (counting threads,
+     *                default the number of cores), minCount (the minimum number of users in common,
+     *                default 1) and total (the number of users, default those with a relType to
+     *                any node with the label); candidates ('exact' to score every co-tracked pair,
+     *                the default, or 'lsh' to score only the pairs whose MinHash signatures share a
+     *                band), bands (default 32), rows (values per band, default 2) and seed (of the
+     *                MinHash functions, default 42); removeStale (false to keep the relationships of
+     *                pairs not written, default true)
+     */
+    @Procedure(value = "similarity.buildSimilarTo", mode = Mode.WRITE)
+    @Description("similarity.buildSimilarTo(label, relType, threshold, {batchSize: 10000, concurrency: 4, candidates: 'exact'}) - create " +
+            "SIMILAR_TO relationships with LLR and NMID between co-tracked nodes whose LLR reaches the threshold")
+    public Stream<SimilarToBuilder.Result> buildSimilarTo(@Name("label") String label,
+                                                          @Name("relType") String relType,
+                                                          @Name("threshold") double threshold,
+                                                          @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        return Stream.of(new SimilarToBuilder(db, log, options).run(label, relType, threshold));
+    }
+
+    /**
+     * Generate a reproducible graph of users, active venues and artists, and future events, with
+     * power law popularity, for benchmarks and soak tests
+     *
+     * @param options seed (default 42); users, venues, artists and events (node counts, default 1000,
+     *                200, 200 and 500); tracksPerUser, proxyTracksPerUser, similarPerNode and
+     *                artistsPerEvent (mean degrees, default 10, 2, 10 and 2); skew (the power law
+     *                exponent, default 1.0, or 0 for uniform); batchSize (operations per commit,
+     *                default 10000)
+     */
+    @Procedure(value = "similarity.generateGraph", mode = Mode.WRITE)
+    @Description("similarity.generateGraph({seed: 42, users: 1000, venues: 200, artists: 200, events: 500, skew: 1.0}) - " +
+            "generate a reproducible synthetic graph for benchmarks and soak tests")
+    public Stream<GraphGenerator.Result> generateGraph(@Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        return Stream.of(new GraphGenerator(db, log, options).run());
+    }
+}
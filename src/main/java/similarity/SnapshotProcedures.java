@@ -0,0 +1,366 @@
+package similarity;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Procedures to export the affinity scores of all users to an {@link AffinitySnapshot} file, which
+ * services can map and read without going through Cypher, and to import them again, eg. to warm
+ * start a new database
+ */
+public class SnapshotProcedures {
+
+    static final String EXPORT_AFFINITIES = "similarity.exportAffinities";
+    static final String IMPORT_AFFINITIES = "similarity.importAffinities";
+
+    // the target types of a snapshot, indexed by type
+    private static final MyLabels[] TYPES = {null, MyLabels.Venue, MyLabels.Artist, MyLabels.Event};
+
+    @Context
+    public GraphDatabaseService db;
+
+    @Context
+    public Log log;
+
+    /**
+     * Write the affinity property of every user's HAS_AFFINITY_FOR relationships to a snapshot file,
+     * replacing any file that is already there once the snapshot is complete. Users, venues,
+     * artists and events are identified by their id property; relationships without an affinity,
+     * or whose nodes have no non-negative numeric id, are left out.
+     *
+     * @param path the file to write, within similarity.snapshot.directory
+     * @param options types: the target labels to export (default ['Venue', 'Artist', 'Event'])
+     */
+    @Procedure(value = "similarity.exportAffinities", mode = Mode.READ)
+    @Description("similarity.exportAffinities(path, {types: ['Venue', 'Artist', 'Event']}) - write the affinities of " +
+            "all users to a memory-mappable snapshot file")
+    public Stream<ExportResult> exportAffinities(@Name("path") String path,
+                                                 @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        return Metrics.time(EXPORT_AFFINITIES, () -> {
+            try {
+                Path resolved = resolve(path);
+                Files.createDirectories(resolved.getParent());
+                return Stream.of(export(resolved, types(options)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not export affinities to " + path, e);
+            }
+        });
+    }
+
+    private ExportResult export(Path path, boolean[] types) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // users are written in order of id
+        LongLongMap nodeIds = new LongLongMap();
+        long[] userIds = ids(db, MyLabels.User, nodeIds);
+        Arrays.sort(userIds);
+
+        ExportResult result = new ExportResult();
+        List<Entry> entries = new ArrayList<>();
+        try (AffinitySnapshot.Writer writer = new AffinitySnapshot.Writer(path)) {
+            for (long userId : userIds) {
+                entries.clear();
+                Node user = db.getNodeById(nodeIds.get(userId));
+                for (Relationship affinity : user.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+                    Entry entry = entry(affinity, types);
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+                if (entries.isEmpty()) {
+                    continue;
+                }
+
+                entries.sort(Entry.ORDER);
+                writer.user(userId);
+                Entry last = null;
+                for (Entry entry : entries) {
+                    // the first of any duplicates
+                    if (last == null || entry.type != last.type || entry.targetId != last.targetId) {
+                        writer.affinity(entry.type, entry.targetId, entry.affinity);
+                        result.affinities++;
+                    }
+                    last = entry;
+                }
+                result.users++;
+            }
+            result.bytes = writer.finish();
+        }
+
+        result.path = path.toString();
+        result.timeMs = System.currentTimeMillis() - start;
+        Metrics.count(EXPORT_AFFINITIES, "users", result.users);
+        Metrics.count(EXPORT_AFFINITIES, "affinities", result.affinities);
+        log.info("Exported " + result.affinities + " affinities of " + result.users + " users to " + path +
+                " in " + result.timeMs + "ms");
+        return result;
+    }
+
+    private static Entry entry(Relationship affinity, boolean[] types) {
+        Object score = affinity.getProperty("affinity", null);
+        if ( ! (score instanceof Number)) {
+            return null;
+        }
+        Node target = affinity.getEndNode();
+        for (byte type = 1; type < TYPES.length; type++) {
+            if (types[type] && target.hasLabel(TYPES[type])) {
+                Object id = target.getProperty("id", null);
+                return id instanceof Number && ((Number) id).longValue() >= 0
+                        ? new Entry(type, ((Number) id).longValue(), ((Number) score).doubleValue())
+                        : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the affinity property of the HAS_AFFINITY_FOR relationships in a snapshot file, creating
+     * any relationships that are missing. Users and targets are found by their id property, and
+     * those that are not in the database are skipped. Users are committed batchSize at a time.
+     *
+     * @param path the file to read, within similarity.snapshot.directory
+     * @param options batchSize (users per commit, default 1000), concurrency (threads committing
+     *                batches, default 1), and epsilon (as for calculateAllVenueAffinity)
+     */
+    @Procedure(value = "similarity.importAffinities", mode = Mode.WRITE)
+    @Description("similarity.importAffinities(path, {batchSize: 1000}) - set the affinities of users from a snapshot " +
+            "file written by similarity.exportAffinities")
+    public Stream<ImportResult> importAffinities(@Name("path") String path,
+                                                 @Name(value = "options", defaultValue = "{}") Map<String, Object> options)
+    {
+        return Metrics.time(IMPORT_AFFINITIES, () -> {
+            try (AffinitySnapshot snapshot = AffinitySnapshot.open(resolve(path))) {
+                return Stream.of(load(snapshot, options));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not import affinities from " + path, e);
+            }
+        });
+    }
+
+    private ImportResult load(AffinitySnapshot snapshot, Map<String, Object> options) {
+        long start = System.currentTimeMillis();
+        int batchSize = Math.max(1, Options.intValue(options, "batchSize", 1000));
+        int concurrency = Math.max(1, Options.intValue(options, "concurrency", 1));
+        double epsilon = Options.doubleValue(options, "epsilon", PropertyWriter.DEFAULT_EPSILON);
+
+        GraphDatabaseService database = Databases.unrestricted(db);
+        LongLongMap users = new LongLongMap();
+        ids(db, MyLabels.User, users);
+        LongLongMap[] targets = new LongLongMap[TYPES.length];
+        for (int type = 1; type < TYPES.length; type++) {
+            targets[type] = new LongLongMap();
+            ids(db, TYPES[type], targets[type]);
+        }
+
+        AtomicLong imported = new AtomicLong();
+        AtomicLong created = new AtomicLong();
+        AtomicLong skipped = new AtomicLong();
+
+        // batches are committed on worker threads, as the procedure's own thread is bound to its transaction
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int from = 0; from < snapshot.users(); from += batchSize) {
+                int first = from;
+                int end = Math.min(from + batchSize, snapshot.users());
+                futures.add(pool.submit(() -> {
+                    PropertyWriter writer = new PropertyWriter(epsilon);
+                    try (Transaction tx = database.beginTx()) {
+                        for (int user = first; user < end; user++) {
+                            long nodeId = users.get(snapshot.userId(user));
+                            if (nodeId < 0) {
+                                skipped.addAndGet(snapshot.endAffinity(user) - snapshot.firstAffinity(user));
+                                continue;
+                            }
+                            load(database, snapshot, user, database.getNodeById(nodeId), targets, writer, imported, created, skipped);
+                        }
+                        tx.success();
+                    }
+                    writer.record(IMPORT_AFFINITIES);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for affinity import batches", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Affinity import batch failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        ImportResult result = new ImportResult();
+        result.users = snapshot.users();
+        result.affinities = imported.get();
+        result.relationshipsCreated = created.get();
+        result.skipped = skipped.get();
+        result.batches = futures.size();
+        result.timeMs = System.currentTimeMillis() - start;
+        Metrics.count(IMPORT_AFFINITIES, "users", result.users);
+        Metrics.count(IMPORT_AFFINITIES, "relationshipsCreated", result.relationshipsCreated);
+        log.info("Imported " + result.affinities + " affinities of " + result.users + " users in " + result.timeMs + "ms (" +
+                result.skipped + " skipped)");
+        return result;
+    }
+
+    private static void load(GraphDatabaseService database, AffinitySnapshot snapshot, int user, Node userNode,
+                             LongLongMap[] targets, PropertyWriter writer,
+                             AtomicLong imported, AtomicLong created, AtomicLong skipped) {
+        LongLongMap existing = new LongLongMap();
+        for (Relationship affinity : userNode.getRelationships(Direction.OUTGOING, MyRelationshipTypes.HAS_AFFINITY_FOR)) {
+            existing.putIfAbsent(affinity.getEndNode().getId(), affinity.getId());
+        }
+
+        for (int i = snapshot.firstAffinity(user); i < snapshot.endAffinity(user); i++) {
+            byte type = snapshot.targetType(i);
+            long targetId = type > 0 && type < TYPES.length ? targets[type].get(snapshot.targetId(i)) : -1;
+            if (targetId < 0) {
+                skipped.incrementAndGet();
+                continue;
+            }
+
+            Relationship affinity;
+            long relationshipId = existing.get(targetId);
+            if (relationshipId >= 0) {
+                affinity = database.getRelationshipById(relationshipId);
+            } else {
+                affinity = userNode.createRelationshipTo(database.getNodeById(targetId), MyRelationshipTypes.HAS_AFFINITY_FOR);
+                created.incrementAndGet();
+            }
+            writer.set(affinity, "affinity", snapshot.affinity(i));
+            imported.incrementAndGet();
+        }
+    }
+
+    /**
+     * Map the non-negative id property of every node with a label to its node id, keeping the first
+     * of any duplicates
+     *
+     * @return the distinct ids
+     */
+    private static long[] ids(GraphDatabaseService db, Label label, LongLongMap nodeIds) {
+        LongArray ids = new LongArray();
+        try (ResourceIterator<Node> nodes = db.findNodes(label)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                Object id = node.getProperty("id", null);
+                if (id instanceof Number && ((Number) id).longValue() >= 0 && nodeIds.putIfAbsent(((Number) id).longValue(), node.getId())) {
+                    ids.add(((Number) id).longValue());
+                }
+            }
+        }
+        return ids.toArray();
+    }
+
+    private static boolean[] types(Map<String, Object> options) {
+        boolean[] types = new boolean[TYPES.length];
+        Object labels = options == null ? null : options.get("types");
+        if (labels == null) {
+            Arrays.fill(types, 1, types.length, true);
+            return types;
+        }
+        if ( ! (labels instanceof List)) {
+            throw new IllegalArgumentException("Expected a list of labels for types but found " + labels.getClass().getSimpleName());
+        }
+        for (Object label : (List<?>) labels) {
+            int type = 1;
+            while (type < TYPES.length && ! TYPES[type].name().equals(label)) {
+                type++;
+            }
+            if (type == TYPES.length) {
+                throw new IllegalArgumentException("Affinities can only be exported for Venue, Artist or Event, not " + label);
+            }
+            types[type] = true;
+        }
+        return types;
+    }
+
+    /**
+     * Resolve a path against similarity.snapshot.directory; without it, files anywhere that the
+     * database can reach could be read or replaced, so the snapshot procedures are refused
+     */
+    private Path resolve(String path) {
+        File directory = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Config.class)
+                .get(AffinitySettings.snapshot_directory);
+        if (directory == null) {
+            throw new IllegalStateException("Set similarity.snapshot.directory in neo4j.conf to export or import affinities");
+        }
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        Path resolved = root.resolve(path).normalize();
+        if ( ! resolved.startsWith(root)) {
+            throw new IllegalArgumentException(path + " is outside similarity.snapshot.directory");
+        }
+        return resolved;
+    }
+
+    private static class Entry {
+        static final Comparator<Entry> ORDER = Comparator.<Entry>comparingInt(entry -> entry.type).thenComparingLong(entry -> entry.targetId);
+
+        final byte type;
+        final long targetId;
+        final double affinity;
+
+        Entry(byte type, long targetId, double affinity) {
+            this.type = type;
+            this.targetId = targetId;
+            this.affinity = affinity;
+        }
+    }
+
+    /**
+     * The snapshot written by similarity.exportAffinities
+     */
+    public static class ExportResult {
+        public String path;
+        public long users;
+        public long affinities;
+        public long bytes;
+        public long timeMs;
+    }
+
+    /**
+     * The affinities set by similarity.importAffinities; skipped affinities are those whose user or
+     * target is not in the database
+     */
+    public static class ImportResult {
+        public long users;
+        public long affinities;
+        public long relationshipsCreated;
+        public long skipped;
+        public long batches;
+        public long timeMs;
+    }
+}
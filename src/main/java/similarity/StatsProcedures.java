@@ -0,0 +1,53 @@
+package similarity;
+
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Procedure;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Procedures to read the call counts, latencies and counters that the affinity procedures and
+ * similarity functions record
+ */
+public class StatsProcedures {
+
+    @Procedure(value = "similarity.stats", mode = Mode.READ)
+    @Description("similarity.stats() - return the calls, errors, latency percentiles and counters of each similarity " +
+            "procedure and function since the last reset")
+    public Stream<Stat> stats()
+    {
+        return Metrics.stats().stream();
+    }
+
+    /**
+     * Return the statistics and then clear them, so that each call reports the period since the last
+     */
+    @Procedure(value = "similarity.resetStats", mode = Mode.READ)
+    @Description("similarity.resetStats() - return the statistics as similarity.stats() does, and then clear them")
+    public Stream<Stat> resetStats()
+    {
+        List<Stat> stats = Metrics.stats();
+        Metrics.reset();
+        return stats.stream();
+    }
+
+    /**
+     * The statistics of one procedure, function or Cypher stage (named procedure/stage); the
+     * percentiles are the upper bounds of the histogram buckets they fall in
+     */
+    public static class Stat {
+        public String name;
+        public long calls;
+        public long errors;
+        public double totalMs;
+        public double meanMs;
+        public double maxMs;
+        public double p50Ms;
+        public double p95Ms;
+        public double p99Ms;
+        public Map<String, Object> counters;
+    }
+}
@@ -0,0 +1,255 @@
+package similarity;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.impl.api.RelationshipVisitor;
+import org.neo4j.kernel.impl.api.store.RelationshipIterator;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Follows the paths from a user to a single venue or artist without the traversal framework. For
+ * venues these are the paths that {@link TrackExpander} and {@link ReachedVenueEvaluator} describe;
+ * artists follow the same shapes, with the headliners of tracked events in place of their hosts.
+ * The paths are at most three hops long and of only three shapes per label, so they are walked with nested
+ * loops over the kernel's primitive relationship iterators, by label, type and property key ids
+ * that are looked up once per database. No Path, Node or Relationship objects are created, and
+ * the NMID (and for artists the roster) is the only property read.
+ * <ul>
+ *     <li>(user)-[:TRACKS]-&gt;(:Venue)-[:SIMILAR_TO]-(venue)</li>
+ *     <li>(user)-[:PROXY_TRACKS]-&gt;(:Venue)-[:SIMILAR_TO]-(venue), with useProxyTracks</li>
+ *     <li>(user)-[:TRACKS]-&gt;(:Event)&lt;-[:HOSTS]-(:Venue)-[:SIMILAR_TO]-(venue), without</li>
+ *     <li>(user)-[:TRACKS]-&gt;(:Event)&lt;-[:PLAYS {roster: 0}]-(:Artist)-[:SIMILAR_TO]-(artist), without</li>
+ * </ul>
+ */
+final class TargetPaths {
+
+    /**
+     * The label of the targets, and the relationship from a target to the events it takes part in
+     */
+    enum Hops {
+        VENUE(MyLabels.Venue, MyRelationshipTypes.HOSTS),
+        ARTIST(MyLabels.Artist, MyRelationshipTypes.PLAYS);
+
+        final MyLabels label;
+        final MyRelationshipTypes via;
+
+        private final Map<GraphDatabaseService, Tokens> tokens = new ConcurrentHashMap<>();
+
+        Hops(MyLabels label, MyRelationshipTypes via) {
+            this.label = label;
+            this.via = via;
+        }
+
+        static Hops of(MyLabels label) {
+            return label == MyLabels.Artist ? ARTIST : VENUE;
+        }
+    }
+
+    private TargetPaths() {
+    }
+
+    /**
+     * Add the NMID of the SIMILAR_TO relationship on each path from a user to a target to a
+     * contribution, as a proxy path if it starts with PROXY_TRACKS or passes through an event
+     *
+     * @param db the GraphDatabaseService injected into the procedure
+     * @param user the User node in question
+     * @param target the venue or artist Node for which we need to calculate affinity
+     * @param hops the label of the target, and of the nodes on the paths to it
+     * @param useProxyTracks whether to use PROXY_TRACKS relationships (or find the proxies via tracked events)
+     */
+    static void add(GraphDatabaseService db, Node user, Node target, Hops hops, boolean useProxyTracks, Contribution contribution) {
+        add(db, user, target, hops, useProxyTracks, Double.POSITIVE_INFINITY, 0, contribution);
+    }
+
+    /**
+     * Add the NMID of the SIMILAR_TO relationship on each path from a user to a target, as above,
+     * only following those relationships that are among the topN most similar of the node they lead
+     * from and have an NMID of at most maxNMID, as read from the {@link NeighbourCache}
+     *
+     * @param maxNMID the greatest NMID to follow
+     * @param topN the most SIMILAR_TO relationships of each node to follow, or 0 for no limit
+     */
+    static void add(GraphDatabaseService db, Node user, Node target, Hops hops, boolean useProxyTracks,
+                    double maxNMID, int topN, Contribution contribution) {
+        GraphDatabaseService database = Databases.unrestricted(db);
+        ThreadToStatementContextBridge bridge = ((GraphDatabaseAPI) database).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class);
+
+        try (Statement statement = bridge.get()) {
+            ReadOperations read = statement.readOperations();
+            Tokens tokens = hops.tokens.get(database);
+            if (tokens == null) {
+                tokens = new Tokens(read, hops);
+                // a token that does not exist yet may be created later, so keep looking it up until then
+                if (tokens.isComplete() && hops.tokens.putIfAbsent(database, tokens) == null) {
+                    Databases.onShutdown(database, () -> hops.tokens.remove(database));
+                }
+            }
+            Walk walk = new Walk(read, tokens, target.getId(), contribution);
+            if (topN > 0 || maxNMID < Double.POSITIVE_INFINITY) {
+                walk.prune(db, maxNMID, topN);
+            }
+            walk.from(user.getId(), useProxyTracks);
+        } catch (EntityNotFoundException e) {
+            throw new NotFoundException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The ids of the labels, relationship types and property keys on the paths, or -1 for those
+     * that have not been created yet
+     */
+    private static class Tokens {
+        final int user;
+        final int target;
+        final int event;
+        final int tracks;
+        final int proxyTracks;
+        final int similarTo;
+        final int via;
+        final int nmid;
+        // only headliners lead from an event to an artist; Integer.MAX_VALUE for venues, whose hosts all count
+        final int roster;
+
+        Tokens(ReadOperations read, Hops hops) {
+            user = read.labelGetForName(MyLabels.User.name());
+            target = read.labelGetForName(hops.label.name());
+            event = read.labelGetForName(MyLabels.Event.name());
+            tracks = read.relationshipTypeGetForName(MyRelationshipTypes.TRACKS.name());
+            proxyTracks = read.relationshipTypeGetForName(MyRelationshipTypes.PROXY_TRACKS.name());
+            similarTo = read.relationshipTypeGetForName(MyRelationshipTypes.SIMILAR_TO.name());
+            via = read.relationshipTypeGetForName(hops.via.name());
+            nmid = read.propertyKeyGetForName("NMID");
+            roster = hops == Hops.ARTIST ? read.propertyKeyGetForName("roster") : Integer.MAX_VALUE;
+        }
+
+        boolean isComplete() {
+            return user >= 0 && target >= 0 && event >= 0 && tracks >= 0 && proxyTracks >= 0 &&
+                    similarTo >= 0 && via >= 0 && nmid >= 0 && roster >= 0;
+        }
+
+        boolean checksRoster() {
+            return roster != Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The walk from one user, which doubles as the visitor that each relationship's type and
+     * end nodes are read through
+     */
+    private static class Walk implements RelationshipVisitor<RuntimeException> {
+        private final ReadOperations read;
+        private final Tokens tokens;
+        private final long target;
+        private final Contribution contribution;
+
+        private int type;
+        private long startNode;
+        private long endNode;
+
+        // set when only the most similar relationships are followed
+        private GraphDatabaseService db;
+        private NeighbourCache neighbours;
+        private double maxNMID;
+        private int topN;
+
+        Walk(ReadOperations read, Tokens tokens, long target, Contribution contribution) {
+            this.read = read;
+            this.tokens = tokens;
+            this.target = target;
+            this.contribution = contribution;
+        }
+
+        void prune(GraphDatabaseService db, double maxNMID, int topN) {
+            this.db = db;
+            this.neighbours = NeighbourCache.forDatabase(db);
+            this.maxNMID = maxNMID;
+            this.topN = topN;
+        }
+
+        @Override
+        public void visit(long relationship, int type, long startNode, long endNode) {
+            this.type = type;
+            this.startNode = startNode;
+            this.endNode = endNode;
+        }
+
+        void from(long user, boolean useProxyTracks) throws EntityNotFoundException {
+            if (tokens.tracks < 0 || tokens.similarTo < 0 || ! hasLabel(user, tokens.user)) {
+                return;
+            }
+
+            RelationshipIterator tracks = useProxyTracks && tokens.proxyTracks >= 0
+                    ? read.nodeGetRelationships(user, Direction.OUTGOING, tokens.tracks, tokens.proxyTracks)
+                    : read.nodeGetRelationships(user, Direction.OUTGOING, tokens.tracks);
+            while (tracks.hasNext()) {
+                tracks.relationshipVisit(tracks.next(), this);
+                long tracked = endNode;
+                if (tracked == target) {
+                    continue;
+                }
+                if (hasLabel(tracked, tokens.target)) {
+                    similarTo(tracked, useProxyTracks && type == tokens.proxyTracks);
+                } else if ( ! useProxyTracks && tokens.via >= 0 && hasLabel(tracked, tokens.event)) {
+                    RelationshipIterator via = read.nodeGetRelationships(tracked, Direction.INCOMING, tokens.via);
+                    while (via.hasNext()) {
+                        long relationship = via.next();
+                        via.relationshipVisit(relationship, this);
+                        long source = startNode;
+                        if (source != target && hasLabel(source, tokens.target) && isHeadliner(relationship)) {
+                            similarTo(source, true);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void similarTo(long source, boolean isProxyPath) throws EntityNotFoundException {
+            if (neighbours != null) {
+                NeighbourCache.Neighbours similar = neighbours.neighbours(db.getNodeById(source));
+                for (int n = 0, end = similar.limit(maxNMID, topN); n < end; n++) {
+                    if (similar.targets[n] == target) {
+                        contribution.add(isProxyPath, similar.nmids[n]);
+                    }
+                }
+                return;
+            }
+            RelationshipIterator similar = read.nodeGetRelationships(source, Direction.BOTH, tokens.similarTo);
+            while (similar.hasNext()) {
+                long relationship = similar.next();
+                similar.relationshipVisit(relationship, this);
+                if ((startNode == source ? endNode : startNode) != target || tokens.nmid < 0) {
+                    continue;
+                }
+                // a SIMILAR_TO relationship may be created before its NMID is set
+                Object nmid = read.relationshipGetProperty(relationship, tokens.nmid);
+                if (nmid instanceof Number) {
+                    contribution.add(isProxyPath, ((Number) nmid).doubleValue());
+                }
+            }
+        }
+
+        // (a)-[:PLAYS {roster: 0}]->(e); every host of an event counts
+        private boolean isHeadliner(long relationship) throws EntityNotFoundException {
+            if ( ! tokens.checksRoster()) {
+                return true;
+            }
+            Object roster = tokens.roster < 0 ? null : read.relationshipGetProperty(relationship, tokens.roster);
+            return roster instanceof Number && ((Number) roster).doubleValue() == 0;
+        }
+
+        private boolean hasLabel(long node, int label) throws EntityNotFoundException {
+            return label >= 0 && read.nodeHasLabel(node, label);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package similarity;
+
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+import org.neo4j.collection.primitive.PrimitiveLongSet;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory grid index of the coordinates of all :Venue:Active nodes, bucketed into cells of
+ * {@link #CELL_DEGREES} degrees. The grid is built from committed venues the first time it is
+ * needed, and is then kept current by a transaction event handler that applies venue label and
+ * coordinate changes after each commit.
+ */
+class VenueGrid {
+
+    static final double CELL_DEGREES = 0.1;
+
+    private static final int LONGITUDE_CELLS = (int) Math.round(360 / CELL_DEGREES);
+
+    private static final Map<GraphDatabaseService, VenueGrid> GRIDS = new ConcurrentHashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final PrimitiveLongObjectMap<Cell> cells = Primitive.longObjectMap();
+    private final PrimitiveLongObjectMap<double[]> locations = Primitive.longObjectMap();
+
+    private VenueGrid() {
+    }
+
+    /**
+     * Get the venue grid of a database, building it on first use
+     *
+     * @param db the database, as injected into a procedure
+     * @return the grid, which is kept current as venues change
+     */
+    static VenueGrid forDatabase(GraphDatabaseService db) {
+        GraphDatabaseService database = Databases.unrestricted(db);
+        VenueGrid grid = GRIDS.get(database);
+        if (grid != null) {
+            return grid;
+        }
+
+        synchronized (GRIDS) {
+            grid = GRIDS.get(database);
+            if (grid == null) {
+                grid = new VenueGrid();
+                // register before scanning, so that no commit between the two is missed
+                Maintainer maintainer = grid.new Maintainer();
+                database.registerTransactionEventHandler(maintainer);
+                try {
+                    grid.build(database);
+                } catch (RuntimeException e) {
+                    // the grid is dropped, and the next call registers a handler of its own
+                    database.unregisterTransactionEventHandler(maintainer);
+                    throw e;
+                }
+                Databases.onShutdown(database, () -> GRIDS.remove(database));
+                GRIDS.put(database, grid);
+            }
+            return grid;
+        }
+    }
+
+    // in a transaction of its own, on another thread, so that the uncommitted venue changes of the
+    // caller's transaction are not kept should it roll back
+    private void build(GraphDatabaseService database) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> {
+                lock.writeLock().lock();
+                try (Transaction tx = database.beginTx();
+                     ResourceIterator<Node> venues = database.findNodes(MyLabels.Venue)) {
+                    while (venues.hasNext()) {
+                        update(venues.next());
+                    }
+                    tx.success();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building the venue grid", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to build the venue grid", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Find the venues within a radius of a point
+     *
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @param maxRadius the radius in meters; zero or less for all venues
+     * @return the venue node ids and their distances from the point, as calculated by Cypher's distance()
+     */
+    Hits within(double latitude, double longitude, double maxRadius) {
+        Hits hits = new Hits();
+        lock.readLock().lock();
+        try {
+            if (maxRadius <= 0) {
+                cells.visitEntries((key, cell) -> {
+                    cell.collect(latitude, longitude, Double.MAX_VALUE, hits);
+                    return false;
+                });
+                return hits;
+            }
+
+            double latitudeDelta = Math.toDegrees(maxRadius / Scores.EARTH_RADIUS_METERS);
+            double cosine = Math.cos(Math.toRadians(latitude));
+            double longitudeDelta = cosine <= 0 ? 180 : Math.min(180, latitudeDelta / cosine);
+
+            int fromLatitude = cell(Math.max(-90, latitude - latitudeDelta));
+            int toLatitude = cell(Math.min(90, latitude + latitudeDelta));
+            int fromLongitude = cell(longitude - longitudeDelta);
+            int toLongitude = longitudeDelta >= 180 ? fromLongitude + LONGITUDE_CELLS - 1 : cell(longitude + longitudeDelta);
+
+            for (int y = fromLatitude; y <= toLatitude; y++) {
+                for (int x = fromLongitude; x <= toLongitude; x++) {
+                    Cell cell = cells.get(key(y, wrap(x)));
+                    if (cell != null) {
+                        cell.collect(latitude, longitude, maxRadius, hits);
+                    }
+                }
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return locations.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // must hold the write lock
+    private void update(Node node) {
+        if (node.hasLabel(MyLabels.Venue) && node.hasLabel(MyLabels.Active) &&
+                node.getProperty("latitude", null) instanceof Number && node.getProperty("longitude", null) instanceof Number) {
+            put(node.getId(), ((Number) node.getProperty("latitude")).doubleValue(), ((Number) node.getProperty("longitude")).doubleValue());
+        } else {
+            remove(node.getId());
+        }
+    }
+
+    // must hold the write lock
+    private void put(long id, double latitude, double longitude) {
+        remove(id);
+        long key = key(cell(latitude), wrap(cell(longitude)));
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+        }
+        cell.add(id, latitude, longitude);
+        locations.put(id, new double[] { latitude, longitude });
+    }
+
+    // must hold the write lock
+    private void remove(long id) {
+        double[] location = locations.remove(id);
+        if (location != null) {
+            long key = key(cell(location[0]), wrap(cell(location[1])));
+            Cell cell = cells.get(key);
+            if (cell != null && cell.remove(id) && cell.size == 0) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    private static int cell(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    // longitude cells wrap around the antimeridian
+    private static int wrap(int longitudeCell) {
+        return Math.floorMod(longitudeCell + LONGITUDE_CELLS / 2, LONGITUDE_CELLS) - LONGITUDE_CELLS / 2;
+    }
+
+    private static long key(int latitudeCell, int longitudeCell) {
+        return ((long) latitudeCell << 32) | (longitudeCell & 0xffffffffL);
+    }
+
+    /**
+     * The venues in a single grid cell, held in parallel primitive arrays
+     */
+    private static class Cell {
+        long[] ids = new long[4];
+        double[] latitudes = new double[4];
+        double[] longitudes = new double[4];
+        int size;
+
+        void add(long id, double latitude, double longitude) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                latitudes = Arrays.copyOf(latitudes, size * 2);
+                longitudes = Arrays.copyOf(longitudes, size * 2);
+            }
+            ids[size] = id;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            size++;
+        }
+
+        boolean remove(long id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    size--;
+                    ids[i] = ids[size];
+                    latitudes[i] = latitudes[size];
+                    longitudes[i] = longitudes[size];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void collect(double latitude, double longitude, double maxRadius, Hits hits) {
+            for (int i = 0; i < size; i++) {
+                double distance = Scores.distance(latitude, longitude, latitudes[i], longitudes[i]);
+                if (distance <= maxRadius) {
+                    hits.add(ids[i], distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Venue node ids and their distances from the point searched for
+     */
+    static class Hits {
+        long[] ids = new long[16];
+        double[] distances = new double[16];
+        int size;
+
+        private void add(long id, double distance) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            ids[size] = id;
+            distances[size] = distance;
+            size++;
+        }
+    }
+
+    /**
+     * Reads the new state of any node whose venue labels or coordinates changed while the
+     * transaction can still see it, and applies it to the grid once the transaction commits
+     */
+    private class Maintainer implements TransactionEventHandler<List<Update>> {
+
+        @Override
+        public List<Update> beforeCommit(TransactionData data) throws Exception {
+            PrimitiveLongSet deleted = Primitive.longSet();
+            for (Node node : data.deletedNodes()) {
+                deleted.add(node.getId());
+            }
+
+            List<Node> changed = new ArrayList<>();
+            for (LabelEntry entry : data.assignedLabels()) {
+                if (isVenueLabel(entry.label().name())) {
+                    changed.add(entry.node());
+                }
+            }
+            for (LabelEntry entry : data.removedLabels()) {
+                if (isVenueLabel(entry.label().name())) {
+                    changed.add(entry.node());
+                }
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (isCoordinate(entry.key())) {
+                    changed.add(entry.entity());
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (isCoordinate(entry.key())) {
+                    changed.add(entry.entity());
+                }
+            }
+
+            if (changed.isEmpty() && deleted.isEmpty()) {
+                return null;
+            }
+
+            List<Update> updates = new ArrayList<>();
+            deleted.visitKeys(id -> {
+                updates.add(new Update(id));
+                return false;
+            });
+            for (Node node : changed) {
+                if (deleted.contains(node.getId())) {
+                    continue;
+                }
+                try {
+                    if (node.hasLabel(MyLabels.Venue) && node.hasLabel(MyLabels.Active) &&
+                            node.getProperty("latitude", null) instanceof Number && node.getProperty("longitude", null) instanceof Number) {
+                        updates.add(new Update(node.getId(),
+                                ((Number) node.getProperty("latitude")).doubleValue(),
+                                ((Number) node.getProperty("longitude")).doubleValue()));
+                    } else {
+                        updates.add(new Update(node.getId()));
+                    }
+                } catch (NotFoundException e) {
+                    updates.add(new Update(node.getId()));
+                }
+            }
+            return updates;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, List<Update> updates) {
+            if (updates == null) {
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                for (Update update : updates) {
+                    if (update.active) {
+                        put(update.id, update.latitude, update.longitude);
+                    } else {
+                        remove(update.id);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, List<Update> updates) {
+        }
+
+        private boolean isVenueLabel(String label) {
+            return label.equals(MyLabels.Venue.name()) || label.equals(MyLabels.Active.name());
+        }
+
+        private boolean isCoordinate(String key) {
+            return key.equals("latitude") || key.equals("longitude");
+        }
+    }
+
+    /**
+     * The state of a venue after a commit; inactive updates remove the venue from the grid
+     */
+    private static class Update {
+        final long id;
+        final boolean active;
+        final double latitude;
+        final double longitude;
+
+        Update(long id) {
+            this(id, false, 0, 0);
+        }
+
+        Update(long id, double latitude, double longitude) {
+            this(id, true, latitude, longitude);
+        }
+
+        private Update(long id, boolean active, double latitude, double longitude) {
+            this.id = id;
+            this.active = active;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package similarity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.harness.junit.Neo4jRule;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AffinitySnapshotTest
+{
+    // This rule starts a Neo4j instance that keeps snapshots in its home directory
+    @Rule
+    public Neo4jRule neo4j = new Neo4jRule()
+            .withConfig( "similarity.snapshot.directory", "snapshots" )
+            .withProcedure( SnapshotProcedures.class );
+
+    @Test
+    public void shouldExportAndImportAffinities() throws Throwable
+    {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        db.execute( "CREATE (u1:User {id: 1}), (u2:User {id: 2}), (u3:User {id: 3}), (:User), " +
+                "(v1:Venue {id: 1}), (v2:Venue {id: 2}), (a1:Artist {id: 1}), (e1:Event {id: 1}), (e2:Event {id: 7}), " +
+                "(u2)-[:HAS_AFFINITY_FOR {affinity: 0.5}]->(v2), (u2)-[:HAS_AFFINITY_FOR {affinity: 0.25}]->(v1), " +
+                "(u2)-[:HAS_AFFINITY_FOR {affinity: 0.75}]->(e2), (u2)-[:HAS_AFFINITY_FOR {affinity: 0.125}]->(a1), " +
+                "(u1)-[:HAS_AFFINITY_FOR {affinity: 0.375}]->(e1), (u1)-[:HAS_AFFINITY_FOR]->(v1)" ).close();
+
+        Map<String, Object> export = single( db, "CALL similarity.exportAffinities({path})",
+                Collections.singletonMap( "path", "affinities.snapshot" ) );
+        Path path = Paths.get( (String) export.get( "path" ) );
+        assertThat( path.getParent().getFileName().toString(), equalTo( "snapshots" ) );
+        // users without affinities, and relationships without an affinity, are left out
+        assertThat( export.get( "users" ), equalTo( 2L ) );
+        assertThat( export.get( "affinities" ), equalTo( 5L ) );
+        assertThat( export.get( "bytes" ), equalTo( 24L + 2 * 16 + 5 * 17 ) );
+
+        try (AffinitySnapshot snapshot = AffinitySnapshot.open( path )) {
+            assertThat( snapshot.users(), equalTo( 2 ) );
+            assertThat( snapshot.indexOf( 3 ), equalTo( -1 ) );
+
+            int user = snapshot.indexOf( 1 );
+            assertThat( snapshot.endAffinity( user ) - snapshot.firstAffinity( user ), equalTo( 1 ) );
+            assertThat( snapshot.targetType( snapshot.firstAffinity( user ) ), equalTo( AffinitySnapshot.EVENT ) );
+            assertThat( snapshot.affinity( snapshot.firstAffinity( user ) ), equalTo( 0.375 ) );
+
+            // in order of type and then id
+            user = snapshot.indexOf( 2 );
+            int i = snapshot.firstAffinity( user );
+            assertThat( snapshot.endAffinity( user ), equalTo( i + 4 ) );
+            assertThat( snapshot.targetType( i ), equalTo( AffinitySnapshot.VENUE ) );
+            assertThat( snapshot.targetId( i ), equalTo( 1L ) );
+            assertThat( snapshot.affinity( i ), equalTo( 0.25 ) );
+            assertThat( snapshot.targetId( i + 1 ), equalTo( 2L ) );
+            assertThat( snapshot.targetType( i + 2 ), equalTo( AffinitySnapshot.ARTIST ) );
+            assertThat( snapshot.targetType( i + 3 ), equalTo( AffinitySnapshot.EVENT ) );
+            assertThat( snapshot.targetId( i + 3 ), equalTo( 7L ) );
+            assertThat( snapshot.affinity( i + 3 ), equalTo( 0.75 ) );
+        }
+
+        // only artists
+        Map<String, Object> params = new HashMap<>();
+        params.put( "path", "artists.snapshot" );
+        params.put( "options", Collections.singletonMap( "types", Collections.singletonList( "Artist" ) ) );
+        export = single( db, "CALL similarity.exportAffinities({path}, {options})", params );
+        assertThat( export.get( "users" ), equalTo( 1L ) );
+        assertThat( export.get( "affinities" ), equalTo( 1L ) );
+
+        // restore affinities that have been lost or changed, skipping those whose target has gone
+        db.execute( "MATCH (:User {id: 2})-[r:HAS_AFFINITY_FOR]->(:Venue) DELETE r" ).close();
+        db.execute( "MATCH (:User {id: 2})-[r:HAS_AFFINITY_FOR]->(:Event) SET r.affinity = 0.5" ).close();
+        db.execute( "MATCH (e:Event {id: 1}) DETACH DELETE e" ).close();
+        params = new HashMap<>();
+        params.put( "path", "affinities.snapshot" );
+        params.put( "options", Collections.singletonMap( "batchSize", 1 ) );
+        Map<String, Object> loaded = single( db, "CALL similarity.importAffinities({path}, {options})", params );
+        assertThat( loaded.get( "users" ), equalTo( 2L ) );
+        assertThat( loaded.get( "affinities" ), equalTo( 4L ) );
+        assertThat( loaded.get( "relationshipsCreated" ), equalTo( 2L ) );
+        assertThat( loaded.get( "skipped" ), equalTo( 1L ) );
+        assertThat( loaded.get( "batches" ), equalTo( 2L ) );
+
+        Map<String, Object> affinities = single( db, "MATCH (:User {id: 2})-[r:HAS_AFFINITY_FOR]->(t) " +
+                "RETURN count(*) AS count, sum(r.affinity) AS sum", Collections.emptyMap() );
+        assertThat( affinities.get( "count" ), equalTo( 4L ) );
+        assertThat( affinities.get( "sum" ), equalTo( 0.25 + 0.5 + 0.125 + 0.75 ) );
+
+        // importing again changes nothing
+        loaded = single( db, "CALL similarity.importAffinities({path}, {options})", params );
+        assertThat( loaded.get( "relationshipsCreated" ), equalTo( 0L ) );
+        assertThat( single( db, "MATCH ()-[r:HAS_AFFINITY_FOR]->() RETURN count(*) AS count", Collections.emptyMap() )
+                .get( "count" ), equalTo( 5L ) );
+    }
+
+    @Test
+    public void shouldRefuseSnapshotsOutsideTheSnapshotDirectory() throws Throwable
+    {
+        assertRefused( neo4j.getGraphDatabaseService(), "CALL similarity.exportAffinities('../affinities.snapshot')",
+                "is outside similarity.snapshot.directory" );
+        assertRefused( neo4j.getGraphDatabaseService(), "CALL similarity.importAffinities('/tmp/affinities.snapshot')",
+                "is outside similarity.snapshot.directory" );
+    }
+
+    static void assertRefused( GraphDatabaseService db, String statement, String message )
+    {
+        try {
+            db.execute( statement ).close();
+            fail( statement + " should have been refused" );
+        } catch (RuntimeException e) {
+            assertTrue( String.valueOf( rootCause( e ).getMessage() ), rootCause( e ).getMessage().contains( message ) );
+        }
+    }
+
+    private static Throwable rootCause( Throwable e )
+    {
+        return e.getCause() == null ? e : rootCause( e.getCause() );
+    }
+
+    private static Map<String, Object> single( GraphDatabaseService db, String statement, Map<String, Object> params )
+    {
+        try (Result result = db.execute( statement, params )) {
+            return result.next();
+        }
+    }
+}
@@ -6,9 +6,16 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.neo4j.driver.internal.value.NullValue;
 import org.neo4j.driver.v1.*;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.harness.junit.Neo4jRule;
+import org.neo4j.logging.NullLog;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.*;
@@ -23,6 +30,8 @@ public class AffinityTest {
 
             // This is the Procedure we want to test
             .withProcedure( Affinity.class )
+            .withProcedure( ProjectionProcedures.class )
+            .withProcedure( StatsProcedures.class )
             .withFunction( Similarity.class )
             .withFunction( Scoring.class )
             .withFunction( Coll.class );
@@ -78,7 +87,30 @@ public class AffinityTest {
             setupGraph(session);
 
             // When I use the index procedure to index a node
-            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) " +
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {engine: 'cypher'}) " +
+                    "RETURN u");
+
+            StatementResult result = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue {id: 1}) RETURN aff");
+
+            Map affinityProperties = result.single().get("aff").asMap();
+
+            checkVenueAssertions(affinityProperties, true);
+            assertThat(affinityProperties.get("distanceNorm"), equalTo(0.9695162061105322));
+            assertThat(affinityProperties.get("affinity"), equalTo(0.8500000000000001));
+        }
+    }
+
+    @Test
+    public void shouldAddAllVenueAffinityRelationshipNative() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {engine: 'native'}) " +
                     "RETURN u");
 
             StatementResult result = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue {id: 1}) RETURN aff");
@@ -91,6 +123,115 @@ public class AffinityTest {
         }
     }
 
+    @Test
+    public void shouldOnlyAddDistanceWithinMaxRadius() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "CREATE (:Venue:Active {id: 7, latitude: 51.1, longitude: -3.0})");
+
+            for (String engine : new String[] {"native", "cypher"}) {
+                session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff");
+                session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {engine: {engine}, maxRadius: 10000}) " +
+                        "RETURN u", Values.parameters("engine", engine));
+
+                // venue 1 is ~50km away, so only has a similarity contribution
+                Map venue1 = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue {id: 1}) RETURN aff").single().get("aff").asMap();
+                assertFalse(venue1.containsKey("distanceM"));
+                assertThat(venue1.get("affinity"), equalTo(0.8500000000000001));
+
+                // venue 7 is ~1km away
+                Map venue7 = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue {id: 7}) RETURN aff").single().get("aff").asMap();
+                assertThat(Math.round((double) venue7.get("distanceM")), equalTo(1057l));
+            }
+        }
+    }
+
+    @Test
+    public void venueGridShouldFollowVenueChanges() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            String venue7 = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue {id: 7}) RETURN count(aff) AS count";
+
+            // the first call builds the grid
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u");
+            assertThat(session.run(venue7).single().get("count").asLong(), equalTo(0l));
+
+            // a new venue is picked up
+            session.run( "CREATE (:Venue:Active {id: 7, latitude: 51.1, longitude: -3.0})");
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u");
+            assertThat(session.run(venue7).single().get("count").asLong(), equalTo(1l));
+
+            // as is a venue that is no longer active
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff");
+            session.run( "MATCH (v:Venue {id: 7}) REMOVE v:Active");
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u");
+            assertThat(session.run(venue7).single().get("count").asLong(), equalTo(0l));
+
+            // and one that has moved
+            session.run( "MATCH (v:Venue {id: 7}) SET v:Active, v.latitude = 55.0");
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {maxRadius: 10000}) RETURN u");
+            assertThat(session.run(venue7).single().get("count").asLong(), equalTo(0l));
+        }
+    }
+
+    @Test
+    public void venueGridShouldNotKeepRolledBackVenues() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            long venues = session.run( "MATCH (v:Venue:Active) WHERE exists(v.latitude) RETURN count(v) AS count").single().get("count").asLong();
+
+            // the grid is first built by a transaction with a new venue, which then rolls back
+            GraphDatabaseService db = neo4j.getGraphDatabaseService();
+            try (Transaction tx = db.beginTx()) {
+                db.execute( "CREATE (:Venue:Active {id: 7, latitude: 51.1, longitude: -3.0})").close();
+                db.execute( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u").resultAsString();
+                tx.failure();
+            }
+            assertThat((long) VenueGrid.forDatabase(db).size(), equalTo(venues));
+        }
+    }
+
+    @Test
+    public void nativeAndCypherVenueAffinityShouldMatch() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            String affinities = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v) RETURN v.id AS id, properties(aff) AS aff ORDER BY id";
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {engine: 'cypher'}) RETURN u");
+            List<Record> cypher = session.run(affinities).list();
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff");
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {engine: 'native'}) RETURN u");
+            List<Record> nativeEngine = session.run(affinities).list();
+
+            assertFalse(cypher.isEmpty());
+            assertThat(nativeEngine.size(), equalTo(cypher.size()));
+            for (int i = 0; i < cypher.size(); i++) {
+                assertThat(nativeEngine.get(i).asMap(), equalTo(cypher.get(i).asMap()));
+            }
+        }
+    }
+
     @Test
     public void shouldAddAllArtistAffinityRelationshipCypher() throws Throwable
     {
@@ -102,7 +243,29 @@ public class AffinityTest {
             setupGraph(session);
 
             // When I use the index procedure to index a node
-            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllArtistAffinity(u) " +
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllArtistAffinity(u, {engine: 'cypher'}) " +
+                    "RETURN u");
+
+            StatementResult result = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(a:Artist {id: 1}) RETURN aff");
+
+            Map affinityProperties = result.single().get("aff").asMap();
+
+            checkAssertions(affinityProperties);
+            assertThat(affinityProperties.get("affinity"), equalTo(0.5184000000000001));
+        }
+    }
+
+    @Test
+    public void shouldAddAllArtistAffinityRelationshipNative() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllArtistAffinity(u, {engine: 'native'}) " +
                     "RETURN u");
 
             StatementResult result = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(a:Artist {id: 1}) RETURN aff");
@@ -114,6 +277,67 @@ public class AffinityTest {
         }
     }
 
+    @Test
+    public void nativeAndCypherArtistAffinityShouldMatch() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "MATCH (a:Artist {id: 2}) SET a:Active");
+            String affinities = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(a:Artist) RETURN a.id AS id, properties(aff) AS aff ORDER BY id";
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllArtistAffinity(u, {engine: 'cypher'}) RETURN u");
+            List<Record> cypher = session.run(affinities).list();
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff");
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllArtistAffinity(u, {engine: 'native'}) RETURN u");
+            List<Record> nativeEngine = session.run(affinities).list();
+
+            assertFalse(cypher.isEmpty());
+            assertThat(nativeEngine.size(), equalTo(cypher.size()));
+            for (int i = 0; i < cypher.size(); i++) {
+                assertThat(nativeEngine.get(i).asMap(), equalTo(cypher.get(i).asMap()));
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepOnlyTopKAffinities() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "CREATE (:Venue:Active {id: 7, latitude: 51.1, longitude: -3.0}), " +
+                    "(:Venue:Active {id: 8, latitude: 55.0, longitude: -3.0})");
+            String venues = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue) RETURN v.id AS id ORDER BY aff.affinity";
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u");
+            assertThat(ids(session.run(venues).list()), equalTo("[1, 7, 8]"));
+
+            // the worst affinity is deleted
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {topK: 2}) RETURN u");
+            assertThat(ids(session.run(venues).list()), equalTo("[1, 7]"));
+
+            // and only the best is written in the first place
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff");
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {topK: 1}) RETURN u");
+            Map affinityProperties = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue) RETURN aff").single().get("aff").asMap();
+            checkVenueAssertions(affinityProperties, true);
+            assertThat(affinityProperties.get("affinity"), equalTo(0.8500000000000001));
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllArtistAffinity(u, {topK: 1}) RETURN u");
+            Map artistProperties = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(a:Artist) RETURN aff").single().get("aff").asMap();
+            checkAssertions(artistProperties);
+            assertThat(artistProperties.get("affinity"), equalTo(0.5184000000000001));
+        }
+    }
+
     @Test
     public void shouldFallBackToPopularityWhenNoLinks() throws Throwable
     {
@@ -155,7 +379,7 @@ public class AffinityTest {
             session.run( "MATCH (u:User {id: 1}) " +
                     "CALL similarity.calculateAllVenueAffinity(u) " +
                     "CALL similarity.calculateAllArtistAffinity(u) " +
-                    "CALL similarity.calculateAllEventAffinity(u) " +
+                    "CALL similarity.calculateAllEventAffinity(u, {engine: 'cypher'}) " +
                     "RETURN u");
 
             StatementResult result = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(e:Event:Future {id: 3}) RETURN aff");
@@ -168,6 +392,746 @@ public class AffinityTest {
         }
     }
 
+    @Test
+    public void nativeAndCypherEventAffinityShouldMatch() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "MATCH (u:User {id: 1}) " +
+                    "CALL similarity.calculateAllVenueAffinity(u) " +
+                    "CALL similarity.calculateAllArtistAffinity(u) " +
+                    "RETURN u").consume();
+            String affinities = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(e:Event) RETURN e.id AS id, properties(aff) AS aff ORDER BY id";
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllEventAffinity(u, {engine: 'cypher'}) RETURN u").consume();
+            List<Record> cypher = session.run(affinities).list();
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Event) DELETE aff").consume();
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllEventAffinity(u) RETURN u").consume();
+            List<Record> nativeEngine = session.run(affinities).list();
+
+            assertThat(cypher.size(), equalTo(2));
+            assertThat(maps(nativeEngine), equalTo(maps(cypher)));
+        }
+    }
+
+    @Test
+    public void refreshUserShouldMatchEachProcedureInTurn() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            String clear = "MATCH (:User {id: 1})-[r:HAS_AFFINITY_FOR|PROXY_TRACKS]->() DELETE r";
+            String refresh = "MATCH (u:User {id: 1}) CALL similarity.refreshUser(u, {engine: {engine}}) RETURN u";
+            String relationships = "MATCH (:User {id: 1})-[r]->(n) " +
+                    "RETURN type(r) AS type, head(labels(n)) AS label, n.id AS id, properties(r) AS props ORDER BY type, label, id";
+            session.run(clear).consume();
+
+            session.run(refresh, Values.parameters("engine", "cypher")).consume();
+            List<Map<String, Object>> cypher = maps(session.run(relationships).list());
+            session.run(clear).consume();
+
+            session.run(refresh, Values.parameters("engine", "native")).consume();
+            assertThat(maps(session.run(relationships).list()), equalTo(cypher));
+
+            // proxy tracks are not duplicated, and affinities are updated in place
+            session.run(refresh, Values.parameters("engine", "native")).consume();
+            assertThat(maps(session.run(relationships).list()), equalTo(cypher));
+            assertTrue(cypher.stream().anyMatch(row -> "PROXY_TRACKS".equals(row.get("type"))));
+            assertTrue(cypher.stream().anyMatch(row -> "Event".equals(row.get("label")) && "HAS_AFFINITY_FOR".equals(row.get("type"))));
+        }
+    }
+
+    @Test
+    public void pairProceduresShouldMatchCalculateAll() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            String affinities = "MATCH (:User {id: 1})-[r:HAS_AFFINITY_FOR]->(n:%s) RETURN n.id AS id, properties(r) AS props ORDER BY id";
+            String clear = "MATCH (:User {id: 1})-[r:HAS_AFFINITY_FOR]->(:%s) DELETE r";
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllArtistAffinity(u) RETURN u").consume();
+            List<Map<String, Object>> artists = maps(session.run(String.format(affinities, "Artist")).list());
+            assertThat(artists.size(), equalTo(1));
+
+            // with PROXY_TRACKS, and with the headliners of tracked events in their place
+            for (boolean useProxyTracks : new boolean[] {true, false}) {
+                session.run(String.format(clear, "Artist")).consume();
+                session.run( "MATCH (u:User {id: 1}), (a:Artist) CALL similarity.calculateArtistAffinity(u, a, {useProxyTracks}) RETURN u",
+                        Values.parameters("useProxyTracks", useProxyTracks)).consume();
+                assertThat(maps(session.run(String.format(affinities, "Artist")).list()), equalTo(artists));
+            }
+
+            // event affinities combine the stored venue and artist affinities
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) " +
+                    "CALL similarity.calculateAllEventAffinity(u) RETURN u").consume();
+            List<Map<String, Object>> events = maps(session.run(String.format(affinities, "Event")).list());
+            assertThat(events.size(), equalTo(2));
+            session.run(String.format(clear, "Event")).consume();
+            session.run( "MATCH (u:User {id: 1}), (e:Event) CALL similarity.calculateEventAffinity(u, e) RETURN u").consume();
+            assertThat(maps(session.run(String.format(affinities, "Event")).list()), equalTo(events));
+
+            // and only score the events that calculateAllEventAffinity would with the same options
+            session.run(String.format(clear, "Event")).consume();
+            String popular = "MATCH (u:User {id: 1}), (e:Event) CALL similarity.calculateEventAffinity(u, e, {minPopularity: {minPopularity}}) RETURN u";
+            session.run(popular, Values.parameters("minPopularity", 0.999998)).consume();
+            assertThat(ids(session.run(String.format(affinities, "Event")).list()), equalTo("[3]"));
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllEventAffinity(u, {minPopularity: 0.999998}) RETURN u").consume();
+            assertThat(ids(session.run(String.format(affinities, "Event")).list()), equalTo("[3]"));
+
+            // a lost path removes its contribution, and the combined affinity with it
+            session.run( "MATCH (:User {id: 1})-[r:TRACKS|PROXY_TRACKS]->(a:Artist) WHERE a.id <> 2 DELETE r").consume();
+            session.run( "MATCH (:Artist {id: 1})-[s:SIMILAR_TO]-(:Artist {id: 2}) DELETE s").consume();
+            session.run( "MATCH (u:User {id: 1}), (a:Artist {id: 1}) CALL similarity.calculateArtistAffinity(u, a, true) RETURN u").consume();
+            Map<String, Object> props = session.run(String.format(affinities, "Artist")).single().get("props").asMap();
+            assertThat(props.keySet(), equalTo(Collections.<String>emptySet()));
+        }
+    }
+
+    @Test
+    public void shouldSkipWritesOfUnchangedAffinities() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            String refresh = "MATCH (u:User {id: 1}) CALL similarity.refreshUser(u, {epsilon: {epsilon}}) RETURN u";
+            String counters = "CALL similarity.stats() YIELD name, counters WHERE name = 'similarity.refreshUser' RETURN counters";
+            session.run(refresh, Values.parameters("epsilon", 0.0)).consume();
+
+            // nothing has changed
+            session.run( "CALL similarity.resetStats()").consume();
+            session.run(refresh, Values.parameters("epsilon", 0.0)).consume();
+            Map<String, Object> unchanged = session.run(counters).single().get("counters").asMap();
+            assertNull(unchanged.get("propertiesSet"));
+            assertNull(unchanged.get("relationshipsUpdated"));
+            assertTrue((Long) unchanged.get("writesSkipped") > 0);
+
+            // a change within epsilon is not written
+            session.run( "MATCH (:Venue {id: 1})-[s:SIMILAR_TO]-(:Venue {id: 2}) SET s.NMID = 0.905").consume();
+            session.run( "CALL similarity.resetStats()").consume();
+            session.run(refresh, Values.parameters("epsilon", 0.01)).consume();
+            assertNull(session.run(counters).single().get("counters").asMap().get("propertiesSet"));
+
+            // but is with the default epsilon
+            session.run( "CALL similarity.resetStats()").consume();
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.refreshUser(u) RETURN u").consume();
+            Map<String, Object> changed = session.run(counters).single().get("counters").asMap();
+            assertTrue((Long) changed.get("propertiesSet") > 0);
+            assertTrue((Long) changed.get("relationshipsUpdated") > 0);
+            assertThat(session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue {id: 1}) RETURN aff.avg AS avg")
+                    .single().get("avg").asDouble(), equalTo((0.905 + 0.8) / 2));
+        }
+    }
+
+    @Test
+    public void shouldOnlyScoreCandidateEventsAbovePopularityFloor() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "MATCH (e3:Event {id: 3}), (e4:Event {id: 4}) SET e3.date = 20180101, e4.date = 20190101").consume();
+            session.run( "MATCH (u:User {id: 1}) " +
+                    "CALL similarity.calculateAllVenueAffinity(u) " +
+                    "CALL similarity.calculateAllArtistAffinity(u) " +
+                    "RETURN u").consume();
+            String events = "MATCH (:User {id: 1})-[:HAS_AFFINITY_FOR]->(e:Event) RETURN e.id AS id ORDER BY id";
+
+            // event 4 is only reached through the popularity of its venue and artist
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllEventAffinity(u, {toDate: 20171231}) RETURN u").consume();
+            assertTrue(session.run(events).list().isEmpty());
+
+            // both have a popularityNorm of 0.9999972477966368
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllEventAffinity(u, {minPopularity: 0.999998}) RETURN u").consume();
+            assertThat(ids(session.run(events).list()), equalTo("[3]"));
+
+            Record event = session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Event {id: 3}) RETURN aff").single();
+            assertThat(event.get("aff").get("affinity").asDouble(), equalTo(0.92776));
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllEventAffinity(u, {minPopularity: 0.999997, fromDate: 20180102}) RETURN u").consume();
+            assertThat(ids(session.run(events).list()), equalTo("[3, 4]"));
+
+            // as the Cypher statement does, by default
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Event) DELETE aff").consume();
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllEventAffinity(u) RETURN u").consume();
+            assertThat(ids(session.run(events).list()), equalTo("[3, 4]"));
+        }
+    }
+
+    @Test
+    public void streamedAffinitiesShouldMatchWrittenAffinities() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "MATCH (a:Artist {id: 2}) SET a:Active");
+
+            List<Record> venues = session.run( "MATCH (u:User {id: 1}) CALL similarity.streamVenueAffinity(u) YIELD node, affinity " +
+                    "RETURN node.id AS id, affinity ORDER BY id").list();
+            List<Record> artists = session.run( "MATCH (u:User {id: 1}) CALL similarity.streamArtistAffinity(u) YIELD node, affinity " +
+                    "RETURN node.id AS id, affinity ORDER BY id").list();
+
+            // nothing is written
+            assertThat(session.run("MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() RETURN count(aff) AS count").single().get("count").asLong(), equalTo(0L));
+
+            session.run( "MATCH (u:User {id: 1}) " +
+                    "CALL similarity.calculateAllVenueAffinity(u) " +
+                    "CALL similarity.calculateAllArtistAffinity(u) " +
+                    "RETURN u");
+            String written = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(t:%s) WHERE exists(aff.affinity) " +
+                    "RETURN t.id AS id, aff.affinity AS affinity ORDER BY id";
+
+            assertFalse(venues.isEmpty());
+            assertFalse(artists.isEmpty());
+            assertThat(maps(venues), equalTo(maps(session.run(String.format(written, "Venue")).list())));
+            assertThat(maps(artists), equalTo(maps(session.run(String.format(written, "Artist")).list())));
+        }
+    }
+
+    @Test
+    public void shouldStreamEventAffinity() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+
+            String events = "MATCH (u:User {id: 1}) CALL similarity.streamEventAffinity(u, {topK: %d}) " +
+                    "YIELD node, artistAffinity, venueAffinity, affinity RETURN node.id AS id, artistAffinity, venueAffinity, affinity";
+            List<Record> all = session.run(String.format(events, 0)).list();
+            Map<Object, Map<String, Object>> byId = all.stream().collect(Collectors.toMap(record -> record.get("id").asObject(), Record::asMap));
+
+            assertThat(byId.get(3L).get("artistAffinity"), equalTo(0.5184000000000001));
+            assertThat(byId.get(3L).get("venueAffinity"), equalTo(0.8500000000000001));
+            assertThat(byId.get(3L).get("affinity"), equalTo(0.92776));
+            assertThat(byId.get(4L).get("artistAffinity"), equalTo(0.9999972477966368));
+            assertThat(byId.get(4L).get("venueAffinity"), equalTo(0.9999972477966368));
+            assertThat(byId.get(4L).get("affinity"), equalTo(0.9999999999924254));
+
+            // the best event comes first
+            assertThat(session.run(String.format(events, 1)).single().get("id").asLong(), equalTo(3L));
+            assertThat(session.run("MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() RETURN count(aff) AS count").single().get("count").asLong(), equalTo(0L));
+        }
+    }
+
+    @Test
+    public void streamsAndPairsShouldUseTheSameOptionsAsCalculateAll() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            Value options = Values.parameters("options", Values.parameters("maxNMID", 0.75, "epsilon", 0.0));
+            String affinity = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(n {id: {id}}) WHERE {label} IN labels(n) RETURN properties(aff) AS aff";
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {options}) " +
+                    "CALL similarity.calculateAllArtistAffinity(u, {options}) CALL similarity.calculateAllEventAffinity(u, {options}) RETURN u", options).consume();
+            Map<String, Object> venue = session.run(affinity, Values.parameters("id", 1, "label", "Venue")).single().get("aff").asMap();
+            Map<String, Object> artist = session.run(affinity, Values.parameters("id", 1, "label", "Artist")).single().get("aff").asMap();
+            Map<String, Object> event = session.run(affinity, Values.parameters("id", 3, "label", "Event")).single().get("aff").asMap();
+
+            // the venue and artist affinities that events are scored from are pruned too
+            Record streamed = session.run( "MATCH (u:User {id: 1}) CALL similarity.streamEventAffinity(u, {options}) YIELD node, affinity " +
+                    "WHERE node.id = 3 RETURN affinity", options).single();
+            assertThat(streamed.get("affinity").asDouble(), equalTo(event.get("affinity")));
+
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff").consume();
+            session.run( "MATCH (u:User {id: 1}), (v:Venue {id: 1}), (a:Artist {id: 1}) " +
+                    "CALL similarity.calculateVenueAffinity(u, v, true, {options}) " +
+                    "CALL similarity.calculateArtistAffinity(u, a, true, {options}) RETURN u", options).consume();
+            Map<String, Object> pairVenue = session.run(affinity, Values.parameters("id", 1, "label", "Venue")).single().get("aff").asMap();
+            assertThat(pairVenue.get("count"), equalTo(venue.get("count")));
+            assertThat(pairVenue.get("proxyCount"), equalTo(venue.get("proxyCount")));
+            assertThat(session.run(affinity, Values.parameters("id", 1, "label", "Artist")).single().get("aff").asMap(), equalTo(artist));
+
+            // the streamed events are those that would be written, by default and within dates
+            session.run( "MATCH (e3:Event {id: 3}), (e4:Event {id: 4}) SET e3.date = 10, e4.date = 20").consume();
+            String calculateAll = "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {options}) " +
+                    "CALL similarity.calculateAllArtistAffinity(u, {options}) CALL similarity.calculateAllEventAffinity(u, {options}) RETURN u";
+            String written = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(e:Event) RETURN e.id AS id, aff.affinity AS affinity ORDER BY id";
+            String stream = "MATCH (u:User {id: 1}) CALL similarity.streamEventAffinity(u, {options}) YIELD node, affinity " +
+                    "RETURN node.id AS id, affinity ORDER BY id";
+            Value[] eventOptions = { Values.parameters("options", Values.parameters()),
+                    Values.parameters("options", Values.parameters("minPopularity", 0.999998)),
+                    Values.parameters("options", Values.parameters("fromDate", 15)) };
+            String[] expected = { "[3, 4]", "[3]", "[4]" };
+            for (int i = 0; i < eventOptions.length; i++) {
+                session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff").consume();
+                session.run(calculateAll, eventOptions[i]).consume();
+                List<Record> events = session.run(written).list();
+                assertThat(ids(events), equalTo(expected[i]));
+                assertThat(session.run(stream, eventOptions[i]).list().stream().map(Record::asMap).collect(Collectors.toList()),
+                        equalTo(events.stream().map(Record::asMap).collect(Collectors.toList())));
+            }
+        }
+    }
+
+    @Test
+    public void shouldCalculateAffinityBatchForLabel() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+
+            Record stats = session.run( "CALL similarity.calculateAffinityBatch('User', {batchSize: 1, concurrency: 2}) " +
+                    "YIELD users, failedUsers, batches, retriedBatches RETURN users, failedUsers, batches, retriedBatches").single();
+
+            assertThat(stats.get("users").asLong(), equalTo(1l));
+            assertThat(stats.get("failedUsers").asLong(), equalTo(0l));
+            assertThat(stats.get("batches").asLong(), equalTo(1l));
+            assertThat(stats.get("retriedBatches").asLong(), equalTo(0l));
+
+            StatementResult result = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(e:Event:Future {id: 3}) RETURN aff");
+
+            Map affinityProperties = result.single().get("aff").asMap();
+
+            assertThat(affinityProperties.get("artistAffinity"), equalTo(0.5184000000000001));
+            assertThat(affinityProperties.get("venueAffinity"), equalTo(0.8500000000000001));
+            assertThat(affinityProperties.get("affinity"), equalTo(0.92776));
+        }
+    }
+
+    @Test
+    public void shouldCalculateAffinityBatchForUserList() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+
+            Record stats = session.run( "MATCH (u:User) WITH collect(u) AS users " +
+                    "CALL similarity.calculateAffinityBatch(users, {venues: true, artists: false, events: false}) " +
+                    "YIELD users AS processed RETURN processed").single();
+
+            assertThat(stats.get("processed").asLong(), equalTo(1l));
+
+            StatementResult result = session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue {id: 1}) RETURN aff");
+
+            checkVenueAssertions(result.single().get("aff").asMap(), true);
+        }
+    }
+
+    @Test
+    public void shouldAddProxyTracksBatchAsAddProxyTracksWould() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "MATCH (:User {id: 1})-[p:PROXY_TRACKS]->() DELETE p").consume();
+            // one proxy track already in place, along with a duplicate, a stale one and one added by hand
+            session.run( "MATCH (u:User {id: 1}), (v4:Venue {id: 4}), (v6:Venue {id: 6}), (a6:Artist {id: 6}) " +
+                    "CREATE (u)-[:PROXY_TRACKS {proxy: true}]->(v4), (u)-[:PROXY_TRACKS {proxy: true}]->(v4), " +
+                    "(u)-[:PROXY_TRACKS {proxy: true}]->(v6), (u)-[:PROXY_TRACKS]->(a6)").consume();
+            // a user who tracks the venue of a tracked event does not proxy its headliner
+            session.run( "MATCH (e2:Event {id: 2}), (v5:Venue {id: 5}) " +
+                    "CREATE (u:User {id: 2})-[:TRACKS]->(e2), (u)-[:TRACKS]->(v5)").consume();
+            String batch = "CALL similarity.addProxyTracksBatch('User', {batchSize: 1, concurrency: 2}) " +
+                    "YIELD users, failedUsers, created, deleted RETURN users, failedUsers, created, deleted";
+            String proxies = "MATCH (u:User)-[p:PROXY_TRACKS]->(n) " +
+                    "RETURN u.id AS user, head(labels(n)) AS label, n.id AS id, properties(p) AS props ORDER BY user, label, id";
+
+            Record stats = session.run(batch).single();
+            assertThat(stats.get("users").asLong(), equalTo(2l));
+            assertThat(stats.get("failedUsers").asLong(), equalTo(0l));
+            assertThat(stats.get("created").asLong(), equalTo(4l));
+            assertThat(stats.get("deleted").asLong(), equalTo(2l));
+            List<Record> batched = session.run(proxies).list();
+            assertThat(batched.size(), equalTo(6));
+
+            session.run( "MATCH (:User)-[p:PROXY_TRACKS {proxy: true}]->() DELETE p").consume();
+            session.run( "MATCH (u:User) CALL similarity.addProxyTracks(u) RETURN count(*)").consume();
+            assertThat(session.run(proxies).list(), equalTo(batched));
+
+            // nothing left to do
+            stats = session.run(batch).single();
+            assertThat(stats.get("created").asLong(), equalTo(0l));
+            assertThat(stats.get("deleted").asLong(), equalTo(0l));
+            assertThat(session.run(proxies).list(), equalTo(batched));
+        }
+    }
+
+    @Test
+    public void shouldResumeRebuildFromCheckpoint() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            // the Cypher engine fails on a user without an id
+            long broken = session.run( "CREATE (:User {id: 2}) CREATE (u:User) CREATE (:User {id: 3}) RETURN id(u) AS id")
+                    .single().get("id").asLong();
+            String rebuild = "CALL similarity.rebuildAffinities({partitionSize: 1, concurrency: 1, engine: 'cypher'})";
+            String checkpoint = "MATCH (c:RebuildCheckpoint {name: 'default'}) RETURN c.nodeId AS nodeId";
+
+            Record stats = session.run(rebuild).single();
+            assertThat(stats.get("partitions").asLong(), equalTo(4l));
+            assertThat(stats.get("failedPartitions").asLong(), equalTo(1l));
+            assertThat(stats.get("users").asLong(), equalTo(3l));
+            assertFalse(stats.get("complete").asBoolean());
+            assertThat(stats.get("checkpoint").asLong(), equalTo(broken));
+            assertThat(session.run(checkpoint).single().get("nodeId").asLong(), equalTo(broken));
+
+            // once fixed, only the users from the failed partition on are rebuilt
+            session.run( "MATCH (u:User) WHERE id(u) = {id} SET u.id = 4", Values.parameters("id", broken)).consume();
+            stats = session.run(rebuild).single();
+            assertThat(stats.get("resumedFrom").asLong(), equalTo(broken));
+            assertThat(stats.get("partitions").asLong(), equalTo(2l));
+            assertThat(stats.get("users").asLong(), equalTo(2l));
+            assertTrue(stats.get("complete").asBoolean());
+            assertThat(stats.get("checkpoint").asLong(), equalTo(-1l));
+            assertFalse(session.run(checkpoint).hasNext());
+
+            // and the next rebuild starts from the beginning
+            stats = session.run(rebuild).single();
+            assertThat(stats.get("resumedFrom").asLong(), equalTo(0l));
+            assertThat(stats.get("users").asLong(), equalTo(4l));
+        }
+    }
+
+    @Test
+    public void batchesShouldSkipDeletedUsers() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            long user = session.run( "MATCH (u:User {id: 1}) RETURN id(u) AS id").single().get("id").asLong();
+            long deleted = session.run( "CREATE (u:User {id: 2}) RETURN id(u) AS id").single().get("id").asLong();
+            session.run( "MATCH (u:User) WHERE id(u) = {id} DELETE u", Values.parameters("id", deleted)).consume();
+
+            // as if the user was deleted after the users were listed
+            AffinityBatch batch = new AffinityBatch(neo4j.getGraphDatabaseService(), NullLog.getInstance(), Collections.emptyMap());
+            assertThat(batch.process(new long[] {deleted, user}), equalTo(1));
+            assertTrue(session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() RETURN count(aff) AS count")
+                    .single().get("count").asLong() > 0);
+        }
+    }
+
+    @Test
+    public void projectionShouldMatchStoreTraversal() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            String affinities = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v) RETURN v.id AS id, properties(aff) AS aff ORDER BY id";
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u");
+            List<Record> store = session.run(affinities).list();
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff");
+
+            Record status = session.run( "CALL similarity.projection.load()").single();
+            assertTrue(status.get("loaded").asBoolean());
+            assertFalse(status.get("stale").asBoolean());
+            assertThat(status.get("tracks").asLong(), equalTo(6l));
+            assertTrue(usesProjection(1));
+
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u");
+            List<Record> projected = session.run(affinities).list();
+            assertThat(projected.size(), equalTo(store.size()));
+            for (int i = 0; i < store.size(); i++) {
+                assertThat(projected.get(i).asMap(), equalTo(store.get(i).asMap()));
+            }
+
+            for (boolean useProxyTracks : new boolean[] {true, false}) {
+                session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->() DELETE aff");
+                session.run( "MATCH (u:User {id: 1}), (v:Venue {id: 1}) CALL similarity.calculateVenueAffinity(u, v, {useProxyTracks}) " +
+                        "RETURN u", Values.parameters("useProxyTracks", useProxyTracks));
+                checkVenueAssertions(session.run("MATCH (u:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v:Venue {id: 1}) RETURN aff").single().get("aff").asMap());
+            }
+        }
+    }
+
+    @Test
+    public void projectionShouldBeInvalidatedByChanges() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "CREATE (:User {id: 2})").consume();
+            session.run( "CALL similarity.projection.load()").consume();
+            assertTrue(usesProjection(1));
+            assertTrue(usesProjection(2));
+
+            // affinity writes do not affect the projection
+            session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u) RETURN u").consume();
+            assertTrue(usesProjection(1));
+
+            // new tracks only exclude the user who made them
+            session.run( "MATCH (u:User {id: 1}), (v:Venue {id: 4}) CREATE (u)-[:TRACKS]->(v)").consume();
+            assertThat(session.run( "CALL similarity.projection.status()").single().get("dirtyUsers").asLong(), equalTo(1l));
+            assertFalse(usesProjection(1));
+            assertTrue(usesProjection(2));
+
+            // whereas a change in similarity affects everyone, until reloaded
+            session.run( "MATCH (v:Venue {id: 1})-[s:SIMILAR_TO]-(:Venue {id: 2}) SET s.NMID = 0.5").consume();
+            assertTrue(session.run( "CALL similarity.projection.status()").single().get("stale").asBoolean());
+            assertFalse(usesProjection(2));
+
+            session.run( "CALL similarity.projection.load()").consume();
+            assertTrue(usesProjection(1));
+
+            session.run( "CALL similarity.projection.drop()").consume();
+            assertFalse(session.run( "CALL similarity.projection.status()").single().get("loaded").asBoolean());
+            assertFalse(usesProjection(1));
+        }
+    }
+
+    @Test
+    public void projectionShouldNotKeepRolledBackChanges() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            long tracks = session.run( "MATCH (:User)-[t:TRACKS]->() RETURN count(t) AS count").single().get("count").asLong();
+
+            // the projection is loaded by a transaction with a new track, which then rolls back
+            GraphDatabaseService db = neo4j.getGraphDatabaseService();
+            try (Transaction tx = db.beginTx()) {
+                db.execute( "MATCH (u:User {id: 1}), (v:Venue {id: 4}) CREATE (u)-[:TRACKS]->(v)").close();
+                db.execute( "CALL similarity.projection.load()").close();
+                tx.failure();
+            }
+
+            Record status = session.run( "CALL similarity.projection.status()").single();
+            assertTrue(status.get("loaded").asBoolean());
+            assertFalse(status.get("stale").asBoolean());
+            assertThat(status.get("tracks").asLong(), equalTo(tracks));
+            assertTrue(usesProjection(1));
+        }
+    }
+
+    @Test
+    public void shouldOnlyFollowTheMostSimilarVenues() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+
+            // limits that exclude nothing change nothing
+            List<Record> all = venueAffinities(session, Collections.emptyMap());
+            assertThat(venueAffinities(session, Values.parameters("topN", 1, "maxNMID", 1.0).asMap()), equalTo(all));
+
+            // as if the less similar venues were not similar at all
+            List<Record> pruned = venueAffinities(session, Values.parameters("maxNMID", 0.75).asMap());
+            assertThat(pruned.equals(all), equalTo(false));
+            session.run( "MATCH (:Venue)-[s:SIMILAR_TO]-(:Venue) WHERE s.NMID > 0.75 DELETE s").consume();
+            assertThat(venueAffinities(session, Collections.emptyMap()), equalTo(pruned));
+
+            // the deleted similarities are forgotten rather than followed from the cache
+            assertThat(venueAffinities(session, Values.parameters("maxNMID", 0.95).asMap()), equalTo(pruned));
+
+            // the projection stops at the same neighbour as the store
+            List<Record> store = venueAffinities(session, Values.parameters("maxNMID", 0.65).asMap());
+            assertThat(store.equals(pruned), equalTo(false));
+            session.run( "CALL similarity.projection.load()").consume();
+            assertTrue(usesProjection(1));
+            assertThat(venueAffinities(session, Values.parameters("maxNMID", 0.65).asMap()), equalTo(store));
+        }
+    }
+
+    @Test
+    public void prunedAffinitiesShouldSeeSimilaritiesChangedInTheSameTransaction() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            Map<String, Object> options = Values.parameters("maxNMID", 0.75).asMap();
+            // which keeps the neighbours of the venues
+            List<Map<String, Object>> before = maps(venueAffinities(session, options));
+
+            // new NMIDs do not change the venues themselves
+            GraphDatabaseService db = neo4j.getGraphDatabaseService();
+            List<Map<String, Object>> changed = new ArrayList<>();
+            try (Transaction tx = db.beginTx()) {
+                db.execute( "MATCH (:Venue)-[s:SIMILAR_TO]-(:Venue) WHERE s.NMID > 0.75 SET s.NMID = s.NMID - 0.5").close();
+                db.execute( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue) DELETE aff").close();
+                db.execute( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {options}) RETURN u",
+                        Collections.singletonMap("options", options)).resultAsString();
+                db.execute( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v) RETURN v.id AS id, properties(aff) AS aff ORDER BY id")
+                        .forEachRemaining(changed::add);
+                tx.success();
+            }
+            assertThat(changed.equals(before), equalTo(false));
+            assertThat(maps(venueAffinities(session, options)), equalTo(changed));
+        }
+    }
+
+    private List<Record> venueAffinities(Session session, Map<String, Object> options)
+    {
+        session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue) DELETE aff").consume();
+        session.run( "MATCH (u:User {id: 1}) CALL similarity.calculateAllVenueAffinity(u, {options}) RETURN u",
+                Values.parameters("options", options)).consume();
+        return session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(v) RETURN v.id AS id, properties(aff) AS aff ORDER BY id").list();
+    }
+
+    @Test
+    public void shouldFindExistingAffinitiesOfHighDegreeUsers() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "MATCH (u:User {id: 1}) UNWIND range(100, 100 + {degree}) AS id " +
+                    "CREATE (u)-[:HAS_AFFINITY_FOR {distanceM: 1000.0}]->(:Venue {id: id})",
+                    Values.parameters("degree", AffinityIndex.MIN_DEGREE)).consume();
+            String calculate = "MATCH (u:User {id: 1}), (v:Venue {id: 1}) CALL similarity.calculateVenueAffinity(u, v, true) RETURN u";
+            String affinities = "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue {id: 1}) RETURN aff";
+
+            // updated rather than duplicated
+            session.run(calculate).consume();
+            session.run(calculate).consume();
+            checkVenueAssertions(session.run(affinities).single().get("aff").asMap());
+
+            GraphDatabaseService db = neo4j.getGraphDatabaseService();
+            try (Transaction tx = db.beginTx()) {
+                org.neo4j.graphdb.Node user = db.findNode(MyLabels.User, "id", 1L);
+                AffinityIndex index = AffinityIndex.forDatabase(db);
+                assertThat(index.find(user, db.findNode(MyLabels.Venue, "id", 100L)).getEndNode().getProperty("id"), equalTo(100L));
+                assertNull(index.find(user, db.findNode(MyLabels.Venue, "id", 2L)));
+                assertThat(index.users(), equalTo(1));
+            }
+
+            // committed deletions are applied to the index
+            session.run( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue {id: 1}) DELETE aff").consume();
+            session.run(calculate).consume();
+            checkVenueAssertions(session.run(affinities).single().get("aff").asMap());
+
+            // as are the uncommitted changes of the current transaction
+            try (Transaction tx = db.beginTx()) {
+                db.execute( "MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue {id: 1}) DELETE aff").resultAsString();
+                db.execute(calculate).resultAsString();
+                db.execute(calculate).resultAsString();
+                tx.success();
+            }
+            checkVenueAssertions(session.run(affinities).single().get("aff").asMap());
+        }
+    }
+
+    @Test
+    public void shouldReportStatsForEachProcedure() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "CALL similarity.resetStats()").consume();
+
+            session.run( "MATCH (u:User {id: 1}) " +
+                    "CALL similarity.calculateAllVenueAffinity(u) " +
+                    "CALL similarity.calculateAllVenueAffinity(u, {engine: 'cypher'}) " +
+                    "RETURN similarity.NMID(1, 2, 3, 10) AS nmid").consume();
+
+            Map<String, Record> stats = session.run( "CALL similarity.stats()").list().stream()
+                    .collect(Collectors.toMap(record -> record.get("name").asString(), record -> record));
+
+            Record venues = stats.get("similarity.calculateAllVenueAffinity");
+            assertThat(venues.get("calls").asLong(), equalTo(2L));
+            assertThat(venues.get("errors").asLong(), equalTo(0L));
+            assertTrue(venues.get("p99Ms").asDouble() >= venues.get("p50Ms").asDouble());
+            Map<String, Object> counters = venues.get("counters").asMap();
+            assertThat(counters.get("users"), equalTo(2L));
+            assertTrue((Long) counters.get("paths") > 0);
+            assertTrue((Long) counters.get("relationshipsCreated") > 0);
+            assertTrue((Long) counters.get("propertiesSet") > 0);
+
+            for (String stage : new String[] {"distance", "tracks", "proxyTracks", "affinity"}) {
+                assertThat(stats.get("similarity.calculateAllVenueAffinity/" + stage).get("calls").asLong(), equalTo(1L));
+            }
+            assertThat(stats.get("similarity.NMID").get("calls").asLong(), equalTo(1L));
+
+            // resetting returns the statistics so far and then clears them
+            assertThat(session.run( "CALL similarity.resetStats()").list().size(), equalTo(stats.size()));
+            assertTrue(session.run( "CALL similarity.stats()").list().isEmpty());
+        }
+    }
+
+    @Test
+    public void nativeAndCypherPopularityNormShouldMatch() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            String norms = "MATCH (n) WHERE n:Venue OR n:Artist RETURN labels(n) AS labels, n.id AS id, n.popularityNorm AS norm ORDER BY id, norm";
+            List<Map<String, Object>> expected = maps(session.run(norms).list());
+
+            session.run( "CALL similarity.addPopularityNorm('Artist', 5000, 50000, {engine: 'cypher'}) " +
+                    "CALL similarity.addPopularityNorm('Venue', 2500, 25000, {engine: 'cypher'}) " +
+                    "RETURN 1").consume();
+            assertThat(maps(session.run(norms).list()), equalTo(expected));
+
+            // only the changed node is written, whether in the caller's transaction or in batches
+            session.run( "CALL similarity.resetStats()").consume();
+            session.run( "MATCH (v:Venue {id: 6}) SET v.trackers = 2500").consume();
+            session.run( "CALL similarity.addPopularityNorm('Venue', 2500, 25000, {batchSize: 2, concurrency: 2})").consume();
+            session.run( "CALL similarity.addPopularityNorm('Venue', 2500, 25000)").consume();
+
+            Map<String, Object> counters = session.run( "CALL similarity.stats() YIELD name, counters " +
+                    "WHERE name = 'similarity.addPopularityNorm' RETURN counters").single().get("counters").asMap();
+            assertThat(counters.get("nodes"), equalTo(12L));
+            assertThat(counters.get("nodesUnchanged"), equalTo(11L));
+            assertThat(counters.get("propertiesSet"), equalTo(1L));
+            assertThat(session.run( "MATCH (v:Venue {id: 6}) RETURN v.popularityNorm AS norm").single().get("norm").asDouble(),
+                    equalTo(0.99999 + 0.00001 * (1 - 0.8)));
+        }
+    }
+
     @Test
     public void nullUserShouldNotThrowException() throws Throwable
     {
@@ -191,6 +1155,10 @@ public class AffinityTest {
         }
     }
 
+    private static List<Map<String, Object>> maps(List<Record> records) {
+        return records.stream().map(Record::asMap).collect(Collectors.toList());
+    }
+
     private void setupGraph(Session session) {
         // Retreive the user node
         session.run( "CREATE (u:User {id: 1, latitude: 51.093965, longitude: -3.011673}), " +
@@ -247,6 +1215,19 @@ public class AffinityTest {
                 "RETURN u");
     }
 
+    private String ids(List<Record> records)
+    {
+        return records.stream().map(record -> record.get("id").asLong()).collect(Collectors.toList()).toString();
+    }
+
+    private boolean usesProjection(long userId)
+    {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        try (Transaction tx = db.beginTx()) {
+            return Projection.forUser(db, db.findNode(MyLabels.User, "id", userId)) != null;
+        }
+    }
+
     private void checkVenueAssertions(Map affinityProperties)
     {
         checkVenueAssertions(affinityProperties, false);
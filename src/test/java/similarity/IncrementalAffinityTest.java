@@ -0,0 +1,75 @@
+package similarity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.driver.v1.*;
+import org.neo4j.harness.junit.Neo4jRule;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.*;
+
+public class IncrementalAffinityTest {
+    // This rule starts a Neo4j instance with incremental maintenance enabled
+    @Rule
+    public Neo4jRule neo4j = new Neo4jRule()
+            .withConfig( "similarity.incremental.enabled", "true" )
+            .withProcedure( Affinity.class )
+            .withFunction( Similarity.class );
+
+    @Test
+    public void shouldRecalculateAffectedVenueAffinities() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            session.run( "CREATE (:User {id: 1}), (v1:Venue:Active {id: 1}), (v2:Venue {id: 2}), (v3:Venue {id: 3}), " +
+                    "(v1)-[:SIMILAR_TO {NMID: 0.9}]->(v2), (v1)-[:SIMILAR_TO {NMID: 0.8}]->(v3)").consume();
+            assertNull(affinity(session));
+
+            // a new track adds the affinity
+            session.run( "MATCH (u:User {id: 1}), (v:Venue {id: 2}) CREATE (u)-[:TRACKS]->(v)").consume();
+            Map affinity = affinity(session);
+            assertThat(affinity.get("count"), equalTo(1l));
+            assertThat(affinity.get("avg"), equalTo(0.9));
+            assertThat(affinity.get("affinity"), equalTo(0.9));
+
+            // further tracks and proxy tracks are added to it
+            session.run( "MATCH (u:User {id: 1}), (v:Venue {id: 3}) CREATE (u)-[:TRACKS]->(v), (u)-[:PROXY_TRACKS]->(v)").consume();
+            affinity = affinity(session);
+            assertThat(affinity.get("count"), equalTo(2l));
+            assertThat(affinity.get("avg"), equalTo(0.8500000000000001));
+            assertThat(affinity.get("proxyCount"), equalTo(1l));
+            assertThat(affinity.get("affinity"), equalTo(0.8500000000000001));
+
+            // as are changes in similarity
+            session.run( "MATCH (:Venue {id: 1})-[s:SIMILAR_TO]-(:Venue {id: 3}) SET s.NMID = 0.6").consume();
+            affinity = affinity(session);
+            assertThat(affinity.get("min"), equalTo(0.6));
+            assertThat(affinity.get("proxyAvg"), equalTo(0.6));
+
+            // and removed tracks
+            session.run( "MATCH (:User {id: 1})-[t:TRACKS]->() DELETE t").consume();
+            affinity = affinity(session);
+            assertFalse(affinity.containsKey("count"));
+            assertThat(affinity.get("affinity"), equalTo(Math.pow(0.6, 0.1)));
+
+            session.run( "MATCH (:User {id: 1})-[t:PROXY_TRACKS]->() DELETE t").consume();
+            affinity = affinity(session);
+            assertFalse(affinity.containsKey("proxyCount"));
+            assertFalse(affinity.containsKey("affinity"));
+        }
+    }
+
+    private Map affinity(Session session) throws InterruptedException
+    {
+        assertTrue(IncrementalAffinity.forDatabase(neo4j.getGraphDatabaseService()).awaitIdle(10, TimeUnit.SECONDS));
+
+        StatementResult result = session.run("MATCH (:User {id: 1})-[aff:HAS_AFFINITY_FOR]->(:Venue {id: 1}) RETURN aff");
+        return result.hasNext() ? result.single().get("aff").asMap() : null;
+    }
+}
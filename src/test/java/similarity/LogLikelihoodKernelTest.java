@@ -0,0 +1,61 @@
+package similarity;
+
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.LoglikelihoodSimilarity;
+import org.apache.mahout.math.stats.LogLikelihood;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class LogLikelihoodKernelTest
+{
+    @Test
+    public void shouldMatchMahoutForSmallCounts() throws Throwable
+    {
+        for (long total = 1; total <= 40; total++) {
+            for (long A = 0; A <= total; A++) {
+                for (long B = 0; B <= total; B++) {
+                    for (long AB = Math.max(0, A + B - total); AB <= Math.min(A, B); AB++) {
+                        assertMatchesMahout(AB, A, B, total);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldMatchMahoutForLargeCounts() throws Throwable
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // mostly beyond the end of the lookup table, as for popular artists
+            long total = 1 + (long) Math.pow(10, 2 + random.nextDouble() * 6);
+            long A = (long) (random.nextDouble() * total);
+            long B = (long) (random.nextDouble() * total);
+            long AB = Math.max(0, A + B - total) + (long) (random.nextDouble() * (Math.min(A, B) - Math.max(0, A + B - total)));
+            assertMatchesMahout(AB, A, B, total);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeCounts() throws Throwable
+    {
+        LogLikelihoodKernel.llr(5, 3, 3, 10);
+    }
+
+    private static void assertMatchesMahout(long AB, long A, long B, long total) {
+        double llr = LogLikelihood.logLikelihoodRatio(AB, A - AB, B - AB, total - A - B + AB);
+        double mutualInformation = llr / (2.0 * total);
+        double normalisedJointEntropy = LogLikelihood.entropy(AB, A - AB, B - AB, total - A - B + AB) / total;
+        double nmid = 1.0 - (mutualInformation / normalisedJointEntropy);
+        double llSimilarity = new LoglikelihoodSimilarity().similarity(AB, A, B, (int) total);
+
+        String counts = AB + ", " + A + ", " + B + ", " + total;
+        assertThat(counts, LogLikelihoodKernel.llr(AB, A, B, total), equalTo(llr));
+        assertThat(counts, LogLikelihoodKernel.mutualInformation(AB, A, B, total), equalTo(mutualInformation));
+        assertThat(counts, LogLikelihoodKernel.nmid(AB, A, B, total), equalTo(nmid));
+        assertThat(counts, LogLikelihoodKernel.llSimilarity(AB, A, B, total), equalTo(llSimilarity));
+    }
+}
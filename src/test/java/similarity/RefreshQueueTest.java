@@ -0,0 +1,130 @@
+package similarity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.harness.junit.Neo4jRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RefreshQueueTest
+{
+    // This rule starts a Neo4j instance whose refresh queue holds two users, and is waited for briefly
+    @Rule
+    public Neo4jRule neo4j = new Neo4jRule()
+            .withConfig( "similarity.refresh_queue.capacity", "2" )
+            .withConfig( "similarity.refresh_queue.offer_timeout", "2s" )
+            .withProcedure( Affinity.class );
+
+    @Test
+    public void shouldRefreshQueuedUsersOnceTheirTransactionCommits() throws Throwable
+    {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        db.execute( "CREATE (u:User {id: 1}), (v1:Venue:Active {id: 1}), (v2:Venue {id: 2}), " +
+                "(a1:Artist:Active {id: 1}), (a2:Artist {id: 2}), (e1:Event {id: 1}), (e2:Event:Future {id: 2}), " +
+                "(v1)-[:SIMILAR_TO {NMID: 0.9}]->(v2), (a1)-[:SIMILAR_TO {NMID: 0.8}]->(a2), " +
+                "(v2)-[:HOSTS]->(e1), (a2)-[:PLAYS {roster: 0}]->(e1), (u)-[:TRACKS]->(e1), " +
+                "(v1)-[:HOSTS]->(e2), (a1)-[:PLAYS {roster: 0}]->(e2)" ).close();
+        String clear = "MATCH (:User {id: 1})-[r:HAS_AFFINITY_FOR|PROXY_TRACKS]->() DELETE r";
+        String enqueue = "MATCH (u:User {id: 1}) CALL similarity.enqueueRefresh(u) YIELD queued RETURN queued";
+
+        db.execute( "MATCH (u:User {id: 1}) CALL similarity.refreshUser(u) RETURN u" ).resultAsString();
+        List<Map<String, Object>> refreshed = relationships( db );
+        assertThat( refreshed.size(), equalTo( 5 ) );
+        db.execute( clear ).close();
+
+        // nothing is refreshed until the transaction commits, and a user queued twice is refreshed once
+        RefreshQueue queue = RefreshQueue.forDatabase( db );
+        try (Transaction tx = db.beginTx()) {
+            assertThat( db.execute( enqueue ).next().get( "queued" ), equalTo( true ) );
+            assertThat( db.execute( enqueue ).next().get( "queued" ), equalTo( true ) );
+            // taking one slot
+            assertThat( queue.status().uncommitted, equalTo( 1L ) );
+            tx.success();
+        }
+        assertTrue( queue.awaitIdle( 10, TimeUnit.SECONDS ) );
+        assertThat( relationships( db ), equalTo( refreshed ) );
+        RefreshQueue.Status status = queue.status();
+        assertThat( status.enqueued, equalTo( 2L ) );
+        assertThat( status.coalesced, equalTo( 1L ) );
+        assertThat( status.refreshed, equalTo( 1L ) );
+
+        // a rolled back transaction queues nothing
+        db.execute( clear ).close();
+        try (Transaction tx = db.beginTx()) {
+            db.execute( enqueue ).resultAsString();
+            tx.failure();
+        }
+        assertTrue( queue.awaitIdle( 10, TimeUnit.SECONDS ) );
+        assertTrue( relationships( db ).isEmpty() );
+
+        status = queue.status();
+        assertThat( status.enqueued, equalTo( 2L ) );
+        assertThat( status.refreshed, equalTo( 1L ) );
+        assertThat( status.failed, equalTo( 0L ) );
+    }
+
+    @Test
+    public void shouldTurnUsersAwayOnceTheQueueIsFull() throws Throwable
+    {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        db.execute( "CREATE (:User {id: 1}), (:User {id: 2}), (:User {id: 3})" ).close();
+        RefreshQueue queue = RefreshQueue.forDatabase( db );
+
+        try (Transaction tx = db.beginTx()) {
+            // queueing a user again takes no more room
+            assertTrue( enqueue( db, 1 ) );
+            assertTrue( enqueue( db, 1 ) );
+            assertTrue( enqueue( db, 2 ) );
+            assertThat( queue.status().uncommitted, equalTo( 2L ) );
+
+            // all the room is this transaction's own, so it does not wait for any
+            long start = System.nanoTime();
+            assertFalse( enqueue( db, 3 ) );
+            assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 1 ) );
+
+            // while other transactions wait until the offer timeout, and are then turned away too
+            start = System.nanoTime();
+            assertFalse( CompletableFuture.supplyAsync( () -> enqueue( db, 3 ) ).get( 10, TimeUnit.SECONDS ) );
+            assertTrue( System.nanoTime() - start >= TimeUnit.SECONDS.toNanos( 1 ) );
+            tx.success();
+        }
+        assertTrue( queue.awaitIdle( 10, TimeUnit.SECONDS ) );
+        RefreshQueue.Status status = queue.status();
+        assertThat( status.enqueued, equalTo( 3L ) );
+        assertThat( status.coalesced, equalTo( 1L ) );
+        assertThat( status.rejected, equalTo( 2L ) );
+        assertThat( status.refreshed, equalTo( 2L ) );
+        assertThat( status.uncommitted, equalTo( 0L ) );
+    }
+
+    private static boolean enqueue( GraphDatabaseService db, long id )
+    {
+        try (Result result = db.execute( "MATCH (u:User {id: {id}}) CALL similarity.enqueueRefresh(u) YIELD queued RETURN queued",
+                Collections.singletonMap( "id", id ) )) {
+            return (Boolean) result.next().get( "queued" );
+        }
+    }
+
+    private static List<Map<String, Object>> relationships( GraphDatabaseService db )
+    {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (Result result = db.execute( "MATCH (:User {id: 1})-[r]->(n) WHERE NOT type(r) = 'TRACKS' " +
+                "RETURN type(r) AS type, head(labels(n)) AS label, n.id AS id, properties(r) AS props ORDER BY type, label, id" )) {
+            result.forEachRemaining( rows::add );
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,223 @@
+package similarity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.driver.v1.Config;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.GraphDatabase;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+import org.neo4j.harness.junit.Neo4jRule;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class SimilarityProceduresTest
+{
+    // This rule starts a Neo4j instance
+    @Rule
+    public Neo4jRule neo4j = new Neo4jRule()
+
+            // This is the procedure we want to test
+            .withProcedure( SimilarityProcedures.class )
+            .withFunction( Similarity.class );
+
+    @Test
+    public void shouldBuildSimilarToFromCoTracking() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+
+            Record result = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', 0.0)").single();
+            assertThat(result.get("users").asLong(), equalTo(5L));
+            assertThat(result.get("pairs").asLong(), equalTo(2L));
+            assertThat(result.get("created").asLong(), equalTo(2L));
+
+            // the same scores as the functions, given the counts
+            List<Record> similarities = session.run( "MATCH (a:Artist {id: 1})-[s:SIMILAR_TO]-(b:Artist) " +
+                    "RETURN a.id AS a, b.id AS b, s.NMID AS NMID, s.LLR AS LLR, " +
+                    "similarity.NMID(CASE b.id WHEN 2 THEN 2 ELSE 1 END, 3, CASE b.id WHEN 2 THEN 3 ELSE 2 END, 5) AS expectedNMID, " +
+                    "similarity.LLR(CASE b.id WHEN 2 THEN 2 ELSE 1 END, 3, CASE b.id WHEN 2 THEN 3 ELSE 2 END, 5) AS expectedLLR " +
+                    "ORDER BY b").list();
+            assertThat(similarities.size(), equalTo(2));
+            for (Record similarity : similarities) {
+                assertThat(similarity.get("a").asLong(), equalTo(1L));
+                assertThat(similarity.get("NMID").asDouble(), equalTo(similarity.get("expectedNMID").asDouble()));
+                assertThat(similarity.get("LLR").asDouble(), equalTo(similarity.get("expectedLLR").asDouble()));
+            }
+
+            // existing relationships are updated rather than duplicated
+            result = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', 0.0, {batchSize: 1, concurrency: 2})").single();
+            assertThat(result.get("created").asLong(), equalTo(0L));
+            assertThat(result.get("updated").asLong(), equalTo(2L));
+            assertThat(result.get("batches").asLong(), equalTo(2L));
+            assertThat(session.run( "MATCH ()-[s:SIMILAR_TO]->() RETURN count(s) AS count").single().get("count").asLong(), equalTo(2L));
+        }
+    }
+
+    @Test
+    public void shouldOnlyWritePairsAboveThreshold() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            session.run( "MATCH (a1:Artist {id: 1}) CREATE (:User {id: 6})-[:TRACKS]->(a1)").consume();
+            double threshold = session.run( "RETURN similarity.LLR(2, 4, 3, 6) AS ab, similarity.LLR(1, 4, 2, 6) AS ac")
+                    .single().values().stream().mapToDouble(Value::asDouble).max().getAsDouble();
+
+            Record result = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', {threshold})",
+                    Values.parameters("threshold", threshold)).single();
+            assertThat(result.get("pairs").asLong(), equalTo(2L));
+            assertThat(result.get("created").asLong(), equalTo(1L));
+            assertThat(session.run( "MATCH ()-[s:SIMILAR_TO]->() RETURN s.LLR AS LLR").single().get("LLR").asDouble(), equalTo(threshold));
+
+            // and with at least two users in common
+            session.run( "MATCH ()-[s:SIMILAR_TO]->() DELETE s").consume();
+            session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', 0.0, {minCount: 2})").consume();
+            assertThat(session.run( "MATCH (:Artist {id: 1})-[:SIMILAR_TO]-(b:Artist) RETURN b.id AS id").single().get("id").asLong(), equalTo(2L));
+        }
+    }
+
+    @Test
+    public void shouldDeleteSimilaritiesThatAreNoLongerFound() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            setupGraph(session);
+            // a pair that is not co-tracked, and a similarity to a node without the label
+            session.run( "MATCH (a2:Artist {id: 2}), (a3:Artist {id: 3}) CREATE (a2)-[:SIMILAR_TO {NMID: 0.5}]->(a3), " +
+                    "(a3)-[:SIMILAR_TO {NMID: 0.5}]->(:Venue {id: 1})").consume();
+            String similarities = "MATCH (a:Artist)-[s:SIMILAR_TO]->(b) RETURN a.id + '-' + head(labels(b)) + b.id AS pair ORDER BY pair";
+
+            // kept when asked to
+            Record result = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', 0.0, {removeStale: false})").single();
+            assertThat(result.get("deleted").asLong(), equalTo(0L));
+            assertThat(pairs(session.run(similarities).list()), equalTo("[1-Artist2, 1-Artist3, 2-Artist3, 3-Venue1]"));
+
+            result = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', 0.0, {batchSize: 1})").single();
+            assertThat(result.get("deleted").asLong(), equalTo(1L));
+            assertThat(pairs(session.run(similarities).list()), equalTo("[1-Artist2, 1-Artist3, 3-Venue1]"));
+
+            // and pairs that fall below the threshold go too
+            session.run( "MATCH (a1:Artist {id: 1}) CREATE (:User {id: 6})-[:TRACKS]->(a1)").consume();
+            double threshold = session.run( "RETURN similarity.LLR(2, 4, 3, 6) AS ab, similarity.LLR(1, 4, 2, 6) AS ac")
+                    .single().values().stream().mapToDouble(Value::asDouble).max().getAsDouble();
+            result = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', {threshold})",
+                    Values.parameters("threshold", threshold)).single();
+            assertThat(result.get("deleted").asLong(), equalTo(1L));
+            assertThat(session.run(similarities).list().size(), equalTo(2));
+        }
+    }
+
+    @Test
+    public void shouldOnlyScoreLshCandidatesExactly() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            session.run( "CALL similarity.generateGraph({users: 300, venues: 10, artists: 150, events: 10, tracksPerUser: 8, seed: 3})").consume();
+            session.run( "MATCH ()-[s:SIMILAR_TO]->() DELETE s").consume();
+            String similarities = "MATCH (a:Artist)-[s:SIMILAR_TO]->(b:Artist) " +
+                    "MATCH (a)<-[:TRACKS]-(u) WITH a, b, s, collect(DISTINCT u) AS ua " +
+                    "MATCH (b)<-[:TRACKS]-(v) WITH a, b, s, ua, collect(DISTINCT v) AS vb " +
+                    "WITH a, b, s, size([u IN ua WHERE u IN vb]) AS common, size(ua) + size(vb) AS sizes " +
+                    "RETURN CASE WHEN id(a) < id(b) THEN [id(a), id(b)] ELSE [id(b), id(a)] END AS pair, " +
+                    "s.LLR AS LLR, s.NMID AS NMID, toFloat(common) / (sizes - common) AS jaccard";
+
+            Record exact = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', 0.0)").single();
+            Map<Object, Record> expected = new HashMap<>();
+            for (Record similarity : session.run(similarities).list()) {
+                expected.put(similarity.get("pair").asList(), similarity);
+            }
+            session.run( "MATCH ()-[s:SIMILAR_TO]->() DELETE s").consume();
+
+            Record lsh = session.run( "CALL similarity.buildSimilarTo('Artist', 'TRACKS', 0.0, {candidates: 'lsh', concurrency: 2})").single();
+            assertTrue(lsh.get("candidates").asLong() < exact.get("candidates").asLong());
+            assertTrue(lsh.get("created").asLong() > 0);
+
+            // every pair found has the exact scores
+            Map<Object, Record> found = new HashMap<>();
+            for (Record similarity : session.run(similarities).list()) {
+                Record pair = expected.get(similarity.get("pair").asList());
+                assertThat(similarity.get("LLR").asDouble(), equalTo(pair.get("LLR").asDouble()));
+                assertThat(similarity.get("NMID").asDouble(), equalTo(pair.get("NMID").asDouble()));
+                found.put(similarity.get("pair").asList(), similarity);
+            }
+
+            // and so are all those with enough users in common to be all but certain candidates
+            for (Record pair : expected.values()) {
+                if (pair.get("jaccard").asDouble() >= 0.5) {
+                    assertTrue(found.containsKey(pair.get("pair").asList()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldGenerateTheSameGraphFromTheSameSeed() throws Throwable
+    {
+        // In a try-block, to make sure we close the driver and session after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.build()
+                .withEncryptionLevel( Config.EncryptionLevel.NONE ).toConfig() );
+            Session session = driver.session() )
+        {
+            String generate = "CALL similarity.generateGraph({users: 50, venues: 20, artists: 20, events: 40, seed: %d, batchSize: 100})";
+            String shape = "MATCH (u:User)-[r]->(n) RETURN u.id AS user, type(r) AS type, " +
+                    "head([label IN labels(n) WHERE NOT label IN ['Active', 'Future']]) AS label, n.id AS id ORDER BY user, type, label, id";
+
+            Record result = session.run(String.format(generate, 7)).single();
+            assertThat(result.get("users").asLong(), equalTo(50L));
+            assertThat(result.get("events").asLong(), equalTo(40L));
+            assertThat(session.run( "MATCH (:Venue:Active) RETURN count(*) AS count").single().get("count").asLong(), equalTo(20L));
+            assertThat(session.run( "MATCH (:Artist)-[:PLAYS {roster: 0}]->(e:Event:Future) RETURN count(DISTINCT e) AS count").single().get("count").asLong(), equalTo(40L));
+            assertThat(session.run( "MATCH ()-[r]->() RETURN count(r) AS count").single().get("count").asLong(), equalTo(result.get("relationships").asLong()));
+            Record proxies = session.run( "MATCH (:User)-[r:PROXY_TRACKS]->() RETURN count(r) AS count, all(r IN collect(r) WHERE r.proxy = true) AS marked").single();
+            assertTrue(proxies.get("count").asLong() > 0);
+            assertTrue(proxies.get("marked").asBoolean());
+            List<Record> first = session.run(shape).list();
+
+            session.run( "MATCH (n) DETACH DELETE n").consume();
+            session.run(String.format(generate, 7)).consume();
+            List<Record> second = session.run(shape).list();
+
+            assertThat(second.size(), equalTo(first.size()));
+            for (int i = 0; i < first.size(); i++) {
+                assertThat(second.get(i).asMap(), equalTo(first.get(i).asMap()));
+            }
+        }
+    }
+
+    private static String pairs(List<Record> records)
+    {
+        return records.stream().map(record -> record.get("pair").asString()).collect(Collectors.toList()).toString();
+    }
+
+    private void setupGraph(Session session) {
+        session.run( "CREATE (a1:Artist {id: 1}), (a2:Artist {id: 2}), (a3:Artist {id: 3}), " +
+                "(u1:User {id: 1})-[:TRACKS]->(a1), (u1)-[:TRACKS]->(a2), " +
+                "(u2:User {id: 2})-[:TRACKS]->(a1), (u2)-[:TRACKS]->(a2), (u2)-[:TRACKS]->(a2), " +
+                "(u3:User {id: 3})-[:TRACKS]->(a1), (u3)-[:TRACKS]->(a3), " +
+                "(u4:User {id: 4})-[:TRACKS]->(a3), " +
+                "(u5:User {id: 5})-[:TRACKS]->(a2)").consume();
+    }
+}
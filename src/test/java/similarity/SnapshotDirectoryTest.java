@@ -0,0 +1,24 @@
+package similarity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.harness.junit.Neo4jRule;
+
+import static similarity.AffinitySnapshotTest.assertRefused;
+
+public class SnapshotDirectoryTest
+{
+    // This rule starts a Neo4j instance without similarity.snapshot.directory
+    @Rule
+    public Neo4jRule neo4j = new Neo4jRule()
+            .withProcedure( SnapshotProcedures.class );
+
+    @Test
+    public void shouldRefuseSnapshotsUntilTheDirectoryIsSet() throws Throwable
+    {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        assertRefused( db, "CALL similarity.exportAffinities('affinities.snapshot')", "Set similarity.snapshot.directory" );
+        assertRefused( db, "CALL similarity.importAffinities('affinities.snapshot')", "Set similarity.snapshot.directory" );
+    }
+}
@@ -0,0 +1,185 @@
+package similarity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.traversal.Uniqueness;
+import org.neo4j.harness.junit.Neo4jRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TargetPathsTest
+{
+    // This rule starts a Neo4j instance
+    @Rule
+    public Neo4jRule neo4j = new Neo4jRule()
+
+            .withProcedure( SimilarityProcedures.class );
+
+    @Test
+    public void shouldFollowTheSamePathsAsTheTraversalFramework() throws Throwable
+    {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        db.execute( "CALL similarity.generateGraph({users: 20, venues: 40, artists: 20, events: 60, " +
+                "tracksPerUser: 15, similarPerNode: 8, seed: 7})").close();
+
+        // paths the generator does not produce: duplicate and unscored similarities, hosts that are
+        // not venues, events that are also venues, and users that track the target itself
+        db.execute( "MATCH (a:Venue {id: 0}), (b:Venue {id: 1}) CREATE (a)-[:SIMILAR_TO {NMID: 0.25}]->(b), (b)-[:SIMILAR_TO]->(a)").close();
+        db.execute( "MATCH (a:Artist {id: 0}), (e:Event {id: 0}) CREATE (a)-[:HOSTS]->(e)").close();
+        db.execute( "MATCH (e:Event {id: 1}), (v:Venue {id: 0}) SET e:Venue CREATE (e)-[:SIMILAR_TO {NMID: 0.5}]->(v)").close();
+        db.execute( "MATCH (u:User), (v:Venue {id: 0}) WHERE u.id < 5 CREATE (u)-[:TRACKS]->(v)").close();
+
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(compareAll(db) > 0);
+            tx.success();
+        }
+
+        // uncommitted changes are followed too
+        try (Transaction tx = db.beginTx()) {
+            db.execute( "MATCH (u:User {id: 0}), (v:Venue) WHERE v.id < 10 MERGE (u)-[:PROXY_TRACKS]->(v)").close();
+            db.execute( "MATCH (:Venue {id: 2})-[s:SIMILAR_TO]-() DELETE s").close();
+            compareAll(db);
+            tx.failure();
+        }
+    }
+
+    @Test
+    public void shouldFollowTheSameArtistPathsAsCypher() throws Throwable
+    {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        db.execute( "CALL similarity.generateGraph({users: 20, venues: 20, artists: 40, events: 60, " +
+                "tracksPerUser: 15, proxyTracksPerUser: 5, similarPerNode: 8, artistsPerEvent: 3, seed: 11})").close();
+
+        String direct = "MATCH (u:User)-[:TRACKS]->(s:Artist)-[r:SIMILAR_TO]-(t:Artist) WHERE s <> t AND exists(r.NMID) " +
+                "RETURN id(u) AS user, id(t) AS target, count(*) AS count, sum(r.NMID) AS total";
+        String proxyTracks = "MATCH (u:User)-[:PROXY_TRACKS]->(s:Artist)-[r:SIMILAR_TO]-(t:Artist) WHERE s <> t AND exists(r.NMID) " +
+                "RETURN id(u) AS user, id(t) AS target, count(*) AS count, sum(r.NMID) AS total";
+        // support acts (roster > 0) of tracked events are not proxies
+        String headliners = "MATCH (u:User)-[:TRACKS]->(e:Event)<-[p:PLAYS]-(s:Artist)-[r:SIMILAR_TO]-(t:Artist) " +
+                "WHERE NOT e:Artist AND s <> t AND p.roster = 0 AND exists(r.NMID) " +
+                "RETURN id(u) AS user, id(t) AS target, count(*) AS count, sum(r.NMID) AS total";
+
+        Map<List<Long>, double[]> expectedDirect = paths(db, direct);
+        long followed = 0;
+        for (boolean useProxyTracks : new boolean[] {true, false}) {
+            Map<List<Long>, double[]> expectedProxy = paths(db, useProxyTracks ? proxyTracks : headliners);
+            try (Transaction tx = db.beginTx()) {
+                for (Node user : nodes(db, MyLabels.User)) {
+                    for (Node artist : nodes(db, MyLabels.Artist)) {
+                        Contribution actual = new Contribution();
+                        TargetPaths.add(db, user, artist, TargetPaths.Hops.ARTIST, useProxyTracks, actual);
+
+                        List<Long> pair = Arrays.asList(user.getId(), artist.getId());
+                        double[] expected = expectedDirect.getOrDefault(pair, new double[2]);
+                        double[] expectedProxyPaths = expectedProxy.getOrDefault(pair, new double[2]);
+                        String message = pair + " " + useProxyTracks;
+                        assertThat(message, (double) actual.count, equalTo(expected[0]));
+                        assertEquals(message, expected[1], actual.total, 1e-9);
+                        assertThat(message, (double) actual.proxyCount, equalTo(expectedProxyPaths[0]));
+                        assertEquals(message, expectedProxyPaths[1], actual.proxyTotal, 1e-9);
+                        followed += actual.count + actual.proxyCount;
+                    }
+                }
+                tx.success();
+            }
+        }
+        assertTrue(followed > 0);
+    }
+
+    // the count and total NMID of the paths between each user and target
+    private static Map<List<Long>, double[]> paths(GraphDatabaseService db, String query)
+    {
+        Map<List<Long>, double[]> paths = new HashMap<>();
+        try (Result result = db.execute(query)) {
+            while (result.hasNext()) {
+                Map<String, Object> row = result.next();
+                paths.put(Arrays.asList((Long) row.get("user"), (Long) row.get("target")),
+                        new double[] {((Number) row.get("count")).doubleValue(), ((Number) row.get("total")).doubleValue()});
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Compare every user and venue in both modes, returning the number of paths followed
+     */
+    private static long compareAll(GraphDatabaseService db)
+    {
+        List<Node> users = nodes(db, MyLabels.User);
+        List<Node> venues = nodes(db, MyLabels.Venue);
+        long paths = 0;
+
+        for (Node user : users) {
+            for (Node venue : venues) {
+                for (boolean useProxyTracks : new boolean[] {true, false}) {
+                    Contribution expected = traverse(db, user, venue, useProxyTracks);
+                    Contribution actual = new Contribution();
+                    TargetPaths.add(db, user, venue, TargetPaths.Hops.VENUE, useProxyTracks, actual);
+
+                    String pair = user.getProperty("id") + " -> " + venue.getProperty("id") + " " + useProxyTracks;
+                    assertThat(pair, actual.count, equalTo(expected.count));
+                    assertThat(pair, actual.total, equalTo(expected.total));
+                    assertThat(pair, actual.prod, equalTo(expected.prod));
+                    assertThat(pair, actual.min, equalTo(expected.min));
+                    assertThat(pair, actual.proxyCount, equalTo(expected.proxyCount));
+                    assertThat(pair, actual.proxyTotal, equalTo(expected.proxyTotal));
+                    assertThat(pair, actual.proxyProd, equalTo(expected.proxyProd));
+                    assertThat(pair, actual.proxyMin, equalTo(expected.proxyMin));
+                    paths += expected.count + expected.proxyCount;
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * The original traversal of similarity.calculateVenueAffinity
+     */
+    private static Contribution traverse(GraphDatabaseService db, Node user, Node venue, boolean useProxyTracks)
+    {
+        Contribution contribution = new Contribution();
+        for (Path path : db.traversalDescription()
+                .depthFirst()
+                .expand(new TrackExpander(useProxyTracks))
+                .evaluator(new ReachedVenueEvaluator(venue, useProxyTracks))
+                .uniqueness(Uniqueness.RELATIONSHIP_PATH)
+                .traverse(user)) {
+            boolean isProxyPath = ! useProxyTracks && path.length() > 2;
+            for (Relationship rel : path.relationships()) {
+                if (useProxyTracks && rel.isType(MyRelationshipTypes.PROXY_TRACKS)) {
+                    isProxyPath = true;
+                }
+                Object nmid = rel.isType(MyRelationshipTypes.SIMILAR_TO) ? rel.getProperty("NMID", null) : null;
+                if (nmid instanceof Number) {
+                    contribution.add(isProxyPath, ((Number) nmid).doubleValue());
+                }
+            }
+        }
+        return contribution;
+    }
+
+    private static List<Node> nodes(GraphDatabaseService db, MyLabels label)
+    {
+        List<Node> nodes = new ArrayList<>();
+        try (ResourceIterator<Node> found = db.findNodes(label)) {
+            found.forEachRemaining(nodes::add);
+        }
+        return nodes;
+    }
+}